@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.beans.DirectFieldAccessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 改写SQL时复制 BoundSql 附加参数的开销: 原来每次新建 DirectFieldAccessor 复制 metaParameters,
+ * 现在使用 {@link BoundSqlCopier} 缓存的 MethodHandle
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class BoundSqlCopyBenchmark {
+
+	private Configuration configuration;
+
+	private BoundSql boundSql;
+
+	private List<ParameterMapping> parameterMappings;
+
+	@Setup
+	public void setUp() {
+		configuration = new Configuration();
+		parameterMappings = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			parameterMappings.add(new ParameterMapping.Builder(configuration, "__frch_id_" + i, Object.class).build());
+		}
+		boundSql = new BoundSql(configuration, "select * from users where id in (?, ?, ?)", parameterMappings, null);
+		for (int i = 0; i < 3; i++) {
+			boundSql.setAdditionalParameter("__frch_id_" + i, i);
+		}
+	}
+
+	@Benchmark
+	public BoundSql directFieldAccessor() {
+		BoundSql copy = new BoundSql(configuration, "select count(*) from users where id in (?, ?, ?)",
+				parameterMappings, boundSql.getParameterObject());
+		DirectFieldAccessor from = new DirectFieldAccessor(boundSql);
+		DirectFieldAccessor to = new DirectFieldAccessor(copy);
+		to.setPropertyValue("metaParameters", from.getPropertyValue("metaParameters"));
+		return copy;
+	}
+
+	@Benchmark
+	public BoundSql boundSqlCopier() {
+		return BoundSqlCopier.copy(configuration, boundSql, "select count(*) from users where id in (?, ?, ?)",
+				parameterMappings);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.session.LocalCacheScope;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分页查询同时取得总记录数(window)与单独执行 count 查询(separate)的对比.
+ * <p>
+ * H2 内存库没有网络往返, 结果只反映两种方式在数据库及插件中的开销; 远程库上 window 还省去一次往返.
+ * <p>
+ * 只对比 separate 与 window: H2 的 MySQL 兼容模式不支持 SQL_CALC_FOUND_ROWS / FOUND_ROWS(),
+ * found_rows 方式会退回 separate, 在这里测不出差别. found_rows 的开销需要在真实的 MySQL 上测量,
+ * 且 MySQL 8.0.17 起已不推荐使用该方式, 结果不能由本基准推出.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InlineCountBenchmark {
+
+	@Param({ "separate", "window" })
+	public String countQueryMode;
+
+	@Param({ "0", "100" })
+	public int page;
+
+	@Param({ "u1%", "u%" })
+	public String name;
+
+	private SqlSession session;
+
+	private UserMapper mapper;
+
+	@Setup
+	public void setUp() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		properties.setProperty("countQueryMode", countQueryMode);
+		SqlSessionFactory factory = TestDatabase.create("inline_count", properties, TestDatabase.range(1, 50000));
+		// 不使用一级缓存, 每次都在数据库上执行
+		factory.getConfiguration().setLocalCacheScope(LocalCacheScope.STATEMENT);
+		session = factory.openSession(true);
+		mapper = session.getMapper(UserMapper.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		session.close();
+	}
+
+	@Benchmark
+	public List<Map<String, Object>> queryPage() {
+		Paging<Map<String, Object>> paging = new Paging<>(page, 20);
+		List<Map<String, Object>> content = mapper.find(paging, name);
+		if (!paging.isTotalKnown()) {
+			throw new IllegalStateException("total unknown");
+		}
+		return content;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.UserMapper;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每次分页查询新建分页 MappedStatement(rebuild)与复用缓存的分页语句(cached)的对比,
+ * 以 -prof gc 查看每次调用分配的内存(gc.alloc.rate.norm)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PagingStatementBenchmark {
+
+	private final PagingStatementCache pagingStatements = new PagingStatementCache();
+
+	private MappedStatement mappedStatement;
+
+	@Setup
+	public void setUp() {
+		Configuration configuration = new Configuration();
+		configuration.addMapper(UserMapper.class);
+		mappedStatement = configuration.getMappedStatement("net.sephy.mybatis.UserMapper.find");
+	}
+
+	@Benchmark
+	public MappedStatement rebuild() {
+		return PagingStatementCache.copy(mappedStatement, new PagingStatementCache.PagingSqlSource(mappedStatement));
+	}
+
+	@Benchmark
+	public MappedStatement cached() {
+		return pagingStatements.get(mappedStatement);
+	}
+}
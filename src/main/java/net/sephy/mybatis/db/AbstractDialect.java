@@ -18,8 +18,21 @@ package net.sephy.mybatis.db;
 
 import net.sephy.mybatis.dialect.Dialect;
 
+import net.sephy.mybatis.interceptor.BoundSqlBuilder;
+import net.sephy.mybatis.interceptor.ParsedSelect;
+import net.sephy.mybatis.interceptor.ParsedSelect.Clause;
+import net.sephy.mybatis.interceptor.SqlLexer;
+import net.sephy.mybatis.util.Keyset;
+import net.sephy.mybatis.util.PagingConsts;
 import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
 import org.apache.ibatis.session.Configuration;
+import org.springframework.data.domain.Sort;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 
 /**
@@ -27,18 +40,49 @@ import org.apache.ibatis.session.Configuration;
  */
 public abstract class AbstractDialect implements Dialect {
 
+	/**
+	 * 默认流式读取的 fetchSize
+	 */
+	public static final int DEFAULT_STREAMING_FETCH_SIZE = 1000;
+
 	@Override
 	public boolean supportsLimit() {
 		return false;
 	}
 
+	/**
+	 * 去掉原SQL末尾的分号及注释后, 按 {@link #appendLimitString(String, int, int)} 追加分页子句
+	 */
 	@Override
 	public String getLimitString(String sql, int offset, int limit) {
-		return null;
+		return appendLimitString(SqlLexer.trimEnd(sql, supportsHashComments()), offset, limit);
 	}
 
+	/**
+	 * 去掉原SQL末尾的分号及注释后, 按 {@link #appendPagingSql(String)} 追加分页子句
+	 */
 	@Override
 	public String getPagingSql(String origSql) {
+		return appendPagingSql(SqlLexer.trimEnd(origSql, supportsHashComments()));
+	}
+
+	/**
+	 * 在SQL末尾追加起始行及行数为常量的分页子句
+	 *
+	 * @param sql 已去掉末尾分号及注释的SQL
+	 * @return 分页SQL, 不支持时返回 null
+	 */
+	protected String appendLimitString(String sql, int offset, int limit) {
+		return null;
+	}
+
+	/**
+	 * 在SQL末尾追加以占位符表示起始行及行数的分页子句
+	 *
+	 * @param sql 已去掉末尾分号及注释的SQL
+	 * @return 分页SQL, 不支持时返回 null
+	 */
+	protected String appendPagingSql(String sql) {
 		return null;
 	}
 
@@ -46,4 +90,305 @@ public abstract class AbstractDialect implements Dialect {
 	public BoundSql getPagingBoundSql(Configuration configuration, BoundSql boundSql) {
 		return null;
 	}
+
+	@Override
+	public boolean supportsHashComments() {
+		return false;
+	}
+
+	@Override
+	public boolean supportsKeyset() {
+		return false;
+	}
+
+	@Override
+	public BoundSql getKeysetBoundSql(Configuration configuration, BoundSql boundSql, Keyset keyset) {
+		return null;
+	}
+
+	@Override
+	public int getStreamingFetchSize() {
+		return DEFAULT_STREAMING_FETCH_SIZE;
+	}
+
+	@Override
+	public BoundSql getDeferredJoinBoundSql(Configuration configuration, BoundSql boundSql, String primaryKey) {
+		return null;
+	}
+
+	@Override
+	public BoundSql getWindowCountBoundSql(Configuration configuration, BoundSql boundSql) {
+		return null;
+	}
+
+	@Override
+	public BoundSql getFoundRowsBoundSql(Configuration configuration, BoundSql boundSql) {
+		return null;
+	}
+
+	@Override
+	public String getFoundRowsSql() {
+		return null;
+	}
+
+	@Override
+	public String getEstimatedCountSql(String countSql) {
+		return null;
+	}
+
+	@Override
+	public long getEstimatedCount(ResultSet resultSet) throws SQLException {
+		return PagingConsts.UNKNOWN_TOTAL;
+	}
+
+	@Override
+	public String getTableRowsSql() {
+		return null;
+	}
+
+	/**
+	 * 在查询列表末尾加入 count(*) over() 列. DISTINCT、LIMIT 等语句加入窗口函数后总数不正确, 返回 null
+	 */
+	protected BoundSql addWindowCountColumn(Configuration configuration, BoundSql boundSql) {
+		ParsedSelect select = ParsedSelect.parse(boundSql.getSql(), supportsHashComments());
+		BoundSqlBuilder builder = new BoundSqlBuilder(configuration, select, boundSql);
+		if (select == null || !builder.isAligned() || !select.hasClause(Clause.FROM) || select.isDistinct()
+				|| select.hasClause(Clause.LIMIT)) {
+			return null;
+		}
+		int fromStart = select.getClauseStart(Clause.FROM);
+		builder.copy(0, fromStart).append(", count(*) over() as " + PagingConsts.WINDOW_TOTAL_COLUMN + " ")
+				.copy(fromStart, select.getEnd());
+		return builder.build(boundSql.getParameterObject());
+	}
+
+	/**
+	 * 在原SQL末尾追加分页子句
+	 */
+	protected BoundSql addLimitClause(Configuration configuration, BoundSql boundSql) {
+		BoundSqlBuilder builder = new BoundSqlBuilder(configuration, null, boundSql);
+		builder.append(SqlLexer.trimEnd(boundSql.getSql(), supportsHashComments()), boundSql.getParameterMappings());
+		appendLimit(builder, true);
+		return builder.build(boundSql.getParameterObject());
+	}
+
+	/**
+	 * 分页起始行参数
+	 */
+	protected static ParameterMapping newOffsetMapping(Configuration configuration) {
+		return new ParameterMapping.Builder(configuration, PagingConsts.PAGE_OFFSET, Integer.class).build();
+	}
+
+	/**
+	 * 本次读取行数参数
+	 */
+	protected static ParameterMapping newLimitMapping(Configuration configuration) {
+		return new ParameterMapping.Builder(configuration, PagingConsts.PAGE_LIMIT, Integer.class).build();
+	}
+
+	/**
+	 * 追加分页子句, 供SQL改写使用.
+	 * <p>
+	 * 默认追加 {@link #getPagingSql(String)} 在SQL末尾加入的分页子句, 其中的两个占位符依次为起始行和读取行数
+	 * (同 MySQL 的 limit ?, ?), 直接取一页时起始行为 0. 分页子句不在末尾或占位符顺序不同的方言需要覆盖
+	 *
+	 * @param builder 改写中的SQL
+	 * @param withOffset true: 跳过 offset 条后取一页, false: 直接取一页
+	 */
+	protected void appendLimit(BoundSqlBuilder builder, boolean withOffset) {
+		String pagingSql = getPagingSql("");
+		if (pagingSql == null) {
+			throw new UnsupportedOperationException(getClass().getName() + " does not support paging rewrite");
+		}
+		Configuration configuration = builder.getConfiguration();
+		if (withOffset) {
+			builder.append(pagingSql, newOffsetMapping(configuration), newLimitMapping(configuration));
+		}
+		else {
+			builder.append(pagingSql.replaceFirst("\\?", "0"), newLimitMapping(configuration));
+		}
+	}
+
+	/**
+	 * 是否支持 (a, b) &gt; (?, ?) 形式的行值比较
+	 */
+	protected boolean supportsRowValueComparison() {
+		return false;
+	}
+
+	/**
+	 * keyset 分页改写. 简单查询直接在 WHERE 中加入排序键条件并替换 ORDER BY,
+	 * 其他查询包装为子查询, 此时排序键只能引用子查询输出的列名.
+	 */
+	protected BoundSql rewriteKeyset(Configuration configuration, BoundSql boundSql, Keyset keyset) {
+		ParsedSelect select = ParsedSelect.parse(boundSql.getSql(), supportsHashComments());
+		BoundSqlBuilder builder = new BoundSqlBuilder(configuration, select, boundSql);
+		List<ParameterMapping> keyMappings = new ArrayList<>();
+		if (select != null && select.isSimple() && builder.isAligned()) {
+			int position = 0;
+			if (keyset.hasValues()) {
+				String predicate = getKeysetPredicate(configuration, keyset, true, keyMappings);
+				if (select.hasClause(Clause.WHERE)) {
+					int bodyStart = select.getClauseBodyStart(Clause.WHERE);
+					position = select.getClauseEnd(Clause.WHERE);
+					builder.copy(0, bodyStart).append(" " + predicate + " and (", keyMappings)
+							.copy(bodyStart, position).append(") ");
+				}
+				else {
+					position = select.getClauseEnd(Clause.FROM);
+					builder.copy(0, position).append(" where " + predicate + " ", keyMappings);
+				}
+			}
+			int orderByStart = select.hasClause(Clause.ORDER_BY) ? select.getClauseStart(Clause.ORDER_BY)
+					: select.getClauseEnd(select.hasClause(Clause.WHERE) ? Clause.WHERE : Clause.FROM);
+			int orderByEnd = select.hasClause(Clause.ORDER_BY) ? select.getClauseEnd(Clause.ORDER_BY)
+					: orderByStart;
+			builder.copy(position, orderByStart);
+			builder.append(" order by " + getKeysetOrderBy(keyset, true));
+			appendLimit(builder, !keyset.hasValues());
+			if (orderByEnd < select.getEnd()) {
+				builder.append(" ").copy(orderByEnd, select.getEnd());
+			}
+		}
+		else {
+			builder.append("select * from (" + SqlLexer.trimEnd(boundSql.getSql(), supportsHashComments()) + ") tmp_keyset",
+					boundSql.getParameterMappings());
+			if (keyset.hasValues()) {
+				String predicate = getKeysetPredicate(configuration, keyset, false, keyMappings);
+				builder.append(" where " + predicate, keyMappings);
+			}
+			builder.append(" order by " + getKeysetOrderBy(keyset, false));
+			appendLimit(builder, !keyset.hasValues());
+		}
+		return builder.build(boundSql.getParameterObject());
+	}
+
+	/**
+	 * 延迟关联分页改写. 只改写没有 JOIN 的单表简单查询, 如
+	 * <pre>
+	 * select * from user u where status = ? order by name
+	 * </pre>
+	 * 改写为
+	 * <pre>
+	 * select u.* from user u inner join (select u.id as tmp_deferred_key from user u where status = ?
+	 * order by name limit ?, ?) tmp_deferred on tmp_deferred.tmp_deferred_key = u.id order by name
+	 * </pre>
+	 * 子查询只读取主键, 可以使用覆盖索引; 主键列使用别名, 避免与外层查询未限定的列名冲突. ORDER BY 只能引用表的列, 不能引用查询列表中的别名.
+	 *
+	 * @return 改写后的查询, 语句不能改写时返回 null
+	 */
+	protected BoundSql rewriteDeferredJoin(Configuration configuration, BoundSql boundSql, String primaryKey) {
+		ParsedSelect select = ParsedSelect.parse(boundSql.getSql(), supportsHashComments());
+		BoundSqlBuilder builder = new BoundSqlBuilder(configuration, select, boundSql);
+		if (select == null || !select.isSimple() || !builder.isAligned() || !select.getJoins().isEmpty()
+				|| select.hasClause(Clause.LOCK)) {
+			return null;
+		}
+		int fromStart = select.getClauseBodyStart(Clause.FROM);
+		int fromEnd = select.getClauseEnd(Clause.FROM);
+		// FROM 中只能是 [库名.]表名 [[as] 别名], 以最后一个名称作为限定名
+		String qualifier = null;
+		for (SqlLexer.Token token : select.getTokens()) {
+			if (token.getStart() < fromStart || token.getEnd() > fromEnd) {
+				continue;
+			}
+			if (token.getType() == SqlLexer.TokenType.WORD || token.getType() == SqlLexer.TokenType.QUOTED_IDENTIFIER) {
+				qualifier = token.isKeyword("as") ? qualifier : token.getText();
+			}
+			else if (token.getType() != SqlLexer.TokenType.DOT) {
+				return null;
+			}
+		}
+		if (qualifier == null) {
+			return null;
+		}
+		int selectStart = select.getClauseBodyStart(Clause.SELECT);
+		int selectEnd = select.getClauseStart(Clause.FROM);
+		int end = select.getEnd();
+		String key = qualifier + "." + primaryKey;
+		if ("*".equals(boundSql.getSql().substring(selectStart, selectEnd).trim())) {
+			// 避免结果中多出子查询的主键列
+			builder.copy(0, selectStart).append(" " + qualifier + ".* ").copy(selectEnd, fromEnd);
+		}
+		else {
+			builder.copy(0, fromEnd);
+		}
+		builder.append(" inner join (select " + key + " as tmp_deferred_key from").copy(fromStart, end);
+		appendLimit(builder, true);
+		builder.append(") tmp_deferred on tmp_deferred.tmp_deferred_key = " + key);
+		if (select.hasClause(Clause.ORDER_BY)) {
+			builder.append(" ").copy(select.getClauseStart(Clause.ORDER_BY), select.getClauseEnd(Clause.ORDER_BY));
+		}
+		return builder.build(boundSql.getParameterObject());
+	}
+
+	/**
+	 * 生成排序键条件, 如 (a, b) &gt; (?, ?), 不支持行值比较或排序方向不一致时展开为
+	 * (a &gt; ? or (a = ? and b &gt; ?))
+	 */
+	protected String getKeysetPredicate(Configuration configuration, Keyset keyset, boolean qualified,
+			List<ParameterMapping> mappings) {
+		List<Keyset.Key> keys = keyset.getKeys();
+		boolean sameDirection = true;
+		for (Keyset.Key key : keys) {
+			sameDirection &= key.getDirection() == keys.get(0).getDirection();
+		}
+		StringBuilder predicate = new StringBuilder();
+		if (keys.size() > 1 && sameDirection && supportsRowValueComparison()) {
+			StringBuilder values = new StringBuilder();
+			predicate.append('(');
+			for (int i = 0; i < keys.size(); i++) {
+				if (i > 0) {
+					predicate.append(", ");
+					values.append(", ");
+				}
+				predicate.append(getKeyColumn(keys.get(i), qualified));
+				values.append('?');
+				mappings.add(newKeysetMapping(configuration, i));
+			}
+			predicate.append(") ").append(getComparator(keys.get(0))).append(" (").append(values).append(')');
+			return predicate.toString();
+		}
+		predicate.append('(');
+		for (int i = 0; i < keys.size(); i++) {
+			if (i > 0) {
+				predicate.append(" or ");
+			}
+			predicate.append('(');
+			for (int j = 0; j < i; j++) {
+				predicate.append(getKeyColumn(keys.get(j), qualified)).append(" = ? and ");
+				mappings.add(newKeysetMapping(configuration, j));
+			}
+			predicate.append(getKeyColumn(keys.get(i), qualified)).append(' ').append(getComparator(keys.get(i)))
+					.append(" ?)");
+			mappings.add(newKeysetMapping(configuration, i));
+		}
+		return predicate.append(')').toString();
+	}
+
+	protected String getKeysetOrderBy(Keyset keyset, boolean qualified) {
+		StringBuilder orderBy = new StringBuilder();
+		for (Keyset.Key key : keyset.getKeys()) {
+			if (orderBy.length() > 0) {
+				orderBy.append(", ");
+			}
+			orderBy.append(getKeyColumn(key, qualified)).append(' ')
+					.append(key.getDirection() == Sort.Direction.ASC ? "asc" : "desc");
+		}
+		return orderBy.toString();
+	}
+
+	private static String getKeyColumn(Keyset.Key key, boolean qualified) {
+		String column = key.getColumn();
+		return qualified ? column : column.substring(column.lastIndexOf('.') + 1);
+	}
+
+	private static String getComparator(Keyset.Key key) {
+		return key.getDirection() == Sort.Direction.ASC ? ">" : "<";
+	}
+
+	private static ParameterMapping newKeysetMapping(Configuration configuration, int index) {
+		return new ParameterMapping.Builder(configuration, PagingConsts.KEYSET_VALUES + "[" + index + "]",
+				Object.class).build();
+	}
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.db;
+
+import net.sephy.mybatis.dialect.Dialect;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按数据库产品选择方言.
+ * <p>
+ * 第一次在某个 DataSource 上分页时读取连接的 DatabaseMetaData 识别数据库, 结果按 DataSource 缓存,
+ * 同一个分页插件可以同时用于连接不同数据库的多个 Environment.
+ */
+public class DialectResolver {
+
+	private static final Log LOG = LogFactory.getLog(DialectResolver.class);
+
+	private final ConcurrentMap<DataSource, Dialect> dialects = new ConcurrentHashMap<>();
+
+	/**
+	 * 按名称创建方言
+	 *
+	 * @param name mysql, mariadb, postgresql, oracle, sqlserver, h2 或方言的类名
+	 * @return 方言, 名称无法识别时返回 null
+	 */
+	public static Dialect forName(String name) {
+		String lower = name.trim().toLowerCase();
+		switch (lower) {
+		case "mysql":
+		case "mariadb":
+			return new MySQLDialect();
+		case "postgresql":
+		case "postgres":
+			return new PostgreSQLDialect();
+		case "oracle":
+			return new OracleDialect();
+		case "sqlserver":
+			return new SQLServerDialect();
+		case "h2":
+			return new H2Dialect();
+		default:
+			if (lower.indexOf('.') < 0) {
+				return null;
+			}
+			try {
+				return (Dialect) Class.forName(name.trim()).getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | ClassCastException e) {
+				throw new RuntimeException("mybatis dialect error: " + name, e);
+			}
+		}
+	}
+
+	/**
+	 * 取得 DataSource 对应的方言, 未识别过时按连接的数据库产品识别
+	 *
+	 * @param dataSource 缓存的键
+	 * @param connection 该 DataSource 的连接
+	 */
+	public Dialect resolve(DataSource dataSource, Connection connection) throws SQLException {
+		Dialect dialect = dialects.get(dataSource);
+		if (dialect == null) {
+			dialect = detect(connection.getMetaData());
+			Dialect existing = dialects.putIfAbsent(dataSource, dialect);
+			if (existing != null) {
+				dialect = existing;
+			}
+		}
+		return dialect;
+	}
+
+	/**
+	 * 按数据库产品及版本选择方言
+	 */
+	public static Dialect detect(DatabaseMetaData metaData) throws SQLException {
+		String product = metaData.getDatabaseProductName();
+		String name = product == null ? "" : product.toLowerCase();
+		int version = metaData.getDatabaseMajorVersion();
+		Dialect dialect;
+		if (name.contains("mysql") || name.contains("mariadb")) {
+			dialect = new MySQLDialect();
+		}
+		else if (name.contains("postgresql")) {
+			dialect = new PostgreSQLDialect();
+		}
+		else if (name.contains("oracle") && version >= 12) {
+			dialect = new OracleDialect();
+		}
+		else if (name.contains("sql server") && version >= 11) {
+			dialect = new SQLServerDialect();
+		}
+		else if (name.equals("h2")) {
+			dialect = new H2Dialect();
+		}
+		else {
+			throw new RuntimeException("mybatis dialect error: unsupported database " + product + " " + version
+					+ ", configure the dialect property explicitly.");
+		}
+		LOG.debug("Detected paging dialect " + dialect.getClass().getSimpleName() + " for " + product + " "
+				+ version);
+		return dialect;
+	}
+
+	public void clear() {
+		dialects.clear();
+	}
+}
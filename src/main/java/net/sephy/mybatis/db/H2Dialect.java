@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.db;
+
+import net.sephy.mybatis.interceptor.BoundSqlBuilder;
+import net.sephy.mybatis.util.Keyset;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * H2方言的实现, 使用 limit ? offset ? 分页
+ */
+public class H2Dialect extends AbstractDialect {
+
+	@Override
+	public boolean supportsLimit() {
+		return true;
+	}
+
+	@Override
+	protected String appendLimitString(String sql, int offset, int limit) {
+		return sql + " limit " + limit + (offset > 0 ? " offset " + offset : "");
+	}
+
+	@Override
+	protected String appendPagingSql(String sql) {
+		return sql + " limit ? offset ?";
+	}
+
+	@Override
+	public BoundSql getPagingBoundSql(Configuration configuration, BoundSql boundSql) {
+		return addLimitClause(configuration, boundSql);
+	}
+
+	@Override
+	public boolean supportsKeyset() {
+		return true;
+	}
+
+	@Override
+	public BoundSql getKeysetBoundSql(Configuration configuration, BoundSql boundSql, Keyset keyset) {
+		return rewriteKeyset(configuration, boundSql, keyset);
+	}
+
+	@Override
+	public BoundSql getWindowCountBoundSql(Configuration configuration, BoundSql boundSql) {
+		return addWindowCountColumn(configuration, boundSql);
+	}
+
+	@Override
+	protected boolean supportsRowValueComparison() {
+		return true;
+	}
+
+	@Override
+	protected void appendLimit(BoundSqlBuilder builder, boolean withOffset) {
+		Configuration configuration = builder.getConfiguration();
+		if (withOffset) {
+			builder.append(" limit ? offset ?", newLimitMapping(configuration), newOffsetMapping(configuration));
+		}
+		else {
+			builder.append(" limit ?", newLimitMapping(configuration));
+		}
+	}
+}
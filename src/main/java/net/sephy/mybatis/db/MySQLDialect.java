@@ -16,12 +16,16 @@
 
 package net.sephy.mybatis.db;
 
-import net.sephy.mybatis.interceptor.PagingConsts;
+import net.sephy.mybatis.interceptor.BoundSqlBuilder;
+import net.sephy.mybatis.interceptor.SqlLexer;
+import net.sephy.mybatis.util.Keyset;
+import net.sephy.mybatis.util.PagingConsts;
 import org.apache.ibatis.mapping.BoundSql;
-import org.apache.ibatis.mapping.ParameterMapping;
 import org.apache.ibatis.session.Configuration;
 
-import java.util.ArrayList;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.List;
 
 /**
@@ -34,7 +38,7 @@ import java.util.List;
 public class MySQLDialect extends AbstractDialect {
 
 	@Override
-	public String getLimitString(String sql, int offset, int limit) {
+	protected String appendLimitString(String sql, int offset, int limit) {
 		return getLimitString(sql, offset, Integer.toString(offset), Integer.toString(limit));
 	}
 
@@ -42,6 +46,14 @@ public class MySQLDialect extends AbstractDialect {
 		return true;
 	}
 
+	/**
+	 * MySQL 中 # 开始单行注释
+	 */
+	@Override
+	public boolean supportsHashComments() {
+		return true;
+	}
+
 	/**
 	 * 将sql变成分页sql语句,提供将offset及limit使用占位符号(placeholder)替换.
 	 * 
@@ -59,7 +71,7 @@ public class MySQLDialect extends AbstractDialect {
 	 */
 	public String getLimitString(String sql, int offset, String offsetPlaceholder,
 			String limitPlaceholder) {
-		StringBuilder stringBuilder = new StringBuilder(sql);
+		StringBuilder stringBuilder = new StringBuilder(SqlLexer.trimEnd(sql, true));
 		stringBuilder.append(" limit ");
 		if (offset > 0) {
 			stringBuilder.append(offsetPlaceholder).append(",").append(limitPlaceholder);
@@ -71,19 +83,151 @@ public class MySQLDialect extends AbstractDialect {
 	}
 
 	@Override
-	public String getPagingSql(String origSql) {
-		return new StringBuilder(origSql).append(" limit ? , ?").toString();
+	protected String appendPagingSql(String sql) {
+		return sql + " limit ?, ?";
 	}
 
 	@Override
 	public BoundSql getPagingBoundSql(Configuration configuration, BoundSql boundSql) {
-		String pageSql = getPagingSql(boundSql.getSql());
-		List<ParameterMapping> parameterMappings = new ArrayList<>(boundSql.getParameterMappings());
-		parameterMappings.add(new ParameterMapping.Builder(configuration, PagingConsts.PAGE_OFFSET,
-				Integer.class).build());
-		parameterMappings.add(new ParameterMapping.Builder(configuration, PagingConsts.PAGE_SIZE,
-				Integer.class).build());
-		return new BoundSql(configuration, pageSql, parameterMappings,
-				boundSql.getParameterObject());
+		return addLimitClause(configuration, boundSql);
+	}
+
+	@Override
+	public boolean supportsKeyset() {
+		return true;
+	}
+
+	/**
+	 * 生成 keyset 分页SQL, 如
+	 * <pre>
+	 * select * from user where (name, id) &gt; (?, ?) and (status = ?) order by name asc, id asc limit ?
+	 * </pre>
+	 */
+	@Override
+	public BoundSql getKeysetBoundSql(Configuration configuration, BoundSql boundSql, Keyset keyset) {
+		return rewriteKeyset(configuration, boundSql, keyset);
+	}
+
+	/**
+	 * Connector/J 只有 fetchSize 为 Integer.MIN_VALUE 时逐行读取, 否则缓存整个结果集
+	 */
+	@Override
+	public int getStreamingFetchSize() {
+		return Integer.MIN_VALUE;
+	}
+
+	/**
+	 * 延迟关联分页, 深分页时子查询只通过主键(覆盖索引)跳过 offset 行, 见 {@link #rewriteDeferredJoin}
+	 */
+	@Override
+	public BoundSql getDeferredJoinBoundSql(Configuration configuration, BoundSql boundSql, String primaryKey) {
+		return rewriteDeferredJoin(configuration, boundSql, primaryKey);
+	}
+
+	/**
+	 * MySQL 8 窗口函数, 如
+	 * <pre>
+	 * select *, count(*) over() as tmp_paging_total from user where status = ? limit ?, ?
+	 * </pre>
+	 */
+	@Override
+	public BoundSql getWindowCountBoundSql(Configuration configuration, BoundSql boundSql) {
+		return addWindowCountColumn(configuration, boundSql);
+	}
+
+	/**
+	 * MySQL 5.x: select SQL_CALC_FOUND_ROWS ... limit ?, ? 之后执行 select FOUND_ROWS()
+	 */
+	@Override
+	public BoundSql getFoundRowsBoundSql(Configuration configuration, BoundSql boundSql) {
+		List<SqlLexer.Token> tokens = SqlLexer.tokenize(boundSql.getSql(), true);
+		if (tokens.isEmpty() || !tokens.get(0).isKeyword("select")) {
+			return null;
+		}
+		String sql = boundSql.getSql();
+		int end = tokens.get(0).getEnd();
+		return new BoundSql(configuration, sql.substring(0, end) + " SQL_CALC_FOUND_ROWS" + sql.substring(end),
+				boundSql.getParameterMappings(), boundSql.getParameterObject());
+	}
+
+	@Override
+	public String getFoundRowsSql() {
+		return "select FOUND_ROWS()";
+	}
+
+	@Override
+	public String getEstimatedCountSql(String countSql) {
+		return "explain " + countSql;
+	}
+
+	/**
+	 * 按执行计划估算结果行数: 外层查询各表的 rows * filtered / 100 相乘
+	 */
+	@Override
+	public long getEstimatedCount(ResultSet resultSet) throws SQLException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		int idColumn = 0, rowsColumn = 0, filteredColumn = 0;
+		for (int i = 1; i <= metaData.getColumnCount(); i++) {
+			String label = metaData.getColumnLabel(i);
+			if ("id".equalsIgnoreCase(label)) {
+				idColumn = i;
+			}
+			else if ("rows".equalsIgnoreCase(label)) {
+				rowsColumn = i;
+			}
+			else if ("filtered".equalsIgnoreCase(label)) {
+				filteredColumn = i;
+			}
+		}
+		if (rowsColumn == 0) {
+			return PagingConsts.UNKNOWN_TOTAL;
+		}
+		double estimate = 1;
+		boolean estimated = false;
+		boolean first = true;
+		String firstId = null;
+		while (resultSet.next()) {
+			String id = idColumn > 0 ? resultSet.getString(idColumn) : null;
+			if (first) {
+				firstId = id;
+				first = false;
+			}
+			else if (id == null ? firstId != null : !id.equals(firstId)) {
+				break;
+			}
+			long rows = resultSet.getLong(rowsColumn);
+			if (resultSet.wasNull()) {
+				continue;
+			}
+			double filtered = filteredColumn > 0 ? resultSet.getDouble(filteredColumn) : 100;
+			if (filteredColumn > 0 && resultSet.wasNull()) {
+				filtered = 100;
+			}
+			estimate *= rows * filtered / 100;
+			estimated = true;
+		}
+		return estimated ? Math.round(estimate) : PagingConsts.UNKNOWN_TOTAL;
+	}
+
+	@Override
+	public String getTableRowsSql() {
+		return "select TABLE_ROWS from information_schema.TABLES where TABLE_SCHEMA = ifnull(?, database())"
+				+ " and TABLE_NAME = ?";
+	}
+
+	@Override
+	protected boolean supportsRowValueComparison() {
+		return true;
+	}
+
+	@Override
+	protected void appendLimit(BoundSqlBuilder builder, boolean withOffset) {
+		Configuration configuration = builder.getConfiguration();
+		if (withOffset) {
+			builder.append(" limit ?, ?", newOffsetMapping(configuration), newLimitMapping(configuration));
+		}
+		else {
+			builder.append(" limit ?", newLimitMapping(configuration));
+		}
 	}
 }
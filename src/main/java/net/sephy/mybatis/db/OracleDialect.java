@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.db;
+
+import net.sephy.mybatis.interceptor.BoundSqlBuilder;
+import net.sephy.mybatis.interceptor.ParsedSelect;
+import net.sephy.mybatis.interceptor.ParsedSelect.Clause;
+import net.sephy.mybatis.util.Keyset;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * Oracle 12c 及以上版本方言的实现, 使用 offset ? rows fetch next ? rows only 分页
+ */
+public class OracleDialect extends AbstractDialect {
+
+	@Override
+	public boolean supportsLimit() {
+		return true;
+	}
+
+	@Override
+	protected String appendLimitString(String sql, int offset, int limit) {
+		return sql + " offset " + offset + " rows fetch next " + limit + " rows only";
+	}
+
+	@Override
+	protected String appendPagingSql(String sql) {
+		return sql + " offset ? rows fetch next ? rows only";
+	}
+
+	@Override
+	public BoundSql getPagingBoundSql(Configuration configuration, BoundSql boundSql) {
+		return addLimitClause(configuration, boundSql);
+	}
+
+	@Override
+	public boolean supportsKeyset() {
+		return true;
+	}
+
+	@Override
+	public BoundSql getKeysetBoundSql(Configuration configuration, BoundSql boundSql, Keyset keyset) {
+		return rewriteKeyset(configuration, boundSql, keyset);
+	}
+
+	/**
+	 * Oracle 不允许 select *, 其他列 的写法, 查询列表只有 * 时不加入窗口函数列
+	 */
+	@Override
+	public BoundSql getWindowCountBoundSql(Configuration configuration, BoundSql boundSql) {
+		ParsedSelect select = ParsedSelect.parse(boundSql.getSql(), supportsHashComments());
+		if (select == null || !select.hasClause(Clause.FROM) || "*".equals(boundSql.getSql()
+				.substring(select.getClauseBodyStart(Clause.SELECT), select.getClauseStart(Clause.FROM)).trim())) {
+			return null;
+		}
+		return addWindowCountColumn(configuration, boundSql);
+	}
+
+	@Override
+	protected void appendLimit(BoundSqlBuilder builder, boolean withOffset) {
+		Configuration configuration = builder.getConfiguration();
+		if (withOffset) {
+			builder.append(" offset ? rows fetch next ? rows only", newOffsetMapping(configuration),
+					newLimitMapping(configuration));
+		}
+		else {
+			builder.append(" fetch first ? rows only", newLimitMapping(configuration));
+		}
+	}
+}
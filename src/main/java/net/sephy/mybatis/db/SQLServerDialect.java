@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.db;
+
+import net.sephy.mybatis.interceptor.BoundSqlBuilder;
+import net.sephy.mybatis.interceptor.SqlLexer;
+import net.sephy.mybatis.util.Keyset;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.session.Configuration;
+
+import java.util.List;
+
+/**
+ * SQL Server 2012 及以上版本方言的实现, 使用 offset ? rows fetch next ? rows only 分页.
+ * OFFSET 必须跟在 ORDER BY 之后, 原SQL没有排序时加入 order by (select null)
+ */
+public class SQLServerDialect extends AbstractDialect {
+
+	@Override
+	public boolean supportsLimit() {
+		return true;
+	}
+
+	@Override
+	protected String appendLimitString(String sql, int offset, int limit) {
+		return sql + (hasOrderBy(sql) ? "" : " order by (select null)") + " offset " + offset
+				+ " rows fetch next " + limit + " rows only";
+	}
+
+	@Override
+	protected String appendPagingSql(String sql) {
+		return sql + (hasOrderBy(sql) ? "" : " order by (select null)") + " offset ? rows fetch next ? rows only";
+	}
+
+	@Override
+	public BoundSql getPagingBoundSql(Configuration configuration, BoundSql boundSql) {
+		return addLimitClause(configuration, boundSql);
+	}
+
+	@Override
+	public boolean supportsKeyset() {
+		return true;
+	}
+
+	@Override
+	public BoundSql getKeysetBoundSql(Configuration configuration, BoundSql boundSql, Keyset keyset) {
+		return rewriteKeyset(configuration, boundSql, keyset);
+	}
+
+	@Override
+	public BoundSql getWindowCountBoundSql(Configuration configuration, BoundSql boundSql) {
+		return addWindowCountColumn(configuration, boundSql);
+	}
+
+	@Override
+	protected void appendLimit(BoundSqlBuilder builder, boolean withOffset) {
+		Configuration configuration = builder.getConfiguration();
+		if (!hasOrderBy(builder.getSql())) {
+			builder.append(" order by (select null)");
+		}
+		if (withOffset) {
+			builder.append(" offset ? rows fetch next ? rows only", newOffsetMapping(configuration),
+					newLimitMapping(configuration));
+		}
+		else {
+			builder.append(" offset 0 rows fetch next ? rows only", newLimitMapping(configuration));
+		}
+	}
+
+	/**
+	 * 顶层是否有 ORDER BY
+	 */
+	private static boolean hasOrderBy(String sql) {
+		List<SqlLexer.Token> tokens = SqlLexer.tokenize(sql);
+		for (int i = 0; i + 1 < tokens.size(); i++) {
+			if (tokens.get(i).getDepth() == 0 && tokens.get(i).isKeyword("order")
+					&& tokens.get(i + 1).isKeyword("by")) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -16,9 +16,13 @@
 
 package net.sephy.mybatis.dialect;
 
+import net.sephy.mybatis.util.Keyset;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.session.Configuration;
 
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
 /**
  * 类似hibernate的Dialect,但只精简出分页部分
  *
@@ -54,4 +58,93 @@ public interface Dialect {
 	String getPagingSql(String origSql);
 
 	BoundSql getPagingBoundSql(Configuration configuration, BoundSql orgiSql);
+
+	/**
+	 * # 是否开始单行注释(如 MySQL), 其他数据库中 # 是运算符, 改写SQL时据此识别注释
+	 *
+	 * @return true：# 开始单行注释
+	 */
+	boolean supportsHashComments();
+
+	/**
+	 * 是否支持 keyset(seek) 分页
+	 *
+	 * @return true：支持
+	 */
+	boolean supportsKeyset();
+
+	/**
+	 * 生成 keyset 分页查询: 按排序键排序, 从 keyset 起始值之后取一页数据, 没有起始值时按 offset 取数据
+	 *
+	 * @param configuration 配置
+	 * @param boundSql 原查询语句
+	 * @param keyset 排序键及起始值
+	 * @return 分页查询的 BoundSql
+	 */
+	BoundSql getKeysetBoundSql(Configuration configuration, BoundSql boundSql, Keyset keyset);
+
+	/**
+	 * 延迟关联分页: 先只按主键分页, 再关联回原表读取这一页的整行数据, 深分页时不再读取被跳过的整行
+	 *
+	 * @param configuration 配置
+	 * @param boundSql 原查询语句
+	 * @param primaryKey 主键列名
+	 * @return 分页查询的 BoundSql, 数据库或语句不支持时返回 null
+	 */
+	BoundSql getDeferredJoinBoundSql(Configuration configuration, BoundSql boundSql, String primaryKey);
+
+	/**
+	 * 流式读取全部结果时使用的 fetchSize, 使驱动逐批(或逐行)读取而不是缓存整个结果集
+	 *
+	 * @return fetchSize, 如 MySQL 的 Integer.MIN_VALUE. PostgreSQL 驱动只有在非自动提交的事务中才按 fetchSize 使用游标
+	 */
+	int getStreamingFetchSize();
+
+	/**
+	 * 在查询列表末尾加入 count(*) over() 窗口函数列, 分页查询的同时返回总记录数
+	 *
+	 * @param configuration 配置
+	 * @param boundSql 原查询语句
+	 * @return 加入总记录数列的查询, 数据库或语句不支持时返回 null
+	 */
+	BoundSql getWindowCountBoundSql(Configuration configuration, BoundSql boundSql);
+
+	/**
+	 * 在查询中加入 SQL_CALC_FOUND_ROWS, 分页查询后通过 {@link #getFoundRowsSql()} 读取总记录数
+	 *
+	 * @param configuration 配置
+	 * @param boundSql 原查询语句
+	 * @return 改写后的查询, 数据库或语句不支持时返回 null
+	 */
+	BoundSql getFoundRowsBoundSql(Configuration configuration, BoundSql boundSql);
+
+	/**
+	 * 读取上一次 SQL_CALC_FOUND_ROWS 查询总记录数的SQL
+	 *
+	 * @return SQL, 不支持时返回 null
+	 */
+	String getFoundRowsSql();
+
+	/**
+	 * 读取优化器估算行数的SQL, 如 MySQL 的 explain
+	 *
+	 * @param countSql count SQL
+	 * @return 估算SQL, 参数与 count SQL 相同, 不支持时返回 null
+	 */
+	String getEstimatedCountSql(String countSql);
+
+	/**
+	 * 从 {@link #getEstimatedCountSql(String)} 的查询结果中读取估算的记录数
+	 *
+	 * @param resultSet 估算SQL的查询结果
+	 * @return 估算的记录数, 无法估算时返回 -1
+	 */
+	long getEstimatedCount(ResultSet resultSet) throws SQLException;
+
+	/**
+	 * 从表统计信息读取整表记录数的SQL, 依次绑定库名(可以为 null, 表示当前库)和表名两个参数
+	 *
+	 * @return SQL, 不支持时返回 null
+	 */
+	String getTableRowsSql();
 }
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按语句自适应选择总记录数的获取策略.
+ * <p>
+ * 记录每条语句 count 查询耗时的指数加权移动平均(EWMA), 平均耗时超过各策略的阈值时降级为代价更低的策略
+ * ({@link CountStrategy#EXACT} → {@link CountStrategy#CACHED} → {@link CountStrategy#ESTIMATED} →
+ * {@link CountStrategy#NONE}), 平均耗时低于当前策略阈值的 {@link #RECOVERY_RATIO} 时恢复.
+ * 降级后每隔探测间隔执行一次精确的 count 查询, 以便在负载下降后恢复.
+ * <p>
+ * 通过 {@link #getStatistics()} 可以查看每条语句当前的策略及原因, 通过 {@link #pin(String, CountStrategy)}
+ * 可以手动固定某条语句的策略.
+ */
+public class AdaptiveCountPolicy {
+
+	/**
+	 * 平均耗时低于当前策略阈值的该比例时恢复到代价更高的策略, 避免在阈值附近反复切换
+	 */
+	public static final double RECOVERY_RATIO = 0.5;
+
+	/**
+	 * 默认 EWMA 平滑系数
+	 */
+	public static final double DEFAULT_ALPHA = 0.3;
+
+	/**
+	 * 默认开始调整策略前至少记录的 count 查询次数, 避免冷启动时的个别慢查询导致降级
+	 */
+	public static final int DEFAULT_MIN_SAMPLES = 5;
+
+	/**
+	 * 默认探测间隔(毫秒)
+	 */
+	public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 60000;
+
+	private final ConcurrentMap<String, StatementStatistics> statistics = new ConcurrentHashMap<>();
+
+	private final long[] thresholdMillis = new long[CountStrategy.values().length];
+
+	private double alpha = DEFAULT_ALPHA;
+
+	private long probeIntervalMillis = DEFAULT_PROBE_INTERVAL_MILLIS;
+
+	private int minSamples = DEFAULT_MIN_SAMPLES;
+
+	/**
+	 * @param cachedMillis 平均耗时超过该值时使用缓存的总记录数, 小于等于0表示不使用该策略
+	 * @param estimatedMillis 平均耗时超过该值时使用估算的总记录数, 小于等于0表示不使用该策略
+	 * @param noneMillis 平均耗时超过该值时不查询总记录数, 小于等于0表示不使用该策略
+	 */
+	public AdaptiveCountPolicy(long cachedMillis, long estimatedMillis, long noneMillis) {
+		thresholdMillis[CountStrategy.CACHED.ordinal()] = cachedMillis;
+		thresholdMillis[CountStrategy.ESTIMATED.ordinal()] = estimatedMillis;
+		thresholdMillis[CountStrategy.NONE.ordinal()] = noneMillis;
+	}
+
+	/**
+	 * 选择本次查询使用的策略, 到达探测时间时返回 {@link CountStrategy#EXACT}
+	 *
+	 * @param statementId 语句 id
+	 */
+	public CountStrategy choose(String statementId) {
+		StatementStatistics stats = statistics.get(statementId);
+		if (stats == null) {
+			return CountStrategy.EXACT;
+		}
+		return stats.choose(probeIntervalMillis);
+	}
+
+	/**
+	 * 记录一次精确 count 查询的耗时, 并据此调整策略
+	 *
+	 * @param statementId 语句 id
+	 * @param elapsedNanos 耗时(纳秒)
+	 */
+	public void record(String statementId, long elapsedNanos) {
+		StatementStatistics stats = getOrCreate(statementId);
+		synchronized (stats) {
+			double millis = elapsedNanos / 1000000.0;
+			stats.averageMillis = stats.samples == 0 ? millis : alpha * millis + (1 - alpha) * stats.averageMillis;
+			stats.samples++;
+			stats.lastMillis = millis;
+			if (!stats.pinned && stats.samples >= minSamples) {
+				adjust(stats);
+			}
+		}
+	}
+
+	private void adjust(StatementStatistics stats) {
+		CountStrategy current = stats.strategy;
+		// 降级: 选择平均耗时超过其阈值的代价最低的策略
+		CountStrategy target = CountStrategy.EXACT;
+		for (CountStrategy strategy : CountStrategy.values()) {
+			long threshold = thresholdMillis[strategy.ordinal()];
+			if (threshold > 0 && stats.averageMillis > threshold) {
+				target = strategy;
+			}
+		}
+		if (target.ordinal() > current.ordinal()) {
+			change(stats, target, String.format("average count time %.1fms > %s threshold %dms",
+					stats.averageMillis, target, thresholdMillis[target.ordinal()]));
+			return;
+		}
+		// 恢复: 平均耗时明显低于当前策略的阈值
+		long currentThreshold = thresholdMillis[current.ordinal()];
+		if (target.ordinal() < current.ordinal() && stats.averageMillis < currentThreshold * RECOVERY_RATIO) {
+			change(stats, target, String.format("average count time %.1fms < %.0f%% of %s threshold %dms",
+					stats.averageMillis, RECOVERY_RATIO * 100, current, currentThreshold));
+		}
+	}
+
+	private static void change(StatementStatistics stats, CountStrategy strategy, String reason) {
+		stats.strategy = strategy;
+		stats.reason = reason;
+		stats.changeTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * 手动固定语句的策略, 之后不再自动调整
+	 */
+	public void pin(String statementId, CountStrategy strategy) {
+		StatementStatistics stats = getOrCreate(statementId);
+		synchronized (stats) {
+			stats.pinned = true;
+			change(stats, strategy, "pinned");
+		}
+	}
+
+	/**
+	 * 清除语句的统计数据, 恢复为 {@link CountStrategy#EXACT} 并重新自动调整
+	 */
+	public void reset(String statementId) {
+		statistics.remove(statementId);
+	}
+
+	/**
+	 * 各语句的统计数据快照, 按语句 id 排序
+	 */
+	public Map<String, Statistics> getStatistics() {
+		Map<String, Statistics> snapshot = new TreeMap<>();
+		for (Map.Entry<String, StatementStatistics> entry : statistics.entrySet()) {
+			StatementStatistics stats = entry.getValue();
+			synchronized (stats) {
+				snapshot.put(entry.getKey(), new Statistics(entry.getKey(), stats.strategy, stats.reason,
+						stats.pinned, stats.averageMillis, stats.lastMillis, stats.samples, stats.changeTime));
+			}
+		}
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	public double getAlpha() {
+		return alpha;
+	}
+
+	/**
+	 * @param alpha EWMA 平滑系数, 越大越偏重最近的耗时
+	 */
+	public void setAlpha(double alpha) {
+		this.alpha = alpha;
+	}
+
+	public long getProbeIntervalMillis() {
+		return probeIntervalMillis;
+	}
+
+	/**
+	 * @param probeIntervalMillis 降级后执行精确 count 查询探测耗时的间隔(毫秒)
+	 */
+	public void setProbeIntervalMillis(long probeIntervalMillis) {
+		this.probeIntervalMillis = probeIntervalMillis;
+	}
+
+	public int getMinSamples() {
+		return minSamples;
+	}
+
+	/**
+	 * @param minSamples 开始调整策略前至少记录的 count 查询次数
+	 */
+	public void setMinSamples(int minSamples) {
+		this.minSamples = minSamples;
+	}
+
+	private StatementStatistics getOrCreate(String statementId) {
+		StatementStatistics stats = statistics.get(statementId);
+		if (stats == null) {
+			StatementStatistics created = new StatementStatistics();
+			stats = statistics.putIfAbsent(statementId, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	private static final class StatementStatistics {
+
+		private CountStrategy strategy = CountStrategy.EXACT;
+
+		private String reason = "default";
+
+		private boolean pinned;
+
+		private double averageMillis;
+
+		private double lastMillis;
+
+		private long samples;
+
+		private long changeTime = System.currentTimeMillis();
+
+		private long probeTime;
+
+		synchronized CountStrategy choose(long probeIntervalMillis) {
+			if (strategy == CountStrategy.EXACT || pinned) {
+				return strategy;
+			}
+			long now = System.currentTimeMillis();
+			if (now - Math.max(changeTime, probeTime) >= probeIntervalMillis) {
+				probeTime = now;
+				return CountStrategy.EXACT;
+			}
+			return strategy;
+		}
+	}
+
+	/**
+	 * 语句的统计数据
+	 */
+	public static final class Statistics {
+
+		private final String statementId;
+
+		private final CountStrategy strategy;
+
+		private final String reason;
+
+		private final boolean pinned;
+
+		private final double averageMillis;
+
+		private final double lastMillis;
+
+		private final long samples;
+
+		private final long changeTime;
+
+		Statistics(String statementId, CountStrategy strategy, String reason, boolean pinned, double averageMillis,
+				double lastMillis, long samples, long changeTime) {
+			this.statementId = statementId;
+			this.strategy = strategy;
+			this.reason = reason;
+			this.pinned = pinned;
+			this.averageMillis = averageMillis;
+			this.lastMillis = lastMillis;
+			this.samples = samples;
+			this.changeTime = changeTime;
+		}
+
+		public String getStatementId() {
+			return statementId;
+		}
+
+		/**
+		 * 当前策略
+		 */
+		public CountStrategy getStrategy() {
+			return strategy;
+		}
+
+		/**
+		 * 最近一次切换策略的原因
+		 */
+		public String getReason() {
+			return reason;
+		}
+
+		public boolean isPinned() {
+			return pinned;
+		}
+
+		/**
+		 * count 查询耗时的 EWMA(毫秒)
+		 */
+		public double getAverageMillis() {
+			return averageMillis;
+		}
+
+		/**
+		 * 最近一次 count 查询的耗时(毫秒)
+		 */
+		public double getLastMillis() {
+			return lastMillis;
+		}
+
+		/**
+		 * 记录的 count 查询次数
+		 */
+		public long getSamples() {
+			return samples;
+		}
+
+		/**
+		 * 最近一次切换策略的时间(毫秒)
+		 */
+		public long getChangeTime() {
+			return changeTime;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %s (%s), avg=%.1fms, last=%.1fms, samples=%d", statementId, strategy, reason,
+					averageMillis, lastMillis, samples);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 基于已解析的SQL拼装新的 BoundSql.
+ * <p>
+ * 复制原SQL片段时同步复制片段中占位符对应的参数映射, 插入新的占位符时一并加入参数映射,
+ * 保证改写后参数的顺序与占位符一致.
+ */
+public class BoundSqlBuilder {
+
+	private final Configuration configuration;
+
+	private final ParsedSelect select;
+
+	private final List<ParameterMapping> originalMappings;
+
+	private final StringBuilder sql = new StringBuilder();
+
+	private final List<ParameterMapping> parameterMappings = new ArrayList<>();
+
+	/**
+	 * @param configuration 配置
+	 * @param select 原SQL的解析结果, 为 null 时只能追加新的片段
+	 * @param boundSql 原SQL
+	 */
+	public BoundSqlBuilder(Configuration configuration, ParsedSelect select, BoundSql boundSql) {
+		this.configuration = configuration;
+		this.select = select;
+		this.originalMappings = boundSql.getParameterMappings();
+	}
+
+	/**
+	 * 解析出的占位符个数与原参数映射个数是否一致, 不一致时不能按位置改写
+	 */
+	public boolean isAligned() {
+		return select != null && select.countParameters(0, select.getSql().length()) == originalMappings.size();
+	}
+
+	/**
+	 * 复制原SQL中 [start, end) 的片段
+	 */
+	public BoundSqlBuilder copy(int start, int end) {
+		if (start >= end) {
+			return this;
+		}
+		int from = select.countParameters(0, start);
+		int count = select.countParameters(start, end);
+		sql.append(select.getSql(), start, end);
+		parameterMappings.addAll(originalMappings.subList(from, from + count));
+		return this;
+	}
+
+	/**
+	 * 追加新的SQL片段及其中占位符对应的参数映射
+	 */
+	public BoundSqlBuilder append(String text, ParameterMapping... mappings) {
+		return append(text, Arrays.asList(mappings));
+	}
+
+	public BoundSqlBuilder append(String text, List<ParameterMapping> mappings) {
+		sql.append(text);
+		parameterMappings.addAll(mappings);
+		return this;
+	}
+
+	public Configuration getConfiguration() {
+		return configuration;
+	}
+
+	public String getSql() {
+		return sql.toString();
+	}
+
+	public List<ParameterMapping> getParameterMappings() {
+		return parameterMappings;
+	}
+
+	public BoundSql build(Object parameterObject) {
+		return new BoundSql(configuration, sql.toString(), parameterMappings, parameterObject);
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 复制 BoundSql 的附加参数(foreach、bind 等动态SQL生成的参数).
+ * <p>
+ * BoundSql 没有公开附加参数, 改写SQL后新建的 BoundSql 需要共用原 BoundSql 的 additionalParameters 及
+ * metaParameters, 否则 foreach 参数失效. 字段访问在类加载时解析为 MethodHandle, 之后每次复制只是两次字段读写;
+ * MyBatis 版本中不存在的字段跳过.
+ */
+public final class BoundSqlCopier {
+
+	private static final Log LOG = LogFactory.getLog(BoundSqlCopier.class);
+
+	private static final MethodHandle[] ADDITIONAL_PARAMETERS = findAccessors("additionalParameters");
+
+	private static final MethodHandle[] META_PARAMETERS = findAccessors("metaParameters");
+
+	private BoundSqlCopier() {
+	}
+
+	/**
+	 * 使用改写后的SQL及参数映射新建 BoundSql, 并共用原 BoundSql 的附加参数
+	 */
+	public static BoundSql copy(Configuration configuration, BoundSql boundSql, String sql,
+			List<ParameterMapping> parameterMappings) {
+		BoundSql copy = new BoundSql(configuration, sql, parameterMappings, boundSql.getParameterObject());
+		copyAdditionalParameters(boundSql, copy);
+		return copy;
+	}
+
+	/**
+	 * 使 target 共用 source 的附加参数
+	 */
+	public static void copyAdditionalParameters(BoundSql source, BoundSql target) {
+		try {
+			if (ADDITIONAL_PARAMETERS != null) {
+				ADDITIONAL_PARAMETERS[1].invokeExact(target, (Map<String, Object>) ADDITIONAL_PARAMETERS[0]
+						.invokeExact(source));
+			}
+			if (META_PARAMETERS != null) {
+				META_PARAMETERS[1].invokeExact(target, (MetaObject) META_PARAMETERS[0].invokeExact(source));
+			}
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException("Failed to copy additional parameters of BoundSql", e);
+		}
+	}
+
+	/**
+	 * 读取附加参数
+	 *
+	 * @return 附加参数, 当前 MyBatis 版本无法读取时返回 null
+	 */
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> getAdditionalParameters(BoundSql boundSql) {
+		if (ADDITIONAL_PARAMETERS == null) {
+			return null;
+		}
+		try {
+			return (Map<String, Object>) ADDITIONAL_PARAMETERS[0].invokeExact(boundSql);
+		}
+		catch (RuntimeException | Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException("Failed to read additional parameters of BoundSql", e);
+		}
+	}
+
+	/**
+	 * @return {getter, setter}, 字段不存在时返回 null
+	 */
+	private static MethodHandle[] findAccessors(String name) {
+		try {
+			Field field = BoundSql.class.getDeclaredField(name);
+			field.setAccessible(true);
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			MethodHandle getter = lookup.unreflectGetter(field);
+			MethodHandle setter = lookup.unreflectSetter(field);
+			Class<?> type = name.equals("metaParameters") ? MetaObject.class : Map.class;
+			return new MethodHandle[] {
+					getter.asType(getter.type().changeReturnType(type)),
+					setter.asType(setter.type().changeParameterType(1, type)) };
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			LOG.warn("BoundSql." + name + " is not accessible, additional parameters may be lost: " + e);
+			return null;
+		}
+	}
+}
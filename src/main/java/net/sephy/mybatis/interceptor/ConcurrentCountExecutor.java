@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 在独立连接上并发执行 count 查询的线程池.
+ * <p>
+ * count 查询从 Environment 的 DataSource (或路由策略指定的 DataSource)获取新连接执行, 与主连接上的分页查询同时进行.
+ * 线程数与等待队列长度都有上限, 线程池已满时返回 null, 由调用方在主连接上串行执行.
+ * 超时或取消时对正在执行的 count 语句调用 {@link java.sql.Statement#cancel()}, 使数据库停止执行;
+ * 提交时当前线程绑定了 {@link QueryCanceller} 的, count 查询随其一起取消.
+ */
+public class ConcurrentCountExecutor {
+
+	/**
+	 * 默认线程数
+	 */
+	public static final int DEFAULT_POOL_SIZE = 4;
+
+	/**
+	 * 默认等待 count 结果的毫秒数
+	 */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 3000;
+
+	private final ThreadPoolExecutor executor;
+
+	private final long timeoutMillis;
+
+	private ParameterBindingPlan.PlanCache bindingPlans;
+
+	/**
+	 * @param poolSize 线程数, 等待队列长度与之相同
+	 * @param timeoutMillis 等待 count 结果的毫秒数
+	 */
+	public ConcurrentCountExecutor(int poolSize, long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(poolSize), new CountThreadFactory());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * count 查询使用分页插件缓存的参数绑定计划
+	 */
+	void setBindingPlans(ParameterBindingPlan.PlanCache bindingPlans) {
+		this.bindingPlans = bindingPlans;
+	}
+
+	/**
+	 * 提交 count 查询, 在 Environment 的 DataSource 上执行
+	 *
+	 * @return count 结果, 线程池已满时返回 null
+	 */
+	public Future<Long> submit(MappedStatement mappedStatement, Object parameterObject, BoundSql boundSql,
+			String countSql, Log log) {
+		return submit(mappedStatement.getConfiguration().getEnvironment().getDataSource(), mappedStatement,
+				parameterObject, boundSql, countSql, log);
+	}
+
+	/**
+	 * 提交 count 查询, 在指定 DataSource 的新连接上执行, 查询后关闭连接
+	 *
+	 * @return count 结果, 线程池已满时返回 null
+	 */
+	public Future<Long> submit(final DataSource dataSource, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql, final Log log) {
+		final QueryCanceller canceller = new QueryCanceller();
+		final ParameterBindingPlan.PlanCache plans = bindingPlans;
+		// 分页查询可以取消时, count 查询随之取消
+		QueryCanceller parent = QueryCanceller.current();
+		CountTask task = new CountTask(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				QueryCanceller.bind(canceller);
+				try {
+					return SQLHelper.getCount(dataSource, mappedStatement, parameterObject, boundSql, countSql, log,
+							plans);
+				}
+				finally {
+					QueryCanceller.unbind();
+				}
+			}
+		}, canceller, parent);
+		if (parent != null) {
+			parent.link(canceller);
+		}
+		try {
+			executor.execute(task);
+			return task;
+		}
+		catch (RejectedExecutionException e) {
+			if (parent != null) {
+				parent.unlink(canceller);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * 等待 count 结果, 超时时取消正在执行的 count 语句
+	 *
+	 * @return 总记录数, 超时返回 null
+	 * @throws SQLException count 查询出错
+	 */
+	public Long await(Future<Long> future) throws SQLException, InterruptedException {
+		try {
+			return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e) {
+			future.cancel(true);
+			return null;
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new SQLException("count query failed", cause);
+		}
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * 关闭线程池, 正在执行的 count 查询不受影响
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * 取消时同时取消正在执行的 count 语句
+	 */
+	private static class CountTask extends FutureTask<Long> {
+
+		private final QueryCanceller canceller;
+
+		private final QueryCanceller parent;
+
+		CountTask(Callable<Long> callable, QueryCanceller canceller, QueryCanceller parent) {
+			super(callable);
+			this.canceller = canceller;
+			this.parent = parent;
+		}
+
+		@Override
+		protected void done() {
+			if (parent != null) {
+				parent.unlink(canceller);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				canceller.cancel();
+			}
+			return cancelled;
+		}
+	}
+
+	private static class CountThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+		private final int poolNumber = POOL_NUMBER.incrementAndGet();
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "paging-count-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
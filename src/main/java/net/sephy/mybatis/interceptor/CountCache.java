@@ -0,0 +1,449 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 总记录数缓存.
+ * <p>
+ * 以 (count SQL, 绑定的参数值) 为键缓存总记录数, 翻页时不再重复执行相同的 count 查询.
+ * 缓存项超过有效期后失效, 超出容量时淘汰最久未使用的缓存项. 执行 insert/update/delete 时,
+ * 同一命名空间或涉及相同表的缓存项全部失效; 在事务中执行时, 事务提交后再失效一次, 使事务未提交期间
+ * 其他会话缓存的旧总数失效. 有未提交写操作的会话不读写缓存.
+ * <p>
+ * 每次失效递增失效序号, 并记录各命名空间和表最近一次失效时的序号. 缓存键记录 count 查询开始时的序号,
+ * 写入时涉及的命名空间或表在此之后失效过, 说明 count 查询期间有写操作, 结果可能是旧的, 不写入缓存.
+ */
+public class CountCache {
+
+	/**
+	 * 默认最多缓存的总记录数个数
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	/**
+	 * 默认有效期(毫秒)
+	 */
+	public static final long DEFAULT_TTL_MILLIS = 60000;
+
+	// 与表名区分的命名空间前缀
+	private static final String NAMESPACE_PREFIX = "namespace:";
+
+	private static final Set<String> UPDATE_MODIFIERS = new HashSet<>(Arrays.asList("low_priority",
+			"high_priority", "delayed", "ignore", "quick", "only"));
+
+	private static final Set<String> CLAUSE_KEYWORDS = new HashSet<>(Arrays.asList("where", "join", "left",
+			"right", "inner", "outer", "full", "cross", "natural", "straight_join", "on", "using", "set", "values",
+			"value", "select", "group", "order", "having", "limit", "union", "window", "for", "lock"));
+
+	private final int maxSize;
+
+	private final long ttlMillis;
+
+	private final LinkedHashMap<Key, CachedCount> entries;
+
+	// 失效序号, 及各命名空间和表最近一次失效时的序号, 由 entries 的锁保护
+	private long epoch;
+
+	private final Map<String, Long> invalidatedAt = new HashMap<>();
+
+	private final ConcurrentMap<String, WriteTables> writeTables = new ConcurrentHashMap<>();
+
+	// 事务中有未提交写操作的会话, 及其写操作涉及的命名空间和表
+	private final Map<Executor, Map<String, Set<String>>> pendingWrites = Collections
+			.synchronizedMap(new WeakHashMap<Executor, Map<String, Set<String>>>());
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private ParameterBindingPlan.PlanCache bindingPlans;
+
+	public CountCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+	}
+
+	/**
+	 * @param maxSize 最多缓存的总记录数个数
+	 * @param ttlMillis 有效期(毫秒)
+	 */
+	public CountCache(final int maxSize, long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<Key, CachedCount>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedCount> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * 生成缓存键时使用分页插件缓存的参数绑定计划
+	 */
+	void setBindingPlans(ParameterBindingPlan.PlanCache bindingPlans) {
+		this.bindingPlans = bindingPlans;
+	}
+
+	/**
+	 * 生成本次 count 查询的缓存键
+	 *
+	 * @param mappedStatement 原始语句
+	 * @param boundSql 原始语句本次执行的SQL
+	 * @param countSql count SQL
+	 */
+	public Key newKey(MappedStatement mappedStatement, BoundSql boundSql, String countSql) {
+		long startEpoch;
+		synchronized (entries) {
+			startEpoch = epoch;
+		}
+		return new Key(getNamespace(mappedStatement), countSql,
+				SQLHelper.getParameterValues(mappedStatement, boundSql, boundSql.getParameterObject(), bindingPlans),
+				startEpoch);
+	}
+
+	/**
+	 * @return 缓存的总记录数, 不存在或已过期时返回 null
+	 */
+	public Long get(Key key) {
+		synchronized (entries) {
+			CachedCount entry = entries.get(key);
+			if (entry != null && entry.expiresAt - System.currentTimeMillis() > 0) {
+				hits.incrementAndGet();
+				return entry.count;
+			}
+			if (entry != null) {
+				entries.remove(key);
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * 写入总记录数, 生成缓存键之后涉及的命名空间或表已失效时不写入
+	 */
+	public void put(Key key, long count) {
+		if (maxSize < 1) {
+			return;
+		}
+		CachedCount entry = new CachedCount(count, System.currentTimeMillis() + ttlMillis, getTables(key.countSql));
+		synchronized (entries) {
+			if (isInvalidatedSince(NAMESPACE_PREFIX + key.namespace, key.epoch)) {
+				return;
+			}
+			for (String table : entry.tables) {
+				if (isInvalidatedSince(table, key.epoch)) {
+					return;
+				}
+			}
+			entries.put(key, entry);
+		}
+	}
+
+	private boolean isInvalidatedSince(String name, long since) {
+		Long invalidated = invalidatedAt.get(name);
+		return invalidated != null && invalidated > since;
+	}
+
+	/**
+	 * 语句执行 insert/update/delete 后, 使同一命名空间或涉及相同表的缓存项失效.
+	 * 在事务中执行时记录涉及的命名空间和表, 提交后再次失效.
+	 * 语句涉及的表按本次执行的SQL解析, SQL 与该语句上次执行时相同则复用上次的解析结果
+	 *
+	 * @param executor 执行语句的会话
+	 * @param mappedStatement 执行的语句
+	 * @param boundSql 本次执行的SQL
+	 */
+	public void invalidate(Executor executor, MappedStatement mappedStatement, BoundSql boundSql)
+			throws SQLException {
+		String sql = boundSql.getSql();
+		WriteTables tables = writeTables.get(mappedStatement.getId());
+		if (tables == null || !tables.sql.equals(sql)) {
+			tables = new WriteTables(sql, getTables(sql));
+			writeTables.put(mappedStatement.getId(), tables);
+		}
+		String namespace = getNamespace(mappedStatement);
+		invalidate(namespace, tables.tables);
+		if (!executor.getTransaction().getConnection().getAutoCommit()) {
+			synchronized (pendingWrites) {
+				Map<String, Set<String>> pending = pendingWrites.get(executor);
+				if (pending == null) {
+					pending = new HashMap<>();
+					pendingWrites.put(executor, pending);
+				}
+				Set<String> pendingTables = pending.get(namespace);
+				if (pendingTables == null) {
+					pendingTables = new HashSet<>();
+					pending.put(namespace, pendingTables);
+				}
+				pendingTables.addAll(tables.tables);
+			}
+		}
+	}
+
+	/**
+	 * 使同一命名空间或涉及指定表的缓存项失效
+	 *
+	 * @param mappedStatement 执行的语句
+	 * @param tables 语句涉及的表(小写)
+	 */
+	public void invalidate(MappedStatement mappedStatement, Set<String> tables) {
+		invalidate(getNamespace(mappedStatement), tables);
+	}
+
+	/**
+	 * 会话提交后, 使其写操作涉及的缓存项失效
+	 */
+	public void commit(Executor executor) {
+		Map<String, Set<String>> pending = pendingWrites.remove(executor);
+		if (pending != null) {
+			for (Map.Entry<String, Set<String>> e : pending.entrySet()) {
+				invalidate(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * 会话回滚或关闭后, 丢弃未提交的写操作
+	 */
+	public void rollback(Executor executor) {
+		pendingWrites.remove(executor);
+	}
+
+	/**
+	 * 会话是否有未提交的写操作, 有时不读写缓存
+	 */
+	public boolean hasPendingWrites(Executor executor) {
+		return pendingWrites.containsKey(executor);
+	}
+
+	private void invalidate(String namespace, Set<String> tables) {
+		synchronized (entries) {
+			epoch++;
+			invalidatedAt.put(NAMESPACE_PREFIX + namespace, epoch);
+			for (String table : tables) {
+				invalidatedAt.put(table, epoch);
+			}
+			for (Iterator<Map.Entry<Key, CachedCount>> it = entries.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<Key, CachedCount> e = it.next();
+				if (e.getKey().namespace.equals(namespace) || !Collections.disjoint(e.getValue().tables, tables)) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public boolean isEmpty() {
+		synchronized (entries) {
+			return entries.isEmpty();
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+		}
+	}
+
+	/**
+	 * 命中次数
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * 未命中次数
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private static String getNamespace(MappedStatement mappedStatement) {
+		String id = mappedStatement.getId();
+		int index = id.lastIndexOf('.');
+		return index < 0 ? id : id.substring(0, index);
+	}
+
+	/**
+	 * 取得SQL中 from/join/into/update 之后的表名(小写, 不含库名)
+	 */
+	static Set<String> getTables(String sql) {
+		Set<String> tables = new HashSet<>();
+		List<SqlLexer.Token> tokens = SqlLexer.tokenize(sql);
+		for (int i = 0; i < tokens.size(); i++) {
+			SqlLexer.Token token = tokens.get(i);
+			boolean from = token.isKeyword("from");
+			if (!from && !token.isKeyword("join") && !token.isKeyword("into") && !token.isKeyword("update")) {
+				continue;
+			}
+			int j = i + 1;
+			while (j < tokens.size() && UPDATE_MODIFIERS.contains(tokens.get(j).getText().toLowerCase())) {
+				j++;
+			}
+			while (j < tokens.size()) {
+				j = readTable(tokens, j, tables);
+				if (j < 0) {
+					break;
+				}
+				// 跳过别名
+				if (j < tokens.size() && tokens.get(j).isKeyword("as")) {
+					j++;
+				}
+				if (j < tokens.size() && isAlias(tokens.get(j))) {
+					j++;
+				}
+				// from a, b 形式的多个表
+				if (from && j < tokens.size() && tokens.get(j).getType() == SqlLexer.TokenType.COMMA
+						&& tokens.get(j).getDepth() == token.getDepth()) {
+					j++;
+					continue;
+				}
+				break;
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * 读取 [schema.]table 形式的表名
+	 *
+	 * @return 表名之后的位置, 不是表名(如子查询)时返回 -1
+	 */
+	private static int readTable(List<SqlLexer.Token> tokens, int index, Set<String> tables) {
+		if (!isName(tokens.get(index)) || tokens.get(index).isKeyword("select")) {
+			return -1;
+		}
+		String table = tokens.get(index).getIdentifier();
+		index++;
+		while (index + 1 < tokens.size() && tokens.get(index).getType() == SqlLexer.TokenType.DOT
+				&& isName(tokens.get(index + 1))) {
+			table = tokens.get(index + 1).getIdentifier();
+			index += 2;
+		}
+		tables.add(table.toLowerCase());
+		return index;
+	}
+
+	private static boolean isName(SqlLexer.Token token) {
+		return token.getType() == SqlLexer.TokenType.WORD || token.getType() == SqlLexer.TokenType.QUOTED_IDENTIFIER;
+	}
+
+	private static boolean isAlias(SqlLexer.Token token) {
+		return token.getType() == SqlLexer.TokenType.QUOTED_IDENTIFIER
+				|| token.getType() == SqlLexer.TokenType.WORD
+				&& !CLAUSE_KEYWORDS.contains(token.getText().toLowerCase());
+	}
+
+	/**
+	 * 缓存键
+	 */
+	public static final class Key {
+
+		private final String namespace;
+
+		private final String countSql;
+
+		private final List<Object> parameterValues;
+
+		private final int hash;
+
+		// 生成缓存键时的失效序号, 不参与比较
+		private final long epoch;
+
+		Key(String namespace, String countSql, List<Object> parameterValues, long epoch) {
+			this.namespace = namespace;
+			this.countSql = countSql;
+			this.parameterValues = parameterValues;
+			this.epoch = epoch;
+			this.hash = 31 * countSql.hashCode() + parameterValues.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return hash == that.hash && countSql.equals(that.countSql) && parameterValues.equals(that.parameterValues)
+					&& namespace.equals(that.namespace);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * 写语句最近一次执行的SQL及其涉及的表
+	 */
+	private static final class WriteTables {
+
+		private final String sql;
+
+		private final Set<String> tables;
+
+		WriteTables(String sql, Set<String> tables) {
+			this.sql = sql;
+			this.tables = tables;
+		}
+	}
+
+	private static final class CachedCount {
+
+		private final long count;
+
+		private final long expiresAt;
+
+		private final Set<String> tables;
+
+		CachedCount(long count, long expiresAt, Set<String> tables) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+			this.tables = tables;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+/**
+ * 总记录数的查询方式
+ */
+public enum CountQueryMode {
+
+	/**
+	 * 单独执行 count SQL, 再执行分页查询
+	 */
+	SEPARATE,
+
+	/**
+	 * 分页查询中加入 count(*) over() 窗口函数列, 从第一行读取总记录数, 需要 MySQL 8 等支持窗口函数的数据库
+	 */
+	WINDOW,
+
+	/**
+	 * 分页查询加入 SQL_CALC_FOUND_ROWS, 之后在同一连接上执行 select FOUND_ROWS(), 适用于 MySQL 5.x
+	 */
+	FOUND_ROWS
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.mapping.MappedStatement;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * count 查询的路由策略.
+ * <p>
+ * 决定 count 查询在哪个 DataSource 上执行, 如只读副本. 返回的 DataSource 与 Environment 的 DataSource
+ * 一样按需获取连接, 查询后立即关闭(归还连接池).
+ */
+public interface CountRoutingPolicy {
+
+	/**
+	 * @param mappedStatement 分页查询的原始语句
+	 * @param connection 分页查询所用的主连接
+	 * @return 执行 count 查询的 DataSource, 返回 null 时在主连接上执行
+	 */
+	DataSource route(MappedStatement mappedStatement, Connection connection) throws SQLException;
+}
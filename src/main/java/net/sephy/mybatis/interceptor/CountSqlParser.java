@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.interceptor.ParsedSelect.Clause;
+import net.sephy.mybatis.interceptor.ParsedSelect.Join;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 根据查询语句生成 count SQL.
+ * <ul>
+ * <li>简单查询: 去掉查询列表和顶层 ORDER BY, 生成 select count(*) from ... where ...</li>
+ * <li>GROUP BY: 查询列表替换为常量后包装为子查询</li>
+ * <li>DISTINCT、UNION、HAVING、LIMIT、聚合查询、包含参数的 ORDER BY 等: 包装为
+ * select count(*) from (...) tmp_count</li>
+ * </ul>
+ * 被去掉的部分如果包含参数占位符, 会保留原样或改为包装子查询, 保证参数位置不变.
+ */
+public class CountSqlParser {
+
+	private static final String COUNT_PREFIX = "select count(*) ";
+
+	private boolean pruneLeftJoins;
+
+	/**
+	 * 是否去掉不影响记录数的 LEFT JOIN.
+	 * <p>
+	 * 开启后, 别名没有在 WHERE 或其他连接条件中以 "别名.列" 形式引用的 LEFT JOIN 会从 count SQL 中去掉,
+	 * 这要求 LEFT JOIN 都是一对一(或多对一)关联, 且 WHERE 中不引用未加别名的被连接表的列. 默认关闭.
+	 */
+	public void setPruneLeftJoins(boolean pruneLeftJoins) {
+		this.pruneLeftJoins = pruneLeftJoins;
+	}
+
+	public boolean isPruneLeftJoins() {
+		return pruneLeftJoins;
+	}
+
+	/**
+	 * 按标准SQL的注释生成 count SQL
+	 *
+	 * @param sql 原始查询语句
+	 * @return count SQL
+	 */
+	public String getCountSql(String sql) {
+		return getCountSql(sql, false);
+	}
+
+	/**
+	 * 生成 count SQL
+	 *
+	 * @param sql 原始查询语句
+	 * @param hashComments # 是否开始单行注释(MySQL)
+	 * @return count SQL
+	 */
+	public String getCountSql(String sql, boolean hashComments) {
+		ParsedSelect select = ParsedSelect.parse(sql, hashComments);
+		if (select == null) {
+			return wrap(SqlLexer.trimEnd(sql, hashComments));
+		}
+		// ORDER BY 包含参数时不能去掉, 而 count(*) 查询中保留 ORDER BY 在部分数据库(如 PostgreSQL)中会报错
+		if (!select.hasClause(Clause.FROM) || select.isDistinct() || select.hasClause(Clause.HAVING)
+				|| select.hasClause(Clause.WINDOW) || select.hasClause(Clause.LIMIT)
+				|| select.countParameters(Clause.SELECT) > 0 || select.countParameters(Clause.ORDER_BY) > 0
+				|| select.hasAggregateSelectItem() && !select.hasClause(Clause.GROUP_BY)) {
+			return wrap(removeOrderBy(select, 0));
+		}
+		if (select.hasClause(Clause.GROUP_BY)) {
+			// 分组后的行数与查询列无关
+			return wrap("select 1 " + removeOrderBy(select, select.getClauseStart(Clause.FROM)));
+		}
+		StringBuilder countSql = new StringBuilder(COUNT_PREFIX);
+		appendFrom(select, countSql);
+		countSql.append(select.getClauseText(Clause.WHERE));
+		if (select.countParameters(Clause.LOCK) > 0) {
+			countSql.append(select.getClauseText(Clause.LOCK));
+		}
+		return countSql.toString();
+	}
+
+	private void appendFrom(ParsedSelect select, StringBuilder countSql) {
+		List<Join> pruned = pruneLeftJoins ? findPrunableJoins(select) : new ArrayList<Join>();
+		String sql = select.getSql();
+		int position = select.getClauseStart(Clause.FROM);
+		for (Join join : pruned) {
+			countSql.append(sql, position, join.getStart());
+			position = join.getEnd();
+		}
+		countSql.append(sql, position, select.getClauseEnd(Clause.FROM));
+	}
+
+	/**
+	 * 从后往前查找可以去掉的 LEFT JOIN, 去掉后面的连接可能使前面的连接不再被引用
+	 */
+	private List<Join> findPrunableJoins(ParsedSelect select) {
+		List<Join> joins = select.getJoins();
+		List<Join> pruned = new ArrayList<>();
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int i = joins.size() - 1; i >= 0; i--) {
+				Join join = joins.get(i);
+				if (pruned.contains(join) || !join.isLeftOuter() || join.getAlias() == null
+						|| select.countParameters(join.getStart(), join.getEnd()) > 0
+						|| isReferenced(select, join, pruned)) {
+					continue;
+				}
+				pruned.add(join);
+				changed = true;
+			}
+		}
+		List<Join> ordered = new ArrayList<>();
+		for (Join join : joins) {
+			if (pruned.contains(join)) {
+				ordered.add(join);
+			}
+		}
+		return ordered;
+	}
+
+	private boolean isReferenced(ParsedSelect select, Join join, List<Join> pruned) {
+		String alias = join.getAlias();
+		int start = select.getClauseStart(Clause.FROM);
+		int end = select.getClauseEnd(select.hasClause(Clause.WHERE) ? Clause.WHERE : Clause.FROM);
+		List<Join> excluded = new ArrayList<>(pruned);
+		excluded.add(join);
+		int position = start;
+		for (Join other : select.getJoins()) {
+			if (excluded.contains(other)) {
+				if (select.isAliasReferenced(alias, position, other.getStart())) {
+					return true;
+				}
+				position = other.getEnd();
+			}
+		}
+		return select.isAliasReferenced(alias, position, end);
+	}
+
+	/**
+	 * 没有 LIMIT 且不包含参数的顶层 ORDER BY 可以去掉
+	 */
+	private boolean isOrderByRemovable(ParsedSelect select) {
+		return select.hasClause(Clause.ORDER_BY) && !select.hasClause(Clause.LIMIT)
+				&& select.countParameters(Clause.ORDER_BY) == 0;
+	}
+
+	/**
+	 * 截取 [start, 语句结束) 的SQL, 并去掉可以去掉的顶层 ORDER BY
+	 */
+	private String removeOrderBy(ParsedSelect select, int start) {
+		String sql = select.getSql();
+		if (!isOrderByRemovable(select)) {
+			return sql.substring(start, select.getEnd());
+		}
+		return sql.substring(start, select.getClauseStart(Clause.ORDER_BY))
+				+ sql.substring(select.getClauseEnd(Clause.ORDER_BY), select.getEnd());
+	}
+
+	private static String wrap(String sql) {
+		return "select count(*) from (" + sql + ") tmp_count";
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * count 查询的 PreparedStatement 缓存.
+ * <p>
+ * count SQL 直接在连接上预编译, 不经过 MyBatis 的 ReuseExecutor. 开启服务端预编译时, 同一会话(Executor)
+ * 内重复执行的 count 查询复用已预编译的语句, 省去每次的 prepare 往返. 每个 Executor 最多缓存指定数量的语句,
+ * 超出时关闭最久未使用的语句; Executor 关闭或连接变化时关闭其全部语句.
+ */
+public class CountStatementCache {
+
+	private static final Log LOG = LogFactory.getLog(CountStatementCache.class);
+
+	/**
+	 * 默认每个 Executor 最多缓存的语句数
+	 */
+	public static final int DEFAULT_MAX_SIZE = 16;
+
+	private final int maxSize;
+
+	private final Map<Executor, Statements> executors = Collections
+			.synchronizedMap(new WeakHashMap<Executor, Statements>());
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	public CountStatementCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize 每个 Executor 最多缓存的语句数
+	 */
+	public CountStatementCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * 取得 Executor 当前连接上 count SQL 的预编译语句, 不存在时预编译并缓存. 返回的语句不能关闭,
+	 * 执行出错时调用 {@link #evict(Executor, String)}
+	 */
+	public PreparedStatement prepare(Executor executor, String countSql) throws SQLException {
+		Connection connection = executor.getTransaction().getConnection();
+		Statements statements = executors.get(executor);
+		if (statements == null || statements.connection != connection) {
+			if (statements != null) {
+				statements.close();
+			}
+			statements = new Statements(connection, maxSize);
+			executors.put(executor, statements);
+		}
+		PreparedStatement ps = statements.get(countSql);
+		if (ps != null && !ps.isClosed()) {
+			hits.incrementAndGet();
+			return ps;
+		}
+		misses.incrementAndGet();
+		ps = connection.prepareStatement(countSql);
+		statements.put(countSql, ps);
+		return ps;
+	}
+
+	/**
+	 * 关闭并移除执行出错的语句
+	 */
+	public void evict(Executor executor, String countSql) {
+		Statements statements = executors.get(executor);
+		if (statements != null) {
+			close(statements.remove(countSql));
+		}
+	}
+
+	/**
+	 * 关闭 Executor 缓存的全部语句
+	 */
+	public void close(Executor executor) {
+		Statements statements = executors.remove(executor);
+		if (statements != null) {
+			statements.close();
+		}
+	}
+
+	/**
+	 * 命中次数
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * 未命中次数
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private static void close(PreparedStatement ps) {
+		if (ps == null) {
+			return;
+		}
+		try {
+			ps.close();
+		}
+		catch (SQLException e) {
+			LOG.debug("Failed to close cached count statement: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * 一个连接上缓存的语句, 按访问顺序淘汰
+	 */
+	private static final class Statements extends LinkedHashMap<String, PreparedStatement> {
+
+		private static final long serialVersionUID = 4989324946466271702L;
+
+		private final Connection connection;
+
+		private final int maxSize;
+
+		Statements(Connection connection, int maxSize) {
+			super(16, 0.75f, true);
+			this.connection = connection;
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() > maxSize) {
+				CountStatementCache.close(eldest.getValue());
+				return true;
+			}
+			return false;
+		}
+
+		void close() {
+			List<PreparedStatement> statements = new ArrayList<>(values());
+			clear();
+			for (PreparedStatement ps : statements) {
+				CountStatementCache.close(ps);
+			}
+		}
+	}
+}
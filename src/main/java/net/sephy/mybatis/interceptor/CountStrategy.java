@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+/**
+ * 总记录数的获取策略, 按代价从高到低排列
+ */
+public enum CountStrategy {
+
+	/**
+	 * 每次执行精确的 count 查询
+	 */
+	EXACT,
+
+	/**
+	 * 使用 {@link CountCache} 缓存的总记录数, 缓存未命中时执行 count 查询
+	 */
+	CACHED,
+
+	/**
+	 * 使用数据库估算的总记录数
+	 */
+	ESTIMATED,
+
+	/**
+	 * 不查询总记录数, 按 slice 模式分页
+	 */
+	NONE
+}
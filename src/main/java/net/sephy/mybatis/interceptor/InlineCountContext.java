@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.util.PagingConsts;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Statement;
+
+/**
+ * 分页查询同时取得总记录数时的上下文, 绑定在当前线程上.
+ * <p>
+ * 分页插件拦截 ResultSetHandler 时, 对本次分页查询的第一个结果集(嵌套查询除外)进行包装:
+ * 读取第一行末尾的总记录数列, 并对结果映射隐藏该列.
+ */
+final class InlineCountContext {
+
+	private static final ThreadLocal<InlineCountContext> CURRENT = new ThreadLocal<>();
+
+	private final boolean readTotalColumn;
+
+	private boolean executed;
+
+	private long total = PagingConsts.UNKNOWN_TOTAL;
+
+	private InlineCountContext(boolean readTotalColumn) {
+		this.readTotalColumn = readTotalColumn;
+	}
+
+	/**
+	 * @param readTotalColumn 是否从结果集最后一列读取总记录数
+	 */
+	static InlineCountContext begin(boolean readTotalColumn) {
+		InlineCountContext context = new InlineCountContext(readTotalColumn);
+		CURRENT.set(context);
+		return context;
+	}
+
+	static InlineCountContext current() {
+		return CURRENT.get();
+	}
+
+	void end() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * 分页查询是否真正在数据库上执行了(没有命中缓存)
+	 */
+	boolean isExecuted() {
+		return executed;
+	}
+
+	long getTotal() {
+		return total;
+	}
+
+	/**
+	 * 包装分页查询的 Statement, 只处理第一次调用, 之后的嵌套查询原样返回
+	 */
+	Statement wrap(Statement statement) {
+		if (executed) {
+			return statement;
+		}
+		executed = true;
+		if (!readTotalColumn) {
+			return statement;
+		}
+		return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(),
+				new Class<?>[] { Statement.class }, new StatementInvocationHandler(statement));
+	}
+
+	private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+		try {
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e) {
+			throw e.getTargetException();
+		}
+	}
+
+	private class StatementInvocationHandler implements InvocationHandler {
+
+		private final Statement statement;
+
+		private boolean wrapped;
+
+		StatementInvocationHandler(Statement statement) {
+			this.statement = statement;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object result = InlineCountContext.invoke(statement, method, args);
+			if ("getResultSet".equals(method.getName()) && result != null && !wrapped) {
+				wrapped = true;
+				return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+						new ResultSetInvocationHandler((ResultSet) result));
+			}
+			return result;
+		}
+	}
+
+	private class ResultSetInvocationHandler implements InvocationHandler {
+
+		private final ResultSet resultSet;
+
+		private boolean first = true;
+
+		ResultSetInvocationHandler(ResultSet resultSet) {
+			this.resultSet = resultSet;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if ("getMetaData".equals(name)) {
+				ResultSetMetaData metaData = resultSet.getMetaData();
+				return Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(),
+						new Class<?>[] { ResultSetMetaData.class }, new MetaDataInvocationHandler(metaData));
+			}
+			Object result = InlineCountContext.invoke(resultSet, method, args);
+			if ("next".equals(name) && first) {
+				first = false;
+				if (Boolean.TRUE.equals(result)) {
+					total = resultSet.getLong(resultSet.getMetaData().getColumnCount());
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * 对结果映射隐藏最后的总记录数列
+	 */
+	private static class MetaDataInvocationHandler implements InvocationHandler {
+
+		private final ResultSetMetaData metaData;
+
+		MetaDataInvocationHandler(ResultSetMetaData metaData) {
+			this.metaData = metaData;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if ("getColumnCount".equals(method.getName())) {
+				return metaData.getColumnCount() - 1;
+			}
+			return InlineCountContext.invoke(metaData, method, args);
+		}
+	}
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.util.Keyset;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheException;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.cache.decorators.LruCache;
+import org.apache.ibatis.cache.decorators.ScheduledCache;
+import org.apache.ibatis.cache.decorators.SerializedCache;
+import org.apache.ibatis.cache.decorators.SynchronizedCache;
+import org.apache.ibatis.cache.impl.PerpetualCache;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.springframework.util.Assert;
+
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分页结果缓存.
+ * <p>
+ * 以 (语句, 绑定的参数值, offset, size, keyset 条件) 为键缓存一页的总记录数及本页数据, 命中时不再执行
+ * count 查询和分页查询. 缓存项存放在 MyBatis 的 {@link Cache} 中, 可以使用任意 Cache 实现(如分布式缓存).
+ * <p>
+ * 失效按表的版本号判断: 每张表(及每个命名空间)在 Cache 中有一个版本号, 缓存项记录查询开始时涉及的各表版本,
+ * 读取时任一版本已变化即视为失效. insert/update/delete 执行后立即更新涉及的表的版本; 在事务中执行时,
+ * 事务提交后再更新一次, 使事务未提交期间其他会话缓存的旧数据失效. 有未提交写操作的会话不读写缓存.
+ * <p>
+ * 内置的 LRU 缓存以序列化形式保存缓存项(同 &lt;cache readOnly="false"&gt;), 每次命中得到数据对象的副本,
+ * 修改返回的对象不影响缓存; 结果对象不能序列化时不缓存. 自定义的 Cache 实现需要自行保证这一点.
+ */
+public class PageCache {
+
+	/**
+	 * 默认最多缓存的项数(含表版本号)
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	/**
+	 * 默认清空间隔(毫秒)
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60000;
+
+	private static final Log LOG = LogFactory.getLog(PageCache.class);
+
+	private static final String VERSION_PREFIX = PageCache.class.getName() + ":";
+
+	private final Cache cache;
+
+	private final ConcurrentMap<String, WriteTables> writeTables = new ConcurrentHashMap<>();
+
+	// 事务中有未提交写操作的会话及其涉及的表
+	private final Map<Executor, Set<String>> pendingWrites = Collections
+			.synchronizedMap(new WeakHashMap<Executor, Set<String>>());
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private ParameterBindingPlan.PlanCache bindingPlans;
+
+	public PageCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * 使用 MyBatis 内置的 LRU 缓存, 缓存项以序列化形式保存
+	 *
+	 * @param maxSize 最多缓存的项数
+	 * @param flushIntervalMillis 清空间隔(毫秒), 同 &lt;cache flushInterval&gt;
+	 */
+	public PageCache(int maxSize, long flushIntervalMillis) {
+		this(newDefaultCache(maxSize, flushIntervalMillis));
+	}
+
+	/**
+	 * @param cache 存放缓存项的 Cache, 需要线程安全
+	 */
+	public PageCache(Cache cache) {
+		Assert.notNull(cache, "Cache must not be null!");
+		this.cache = cache;
+	}
+
+	/**
+	 * 生成缓存键时使用分页插件缓存的参数绑定计划
+	 */
+	void setBindingPlans(ParameterBindingPlan.PlanCache bindingPlans) {
+		this.bindingPlans = bindingPlans;
+	}
+
+	private static Cache newDefaultCache(int maxSize, long flushIntervalMillis) {
+		LruCache lruCache = new LruCache(new PerpetualCache(PageCache.class.getName()));
+		lruCache.setSize(maxSize);
+		ScheduledCache scheduledCache = new ScheduledCache(lruCache);
+		scheduledCache.setClearInterval(flushIntervalMillis);
+		return new SynchronizedCache(new SerializedCache(scheduledCache));
+	}
+
+	/**
+	 * 生成本次分页查询的缓存键, 同时记录涉及的表当前的版本
+	 *
+	 * @param mappedStatement 原始语句
+	 * @param boundSql 原始语句本次执行的SQL(已写入排序条件)
+	 * @param paging 分页对象
+	 * @param keyset 本次使用的 keyset 条件, 不使用时为 null
+	 * @param slice 本次查询是否按 slice 模式执行(不查询总数)
+	 */
+	public Key newKey(MappedStatement mappedStatement, BoundSql boundSql, Paging<?> paging, Keyset keyset,
+			boolean slice) {
+		CacheKey cacheKey = new CacheKey();
+		cacheKey.update(mappedStatement.getId());
+		cacheKey.update(boundSql.getSql());
+		for (Object value : SQLHelper.getParameterValues(mappedStatement, boundSql, boundSql.getParameterObject(),
+				bindingPlans)) {
+			cacheKey.update(value);
+		}
+		cacheKey.update(paging.getOffset());
+		cacheKey.update(paging.getPageSize());
+		cacheKey.update(slice);
+		if (keyset != null) {
+			cacheKey.update(keyset.getSignature());
+			if (keyset.hasValues()) {
+				for (Object value : keyset.getValues()) {
+					cacheKey.update(value);
+				}
+			}
+		}
+		Set<String> tables = CountCache.getTables(boundSql.getSql());
+		HashMap<String, String> versions = new HashMap<>();
+		for (String name : getVersionNames(mappedStatement, tables)) {
+			versions.put(name, getVersion(name));
+		}
+		return new Key(cacheKey, versions, slice);
+	}
+
+	/**
+	 * 读取缓存的一页, 命中时将总记录数写入分页对象
+	 *
+	 * @return 缓存的本页数据, 不存在或已失效时返回 null
+	 */
+	public List<Object> get(Key key, Paging<Object> paging) {
+		Object value = cache.getObject(key.cacheKey);
+		if (value instanceof Entry && isCurrent((Entry) value)) {
+			Entry entry = (Entry) value;
+			hits.incrementAndGet();
+			if (entry.slice) {
+				paging.setHasNext(entry.hasNext);
+			}
+			if (entry.totalEstimated) {
+				paging.setEstimatedTotal(entry.total);
+			}
+			else {
+				paging.setTotal(entry.total, entry.totalTime);
+			}
+			return new ArrayList<>(entry.content);
+		}
+		if (value != null) {
+			cache.removeObject(key.cacheKey);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * 缓存查询得到的一页, 查询期间涉及的表有写操作或结果对象不能序列化时不缓存
+	 */
+	public void put(Key key, Paging<Object> paging, List<Object> content) {
+		Entry entry = new Entry(key.versions, paging.getTotalElements(), paging.getTotalTime(),
+				paging.isTotalEstimated(), key.slice, key.slice && paging.hasNext(), content);
+		if (isCurrent(entry)) {
+			try {
+				cache.putObject(key.cacheKey, entry);
+			}
+			catch (CacheException e) {
+				LOG.debug("Page not cached: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * 语句执行 insert/update/delete 后, 使同一命名空间或涉及相同表的缓存项失效.
+	 * 在事务中执行时记录涉及的表, 提交后再次失效. SQL 与该语句上次执行时相同则复用上次解析的表
+	 *
+	 * @param executor 执行语句的会话
+	 * @param mappedStatement 执行的语句
+	 * @param boundSql 本次执行的SQL
+	 */
+	public void invalidate(Executor executor, MappedStatement mappedStatement, BoundSql boundSql)
+			throws SQLException {
+		String sql = boundSql.getSql();
+		WriteTables tables = writeTables.get(mappedStatement.getId());
+		if (tables == null || !tables.sql.equals(sql)) {
+			tables = new WriteTables(sql, getVersionNames(mappedStatement, CountCache.getTables(sql)));
+			writeTables.put(mappedStatement.getId(), tables);
+		}
+		Set<String> names = tables.names;
+		bump(names);
+		if (!executor.getTransaction().getConnection().getAutoCommit()) {
+			synchronized (pendingWrites) {
+				Set<String> pending = pendingWrites.get(executor);
+				if (pending == null) {
+					pending = new HashSet<>();
+					pendingWrites.put(executor, pending);
+				}
+				pending.addAll(names);
+			}
+		}
+	}
+
+	/**
+	 * 会话提交后, 使其写操作涉及的缓存项失效
+	 */
+	public void commit(Executor executor) {
+		Set<String> pending = pendingWrites.remove(executor);
+		if (pending != null) {
+			bump(pending);
+		}
+	}
+
+	/**
+	 * 会话回滚或关闭后, 丢弃未提交的写操作
+	 */
+	public void rollback(Executor executor) {
+		pendingWrites.remove(executor);
+	}
+
+	/**
+	 * 会话是否有未提交的写操作, 有时不读写缓存
+	 */
+	public boolean hasPendingWrites(Executor executor) {
+		return pendingWrites.containsKey(executor);
+	}
+
+	public Cache getCache() {
+		return cache;
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * 命中次数
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * 未命中次数
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	private boolean isCurrent(Entry entry) {
+		for (Map.Entry<String, String> version : entry.versions.entrySet()) {
+			if (!version.getValue().equals(cache.getObject(version.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 取得版本号, 不存在(未写过或已被淘汰)时生成新的版本号
+	 */
+	private String getVersion(String name) {
+		Object version = cache.getObject(name);
+		if (version instanceof String) {
+			return (String) version;
+		}
+		String newVersion = UUID.randomUUID().toString();
+		cache.putObject(name, newVersion);
+		return newVersion;
+	}
+
+	private void bump(Set<String> names) {
+		for (String name : names) {
+			cache.putObject(name, UUID.randomUUID().toString());
+		}
+	}
+
+	/**
+	 * 命名空间及各表的版本号在 Cache 中的键
+	 */
+	private static Set<String> getVersionNames(MappedStatement mappedStatement, Set<String> tables) {
+		Set<String> names = new HashSet<>();
+		String id = mappedStatement.getId();
+		int index = id.lastIndexOf('.');
+		names.add(VERSION_PREFIX + "namespace:" + (index < 0 ? id : id.substring(0, index)));
+		for (String table : tables) {
+			names.add(VERSION_PREFIX + "table:" + table);
+		}
+		return names;
+	}
+
+	/**
+	 * 缓存键及生成时涉及的表的版本
+	 */
+	public static final class Key {
+
+		private final CacheKey cacheKey;
+
+		private final HashMap<String, String> versions;
+
+		private final boolean slice;
+
+		Key(CacheKey cacheKey, HashMap<String, String> versions, boolean slice) {
+			this.cacheKey = cacheKey;
+			this.versions = versions;
+			this.slice = slice;
+		}
+	}
+
+	/**
+	 * 写语句最近一次执行的SQL及其涉及的版本号
+	 */
+	private static final class WriteTables {
+
+		private final String sql;
+
+		private final Set<String> names;
+
+		WriteTables(String sql, Set<String> names) {
+			this.sql = sql;
+			this.names = names;
+		}
+	}
+
+	private static final class Entry implements Serializable {
+
+		private static final long serialVersionUID = -2215430906624528213L;
+
+		private final HashMap<String, String> versions;
+
+		private final long total;
+
+		private final long totalTime;
+
+		private final boolean totalEstimated;
+
+		private final boolean slice;
+
+		private final boolean hasNext;
+
+		private final ArrayList<Object> content;
+
+		Entry(HashMap<String, String> versions, long total, long totalTime, boolean totalEstimated, boolean slice,
+				boolean hasNext, List<Object> content) {
+			this.versions = versions;
+			this.total = total;
+			this.totalTime = totalTime;
+			this.totalEstimated = totalEstimated;
+			this.slice = slice;
+			this.hasNext = hasNext;
+			this.content = new ArrayList<>(content);
+		}
+	}
+}
@@ -16,13 +16,17 @@
 
 package net.sephy.mybatis.interceptor;
 
-import net.sephy.mybatis.db.MySQLDialect;
+import net.sephy.mybatis.db.DialectResolver;
 import net.sephy.mybatis.dialect.Dialect;
+import net.sephy.mybatis.util.Keyset;
 import net.sephy.mybatis.util.Paging;
 import net.sephy.mybatis.util.PagingConsts;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.ibatis.binding.MapperMethod;
+import org.apache.ibatis.cache.Cache;
 import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.resultset.ResultSetHandler;
+import org.apache.ibatis.executor.statement.StatementHandler;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.logging.LogFactory;
 import org.apache.ibatis.mapping.BoundSql;
@@ -33,31 +37,234 @@ import org.apache.ibatis.plugin.Intercepts;
 import org.apache.ibatis.plugin.Invocation;
 import org.apache.ibatis.plugin.Plugin;
 import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.reflection.MetaObject;
 import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultContext;
 import org.apache.ibatis.session.ResultHandler;
 import org.apache.ibatis.session.RowBounds;
-import org.apache.ibatis.transaction.Transaction;
-import org.springframework.beans.DirectFieldAccessor;
 
+import javax.sql.DataSource;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Future;
 
 /**
  * 数据库分页插件，只拦截查询语句.
  * @author poplar.yfyang / thinkgem
  * @version 2013-8-28
  */
-@Intercepts({ @Signature(type = Executor.class, method = "query", args = { MappedStatement.class, Object.class,
-		RowBounds.class, ResultHandler.class }) })
+@Intercepts({
+		@Signature(type = Executor.class, method = "query", args = { MappedStatement.class, Object.class,
+				RowBounds.class, ResultHandler.class }),
+		@Signature(type = Executor.class, method = "update", args = { MappedStatement.class, Object.class }),
+		@Signature(type = Executor.class, method = "commit", args = { boolean.class }),
+		@Signature(type = Executor.class, method = "rollback", args = { boolean.class }),
+		@Signature(type = Executor.class, method = "close", args = { boolean.class }),
+		@Signature(type = ResultSetHandler.class, method = "handleResultSets", args = { Statement.class }),
+		@Signature(type = StatementHandler.class, method = "parameterize", args = { Statement.class }) })
 public class PaginationInterceptor implements Interceptor {
 
+	/**
+	 * 默认使用估算总记录数的阈值
+	 */
+	public static final long DEFAULT_ESTIMATED_COUNT_THRESHOLD = 100000;
+
+	/**
+	 * 默认缓存的参数绑定计划个数
+	 */
+	public static final int DEFAULT_BINDING_PLAN_CACHE_SIZE = 4096;
+
 	protected Log log = LogFactory.getLog(this.getClass());
 
+	/**
+	 * 配置的方言, 为 null 时按 DataSource 自动识别
+	 */
 	protected Dialect dialect;
 
+	protected DialectResolver dialectResolver = new DialectResolver();
+
+	protected SqlRewriteCache rewriteCache = new SqlRewriteCache();
+
+	protected PagingStatementCache pagingStatements = new PagingStatementCache();
+
+	/**
+	 * count 查询及缓存键使用的参数绑定计划, 按最近使用淘汰
+	 */
+	ParameterBindingPlan.PlanCache bindingPlans = new ParameterBindingPlan.PlanCache(
+			DEFAULT_BINDING_PLAN_CACHE_SIZE);
+
+	/**
+	 * 将分页对象的排序条件写入SQL, 为 null(默认)时忽略排序条件
+	 */
+	protected SortRewriter sortRewriter;
+
+	protected StatementMatcher sliceStatements = StatementMatcher.NONE;
+
+	protected CountQueryMode countQueryMode = CountQueryMode.SEPARATE;
+
+	/**
+	 * 深分页时使用延迟关联的语句及其主键列名
+	 */
+	protected StatementMatcher deferredJoinStatements = StatementMatcher.NONE;
+
+	/**
+	 * 并发执行 count 查询的线程池, 为 null 时串行执行
+	 */
+	protected ConcurrentCountExecutor concurrentCountExecutor;
+
+	/**
+	 * 总记录数缓存, 为 null 时不缓存
+	 */
+	protected CountCache countCache;
+
+	protected StatementMatcher countCacheStatements = StatementMatcher.NONE;
+
+	/**
+	 * 分页对象携带的总记录数在多少毫秒内可信, 可信时不再执行 count 查询, 0 表示总是重新查询
+	 */
+	protected long totalTrustMillis;
+
+	/**
+	 * 使用估算总记录数的语句
+	 */
+	protected StatementMatcher estimatedCountStatements = StatementMatcher.NONE;
+
+	/**
+	 * 估算的总记录数不小于该值时使用估算值, 否则执行精确的 count 查询
+	 */
+	protected long estimatedCountThreshold = DEFAULT_ESTIMATED_COUNT_THRESHOLD;
+
+	/**
+	 * 按 count 查询耗时自适应选择总记录数的获取策略, 为 null 时不启用
+	 */
+	protected AdaptiveCountPolicy adaptiveCountPolicy;
+
+	/**
+	 * 会话内复用 count 查询的预编译语句, 为 null 时每次重新预编译
+	 */
+	protected CountStatementCache countStatementCache;
+
+	/**
+	 * count 查询的路由策略, 为 null 时在主连接上执行
+	 */
+	protected CountRoutingPolicy countRoutingPolicy;
+
+	/**
+	 * 分页结果缓存, 为 null 时不缓存
+	 */
+	protected PageCache pageCache;
+
+	protected StatementMatcher pageCacheStatements = StatementMatcher.NONE;
+
 	@Override
 	public Object intercept(Invocation invocation) throws Throwable {
+		if (invocation.getTarget() instanceof StatementHandler) {
+			// 记录写语句执行的SQL, 用于缓存失效
+			UpdateContext updateContext = UpdateContext.current();
+			if (updateContext != null) {
+				updateContext.capture(((StatementHandler) invocation.getTarget()).getBoundSql());
+			}
+			// 登记语句, 以便其他线程取消查询
+			QueryCanceller canceller = QueryCanceller.current();
+			if (canceller != null) {
+				canceller.register((Statement) invocation.getArgs()[0]);
+			}
+			return invocation.proceed();
+		}
+		if (invocation.getTarget() instanceof ResultSetHandler) {
+			Statement statement = (Statement) invocation.getArgs()[0];
+			// 分页查询同时读取总记录数
+			InlineCountContext context = InlineCountContext.current();
+			if (context != null) {
+				invocation.getArgs()[0] = context.wrap(statement);
+			}
+			QueryCanceller canceller = QueryCanceller.current();
+			try {
+				return invocation.proceed();
+			}
+			finally {
+				// 结果读取完成, 语句不再需要取消
+				if (canceller != null) {
+					canceller.unregister(statement);
+				}
+			}
+		}
+		if ("update".equals(invocation.getMethod().getName())) {
+			if (countCache == null && pageCache == null) {
+				return invocation.proceed();
+			}
+			// 按原语句执行, 使主键生成先于动态SQL; 缓存失效使用 StatementHandler 生成的SQL
+			MappedStatement mappedStatement = (MappedStatement) invocation.getArgs()[0];
+			UpdateContext context = UpdateContext.begin();
+			Object result;
+			try {
+				result = invocation.proceed();
+			}
+			finally {
+				context.end();
+			}
+			BoundSql boundSql = context.getBoundSql();
+			if (boundSql == null) {
+				boundSql = mappedStatement.getBoundSql(invocation.getArgs()[1]);
+			}
+			if (countCache != null) {
+				countCache.invalidate((Executor) invocation.getTarget(), mappedStatement, boundSql);
+			}
+			if (pageCache != null) {
+				pageCache.invalidate((Executor) invocation.getTarget(), mappedStatement, boundSql);
+			}
+			return result;
+		}
+		if ("commit".equals(invocation.getMethod().getName())) {
+			Object result = invocation.proceed();
+			if (countCache != null) {
+				countCache.commit((Executor) invocation.getTarget());
+			}
+			if (pageCache != null) {
+				pageCache.commit((Executor) invocation.getTarget());
+			}
+			return result;
+		}
+		if ("rollback".equals(invocation.getMethod().getName())) {
+			Object result = invocation.proceed();
+			if (countCache != null) {
+				countCache.rollback((Executor) invocation.getTarget());
+			}
+			if (pageCache != null) {
+				pageCache.rollback((Executor) invocation.getTarget());
+			}
+			return result;
+		}
+		if ("close".equals(invocation.getMethod().getName())) {
+			// 未提交的写操作随连接关闭回滚
+			if (countCache != null) {
+				countCache.rollback((Executor) invocation.getTarget());
+			}
+			if (pageCache != null) {
+				pageCache.rollback((Executor) invocation.getTarget());
+			}
+			// 连接关闭前关闭缓存的 count 语句
+			if (countStatementCache != null) {
+				countStatementCache.close((Executor) invocation.getTarget());
+			}
+			return invocation.proceed();
+		}
+		// 写语句执行期间的查询(如 selectKey)不分页, 其SQL也不用于缓存失效
+		UpdateContext updateContext = UpdateContext.current();
+		if (updateContext != null) {
+			updateContext.end();
+			try {
+				return invocation.proceed();
+			}
+			finally {
+				updateContext.resume();
+			}
+		}
 		final MappedStatement mappedStatement = (MappedStatement) invocation.getArgs()[0];
 
 		Object parameter = invocation.getArgs()[1];
@@ -77,8 +284,6 @@ public class PaginationInterceptor implements Interceptor {
 			return invocation.proceed();
 		}
 
-		Executor executor = (Executor) invocation.getTarget();
-		Transaction transaction = executor.getTransaction();
 		// 如果设置了分页对象，就进行分页
 		List<Object> queryResult = null;
 		BoundSql boundSql = mappedStatement.getBoundSql(parameter);
@@ -86,73 +291,589 @@ public class PaginationInterceptor implements Interceptor {
 		if (StringUtils.isBlank(boundSql.getSql())) {
 			return null;
 		}
-		// 得到总记录数
-		long count = SQLHelper.getCount(transaction.getConnection(), mappedStatement, parameterObject, boundSql, log);
-
-		Paging.setTotal(count);
-		if (count > 0) { // 总记录数大于0才进行分页查询
-			// 分页查询 本地化对象 修改数据库注意修改实现
-			invocation.getArgs()[2] = new RowBounds(RowBounds.NO_ROW_OFFSET, RowBounds.NO_ROW_LIMIT);
-			Configuration configuration = mappedStatement.getConfiguration();
-			BoundSql newBoundSql = SQLHelper.generatePagingBoundSql(configuration, boundSql, dialect);
-			// 解决MyBatis 分页foreach 参数失效 start
-			DirectFieldAccessor cpfrom = new DirectFieldAccessor(boundSql);
-			DirectFieldAccessor cpTo = new DirectFieldAccessor(newBoundSql);
-			cpTo.setPropertyValue("metaParameters", cpfrom.getPropertyValue("metaParameters"));
-			// 解决MyBatis 分页foreach 参数失效 end
-			MappedStatement newMs = copyFromMappedStatement(mappedStatement, new BoundSqlSqlSource(newBoundSql));
-
-			invocation.getArgs()[0] = newMs;
-			queryResult = (List<Object>) invocation.proceed();
-		} else {
-			queryResult = Collections.emptyList();
+		Dialect currentDialect = getDialect(invocation, mappedStatement);
+		if (Paging.isStreaming()) {
+			return queryStream(invocation, mappedStatement, boundSql, currentDialect, Paging);
+		}
+		// keyset 分页
+		Keyset keyset = Paging.getKeyset() != null && currentDialect.supportsKeyset() ? Paging.getKeyset() : null;
+		String statementId = mappedStatement.getId();
+		boolean slice = Paging.isSlice() || sliceStatements.matches(statementId);
+		// 自适应选择总记录数的获取策略
+		CountStrategy strategy = slice || adaptiveCountPolicy == null ? CountStrategy.EXACT
+				: adaptiveCountPolicy.choose(statementId);
+		if (strategy == CountStrategy.NONE) {
+			slice = true;
+		}
+		// 按分页对象的排序条件排序, keyset 分页按排序键排序
+		if (keyset == null && sortRewriter != null && Paging.getSort() != null) {
+			boundSql = sortRewriter.apply(mappedStatement, boundSql, Paging.getSort());
+		}
+		// 命中分页结果缓存时不再查询
+		PageCache.Key pageKey = null;
+		if (pageCache != null && pageCacheStatements.matches(statementId)
+				&& !pageCache.hasPendingWrites((Executor) invocation.getTarget())) {
+			pageKey = pageCache.newKey(mappedStatement, boundSql, Paging, keyset, slice);
+			List<Object> cachedResult = pageCache.get(pageKey, Paging);
+			if (cachedResult != null) {
+				if (keyset != null) {
+					captureKeyset(mappedStatement.getConfiguration(), keyset, cachedResult);
+				}
+				Paging.setContent(cachedResult);
+				return cachedResult;
+			}
+		}
+		// 非首页的 offset 分页按主键延迟关联
+		String deferredJoinKey = null;
+		if (keyset == null && Paging.getOffset() > 0 && deferredJoinStatements.matches(statementId)) {
+			deferredJoinKey = StringUtils.defaultString(deferredJoinStatements.getValue(statementId), "id");
+		}
+		SqlRewriteCache.RewrittenSql rewrittenSql = rewriteCache.get(mappedStatement, boundSql, currentDialect, keyset,
+				slice ? CountQueryMode.SEPARATE : countQueryMode, deferredJoinKey);
+		// 翻页携带的总记录数仍然可信时不再查询
+		boolean trustTotal = !slice && totalTrustMillis > 0 && Paging.isTotalFresh(totalTrustMillis);
+		CountCache.Key countKey = null;
+		Long cachedCount = null;
+		if (!slice && !trustTotal && countCache != null
+				&& (strategy == CountStrategy.CACHED || countCacheStatements.matches(statementId))
+				&& !countCache.hasPendingWrites((Executor) invocation.getTarget())) {
+			countKey = countCache.newKey(mappedStatement, boundSql, rewrittenSql.getCountSql());
+			cachedCount = countCache.get(countKey);
+		}
+		// 大表按执行计划或表统计信息估算总记录数
+		Long estimatedCount = null;
+		if (!slice && !trustTotal && cachedCount == null
+				&& (strategy == CountStrategy.ESTIMATED || estimatedCountStatements.matches(statementId))) {
+			Executor executor = (Executor) invocation.getTarget();
+			try {
+				long estimate = SQLHelper.getEstimatedCount(executor.getTransaction().getConnection(),
+						mappedStatement, parameterObject, boundSql, rewrittenSql.getCountSql(), currentDialect, log,
+						bindingPlans);
+				// 估算值不大于 0 时不可信 (统计信息缺失或过期), 改为精确 count
+				if (estimate > 0 && estimate >= (strategy == CountStrategy.ESTIMATED ? 0 : estimatedCountThreshold)) {
+					estimatedCount = estimate;
+				}
+			}
+			catch (SQLException e) {
+				log.warn("Estimated count of " + mappedStatement.getId() + " failed, use exact count instead: " + e.getMessage());
+			}
+		}
+		if (slice) {
+			// slice 模式不查询总数, 多取一行判断是否有下一页; 只对本次查询生效, 不改变分页对象的 slice 模式
+			Paging.setProbeNext(!Paging.isSlice());
+			try {
+				queryResult = queryPage(invocation, mappedStatement, boundSql, rewrittenSql);
+			}
+			finally {
+				Paging.setProbeNext(false);
+			}
+			boolean hasNext = queryResult.size() > Paging.getPageSize();
+			if (hasNext) {
+				queryResult = new ArrayList<>(queryResult.subList(0, Paging.getPageSize()));
+			}
+			Paging.setHasNext(hasNext);
+			// 最后一页可以确定总数, 超出末页的空页无法确定
+			boolean lastPage = !hasNext && (!queryResult.isEmpty() || Paging.getOffset() == 0);
+			Paging.setTotal(lastPage ? Paging.getOffset() + queryResult.size() : PagingConsts.UNKNOWN_TOTAL);
+		}
+		else if (trustTotal || cachedCount != null || estimatedCount != null) {
+			// 使用翻页携带的、缓存的或估算的总记录数, 只执行分页查询
+			if (rewrittenSql.getCountQueryMode() != CountQueryMode.SEPARATE) {
+				rewrittenSql = rewriteCache.get(mappedStatement, boundSql, currentDialect, keyset,
+						CountQueryMode.SEPARATE, deferredJoinKey);
+			}
+			if (cachedCount != null) {
+				Paging.setTotal(cachedCount);
+			}
+			else if (estimatedCount != null) {
+				Paging.setEstimatedTotal(estimatedCount);
+			}
+			// 估算的总记录数不精确, 始终执行分页查询
+			queryResult = estimatedCount != null || Paging.getTotalElements() > 0 ? queryPage(invocation,
+					mappedStatement, boundSql, rewrittenSql) : Collections.<Object>emptyList();
+		}
+		else if (rewrittenSql.getCountQueryMode() != CountQueryMode.SEPARATE) {
+			// 分页查询的同时取得总记录数, 省去一次 count 查询
+			queryResult = queryPageWithCount(invocation, mappedStatement, boundSql, rewrittenSql, currentDialect,
+					Paging);
+		}
+		else if (concurrentCountExecutor != null && isAutoCommit(invocation)) {
+			// 不在事务中时, count 查询在独立连接上与分页查询并发执行
+			queryResult = queryPageConcurrently(invocation, mappedStatement, boundSql, rewrittenSql, Paging);
+		}
+		else {
+			// 得到总记录数
+			long count = getCount(invocation, mappedStatement, boundSql, rewrittenSql.getCountSql());
+
+			Paging.setTotal(count);
+			if (count > 0) { // 总记录数大于0才进行分页查询
+				queryResult = queryPage(invocation, mappedStatement, boundSql, rewrittenSql);
+			}
+			else {
+				queryResult = Collections.emptyList();
+			}
+		}
+		if (countKey != null && cachedCount == null && estimatedCount == null && Paging.isTotalKnown()) {
+			countCache.put(countKey, Paging.getTotalElements());
+		}
+		if (pageKey != null) {
+			pageCache.put(pageKey, Paging, queryResult);
+		}
+		if (keyset != null) {
+			captureKeyset(mappedStatement.getConfiguration(), keyset, queryResult);
 		}
 		Paging.setContent(queryResult);
 		return queryResult;
 	}
 
+	/**
+	 * 执行分页查询
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Object> queryPage(Invocation invocation, MappedStatement mappedStatement, BoundSql boundSql,
+			SqlRewriteCache.RewrittenSql rewrittenSql) throws Throwable {
+		// 分页查询 本地化对象 修改数据库注意修改实现
+		invocation.getArgs()[2] = RowBounds.DEFAULT;
+		Configuration configuration = mappedStatement.getConfiguration();
+		BoundSql newBoundSql = rewrittenSql.newPagingBoundSql(configuration, boundSql);
+		invocation.getArgs()[0] = pagingStatements.get(mappedStatement);
+		PagingStatementCache.bind(newBoundSql);
+		try {
+			return (List<Object>) invocation.proceed();
+		}
+		finally {
+			PagingStatementCache.unbind();
+		}
+	}
+
+	/**
+	 * 流式读取全部结果: 不分页, 使用只能向前滚动的结果集及方言的流式 fetchSize, 每一行交给分页对象的
+	 * ResultHandler 处理. 返回空列表, 读取完全部结果后总记录数为读取的行数
+	 */
+	private List<Object> queryStream(Invocation invocation, MappedStatement mappedStatement, BoundSql boundSql,
+			Dialect dialect, final Paging<Object> paging) throws Throwable {
+		if (sortRewriter != null && paging.getSort() != null) {
+			boundSql = sortRewriter.apply(mappedStatement, boundSql, paging.getSort());
+		}
+		final ResultHandler<? super Object> resultHandler = paging.getResultHandler();
+		final long[] rows = new long[1];
+		final boolean[] stopped = new boolean[1];
+		invocation.getArgs()[0] = pagingStatements.getStreaming(mappedStatement, dialect.getStreamingFetchSize());
+		invocation.getArgs()[2] = RowBounds.DEFAULT;
+		invocation.getArgs()[3] = new ResultHandler<Object>() {
+			@Override
+			public void handleResult(ResultContext<?> context) {
+				rows[0]++;
+				resultHandler.handleResult(context);
+				stopped[0] = context.isStopped();
+			}
+		};
+		PagingStatementCache.bind(boundSql);
+		try {
+			invocation.proceed();
+		}
+		finally {
+			PagingStatementCache.unbind();
+			// 一级缓存以原语句的缓存键记录了空结果, 需要清除
+			((Executor) invocation.getTarget()).clearLocalCache();
+		}
+		paging.setTotal(stopped[0] ? PagingConsts.UNKNOWN_TOTAL : rows[0]);
+		paging.setContent(Collections.emptyList());
+		return Collections.emptyList();
+	}
+
+	/**
+	 * 执行带总记录数的分页查询. 分页查询命中一级缓存、或超出末页没有返回数据时无法得到总记录数,
+	 * 此时再单独执行 count 查询
+	 */
+	private List<Object> queryPageWithCount(Invocation invocation, MappedStatement mappedStatement,
+			BoundSql boundSql, SqlRewriteCache.RewrittenSql rewrittenSql, Dialect dialect, Paging<Object> paging)
+			throws Throwable {
+		boolean window = rewrittenSql.getCountQueryMode() == CountQueryMode.WINDOW;
+		Executor executor = (Executor) invocation.getTarget();
+		InlineCountContext context = InlineCountContext.begin(window);
+		long start = System.nanoTime();
+		List<Object> queryResult;
+		try {
+			queryResult = queryPage(invocation, mappedStatement, boundSql, rewrittenSql);
+		}
+		finally {
+			context.end();
+		}
+		long count = PagingConsts.UNKNOWN_TOTAL;
+		if (context.isExecuted()) {
+			if (window) {
+				count = queryResult.isEmpty() && paging.getOffset() == 0 ? 0 : context.getTotal();
+			}
+			else {
+				count = SQLHelper.getFoundRows(executor.getTransaction().getConnection(),
+						dialect.getFoundRowsSql(), log);
+			}
+			// count 与分页查询合并执行, 以整个查询的耗时作为 count 耗时
+			if (count != PagingConsts.UNKNOWN_TOTAL) {
+				recordCountTime(mappedStatement, start);
+			}
+		}
+		if (count == PagingConsts.UNKNOWN_TOTAL) {
+			count = getCount(invocation, mappedStatement, boundSql, rewrittenSql.getCountSql());
+		}
+		paging.setTotal(count);
+		return queryResult;
+	}
+
+	/**
+	 * 主连接上执行分页查询, 同时在独立连接上执行 count 查询. 线程池已满时串行执行,
+	 * count 查询超时则总记录数未知, 按本页是否取满判断是否有下一页
+	 */
+	private List<Object> queryPageConcurrently(Invocation invocation, MappedStatement mappedStatement,
+			BoundSql boundSql, SqlRewriteCache.RewrittenSql rewrittenSql, Paging<Object> paging) throws Throwable {
+		DataSource dataSource = getCountDataSource(invocation, mappedStatement);
+		long start = System.nanoTime();
+		Future<Long> future = concurrentCountExecutor.submit(dataSource != null ? dataSource : mappedStatement
+				.getConfiguration().getEnvironment().getDataSource(), mappedStatement, boundSql.getParameterObject(),
+				boundSql, rewrittenSql.getCountSql(), log);
+		if (future == null) {
+			long count = getCount(invocation, mappedStatement, boundSql, rewrittenSql.getCountSql());
+			paging.setTotal(count);
+			return count > 0 ? queryPage(invocation, mappedStatement, boundSql, rewrittenSql)
+					: Collections.emptyList();
+		}
+		List<Object> queryResult;
+		try {
+			queryResult = queryPage(invocation, mappedStatement, boundSql, rewrittenSql);
+		}
+		catch (Throwable e) {
+			future.cancel(true);
+			throw e;
+		}
+		Long count = concurrentCountExecutor.await(future);
+		// 超时也计入耗时, 使自适应策略能够降级
+		recordCountTime(mappedStatement, start);
+		if (count == null) {
+			log.warn("Count query of " + mappedStatement.getId() + " timed out after "
+					+ concurrentCountExecutor.getTimeoutMillis() + "ms, total is unknown.");
+			paging.setTotal(PagingConsts.UNKNOWN_TOTAL);
+			paging.setHasNext(queryResult.size() >= paging.getPageSize());
+		}
+		else {
+			paging.setTotal(count);
+		}
+		return queryResult;
+	}
+
+	/**
+	 * 本次查询使用的方言: 配置了方言时使用配置的方言, 否则按当前 Environment 的 DataSource 识别
+	 */
+	private Dialect getDialect(Invocation invocation, MappedStatement mappedStatement) throws SQLException {
+		if (dialect != null) {
+			return dialect;
+		}
+		Executor executor = (Executor) invocation.getTarget();
+		return dialectResolver.resolve(mappedStatement.getConfiguration().getEnvironment().getDataSource(),
+				executor.getTransaction().getConnection());
+	}
+
+	/**
+	 * 执行 count 查询并记录耗时
+	 */
+	private long getCount(Invocation invocation, MappedStatement mappedStatement, BoundSql boundSql,
+			String countSql) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return doGetCount(invocation, mappedStatement, boundSql, countSql);
+		}
+		finally {
+			recordCountTime(mappedStatement, start);
+		}
+	}
+
+	/**
+	 * 记录精确 count 的耗时, 供自适应策略选择总记录数的获取方式
+	 */
+	private void recordCountTime(MappedStatement mappedStatement, long startNanos) {
+		if (adaptiveCountPolicy != null) {
+			adaptiveCountPolicy.record(mappedStatement.getId(), System.nanoTime() - startNanos);
+		}
+	}
+
+	/**
+	 * 执行 count 查询: 路由策略指定了 DataSource 时在其新连接上执行, 否则在主连接上执行,
+	 * 开启语句缓存时复用会话内已预编译的语句
+	 */
+	private long doGetCount(Invocation invocation, MappedStatement mappedStatement, BoundSql boundSql,
+			String countSql) throws SQLException {
+		DataSource dataSource = getCountDataSource(invocation, mappedStatement);
+		if (dataSource != null) {
+			return SQLHelper.getCount(dataSource, mappedStatement, boundSql.getParameterObject(), boundSql, countSql,
+					log, bindingPlans);
+		}
+		Executor executor = (Executor) invocation.getTarget();
+		if (countStatementCache == null) {
+			return SQLHelper.getCount(executor.getTransaction().getConnection(), mappedStatement,
+					boundSql.getParameterObject(), boundSql, countSql, log, bindingPlans);
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("COUNT SQL: " + StringUtils.replaceEach(countSql, new String[] { "\n", "\t" },
+					new String[] { " ", " " }));
+		}
+		PreparedStatement ps = countStatementCache.prepare(executor, countSql);
+		try {
+			return SQLHelper.getCount(ps, mappedStatement, boundSql.getParameterObject(), boundSql, countSql,
+					bindingPlans);
+		}
+		catch (SQLException | RuntimeException e) {
+			countStatementCache.evict(executor, countSql);
+			throw e;
+		}
+	}
+
+	/**
+	 * 路由策略为本次 count 查询指定的 DataSource, 没有配置策略或不做路由时返回 null
+	 */
+	private DataSource getCountDataSource(Invocation invocation, MappedStatement mappedStatement)
+			throws SQLException {
+		if (countRoutingPolicy == null) {
+			return null;
+		}
+		Executor executor = (Executor) invocation.getTarget();
+		return countRoutingPolicy.route(mappedStatement, executor.getTransaction().getConnection());
+	}
+
+	/**
+	 * 主连接是否处于自动提交状态, 事务中的查询需要在同一连接上执行以保证读到一致的数据
+	 */
+	private boolean isAutoCommit(Invocation invocation) throws SQLException {
+		Executor executor = (Executor) invocation.getTarget();
+		return executor.getTransaction().getConnection().getAutoCommit();
+	}
+
+	/**
+	 * 记录本页最后一行的排序键值, 供下一页使用
+	 */
+	private void captureKeyset(Configuration configuration, Keyset keyset, List<Object> queryResult) {
+		if (queryResult.isEmpty()) {
+			keyset.setLastValues((Object[]) null);
+			return;
+		}
+		MetaObject metaObject = configuration.newMetaObject(queryResult.get(queryResult.size() - 1));
+		List<Keyset.Key> keys = keyset.getKeys();
+		Object[] values = new Object[keys.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = metaObject.getValue(keys.get(i).getProperty());
+		}
+		keyset.setLastValues(values);
+	}
+
 	@Override
 	public Object plugin(Object target) {
 		if (target instanceof Executor) {
 			return Plugin.wrap(target, this);
 		}
+		// 只在同时取得总记录数的分页查询及可取消的查询中拦截 ResultSetHandler
+		if (target instanceof ResultSetHandler
+				&& (InlineCountContext.current() != null || QueryCanceller.current() != null)) {
+			return Plugin.wrap(target, this);
+		}
+		// 只在可取消的查询及写语句中拦截 StatementHandler
+		if (target instanceof StatementHandler
+				&& (QueryCanceller.current() != null || UpdateContext.current() != null)) {
+			return Plugin.wrap(target, this);
+		}
 		return target;
 	}
 
 	@Override
 	public void setProperties(Properties properties) {
+		// 方言: mysql, postgresql, oracle, sqlserver, h2 或方言类名, 不配置或配置为 auto 时按数据库自动识别
 		String dialect = properties.getProperty("dialect");
-		if (dialect == null) {
-			throw new RuntimeException("mybatis dialect error.");
+		if (StringUtils.isNotBlank(dialect) && !"auto".equalsIgnoreCase(dialect.trim())) {
+			this.dialect = DialectResolver.forName(dialect);
+			if (this.dialect == null) {
+				throw new RuntimeException("mybatis dialect error.");
+			}
 		}
-		dialect = dialect.toLowerCase();
-		if ("mysql".equals(dialect)) {
-			this.dialect = new MySQLDialect();
+		String rewriteCacheSize = properties.getProperty("rewriteCacheSize");
+		if (StringUtils.isNotBlank(rewriteCacheSize)) {
+			this.rewriteCache = new SqlRewriteCache(Integer.parseInt(rewriteCacheSize.trim()));
 		}
-		if (this.dialect == null) {
-			throw new RuntimeException("mybatis dialect error.");
+		String bindingPlanCacheSize = properties.getProperty("bindingPlanCacheSize");
+		if (StringUtils.isNotBlank(bindingPlanCacheSize)) {
+			this.bindingPlans = new ParameterBindingPlan.PlanCache(Integer.parseInt(bindingPlanCacheSize.trim()));
 		}
-	}
-
-	private MappedStatement copyFromMappedStatement(MappedStatement ms, SqlSource newSqlSource) {
-		MappedStatement.Builder builder = new MappedStatement.Builder(ms.getConfiguration(), ms.getId(), newSqlSource,
-				ms.getSqlCommandType());
-		builder.resource(ms.getResource());
-		builder.fetchSize(ms.getFetchSize());
-		builder.statementType(ms.getStatementType());
-		builder.keyGenerator(ms.getKeyGenerator());
-		if (ms.getKeyProperties() != null) {
-			for (String keyProperty : ms.getKeyProperties()) {
-				builder.keyProperty(keyProperty);
+		// 是否将分页对象的排序条件写入SQL, 默认关闭; 稳定排序列按语句配置, 如 com.example.UserMapper.*=u.id
+		if (Boolean.parseBoolean(StringUtils.trim(properties.getProperty("sortPushdown")))) {
+			this.sortRewriter = new SortRewriter();
+			this.sortRewriter.setTiebreakers(StatementMatcher.parse(properties.getProperty("sortTiebreakers")));
+		}
+		// 按 slice 模式分页(不查询总数)的语句
+		this.sliceStatements = StatementMatcher.parse(properties.getProperty("sliceStatements"));
+		// 生成 count SQL 时是否去掉不影响记录数的 LEFT JOIN
+		String countLeftJoinPruning = properties.getProperty("countLeftJoinPruning");
+		if (StringUtils.isNotBlank(countLeftJoinPruning)) {
+			CountSqlParser countSqlParser = new CountSqlParser();
+			countSqlParser.setPruneLeftJoins(Boolean.parseBoolean(countLeftJoinPruning.trim()));
+			this.rewriteCache.setCountSqlParser(countSqlParser);
+		}
+		// 总记录数的查询方式: separate(默认), window, found_rows
+		String countQueryMode = properties.getProperty("countQueryMode");
+		if (StringUtils.isNotBlank(countQueryMode)) {
+			this.countQueryMode = CountQueryMode.valueOf(countQueryMode.trim().toUpperCase());
+		}
+		// 深分页时按主键延迟关联的语句, 如 com.example.LogMapper.find=log_id, 不指定主键列时为 id
+		this.deferredJoinStatements = StatementMatcher.parse(properties.getProperty("deferredJoinStatements"));
+		// 缓存总记录数的语句, 缓存有效期(毫秒)及容量
+		this.countCacheStatements = StatementMatcher.parse(properties.getProperty("countCacheStatements"));
+		if (this.countCacheStatements != StatementMatcher.NONE) {
+			String ttl = properties.getProperty("countCacheTtl");
+			String size = properties.getProperty("countCacheSize");
+			this.countCache = new CountCache(
+					StringUtils.isNotBlank(size) ? Integer.parseInt(size.trim()) : CountCache.DEFAULT_MAX_SIZE,
+					StringUtils.isNotBlank(ttl) ? Long.parseLong(ttl.trim()) : CountCache.DEFAULT_TTL_MILLIS);
+		}
+		// 翻页携带的总记录数在多少秒内可信
+		String totalTrustSeconds = properties.getProperty("totalTrustSeconds");
+		if (StringUtils.isNotBlank(totalTrustSeconds)) {
+			this.totalTrustMillis = Long.parseLong(totalTrustSeconds.trim()) * 1000;
+		}
+		// 估算总记录数的语句及使用估算值的阈值
+		this.estimatedCountStatements = StatementMatcher.parse(properties.getProperty("estimatedCountStatements"));
+		String estimatedCountThreshold = properties.getProperty("estimatedCountThreshold");
+		if (StringUtils.isNotBlank(estimatedCountThreshold)) {
+			this.estimatedCountThreshold = Long.parseLong(estimatedCountThreshold.trim());
+		}
+		// 按 count 查询平均耗时(毫秒)自适应降级为缓存、估算或不查询总记录数
+		if (Boolean.parseBoolean(StringUtils.trim(properties.getProperty("adaptiveCount")))) {
+			this.adaptiveCountPolicy = new AdaptiveCountPolicy(
+					getLong(properties, "adaptiveCountCachedMillis", 100),
+					getLong(properties, "adaptiveCountEstimatedMillis", 1000),
+					getLong(properties, "adaptiveCountNoneMillis", 3000));
+			this.adaptiveCountPolicy.setProbeIntervalMillis(getLong(properties, "adaptiveCountProbeSeconds",
+					AdaptiveCountPolicy.DEFAULT_PROBE_INTERVAL_MILLIS / 1000) * 1000);
+			if (this.countCache == null) {
+				this.countCache = new CountCache();
+			}
+		}
+		// 会话内缓存的 count 预编译语句数, 0 表示不缓存
+		String countStatementCacheSize = properties.getProperty("countStatementCacheSize");
+		if (StringUtils.isNotBlank(countStatementCacheSize) && Integer.parseInt(countStatementCacheSize.trim()) > 0) {
+			this.countStatementCache = new CountStatementCache(Integer.parseInt(countStatementCacheSize.trim()));
+		}
+		// 不在事务中时, 是否在独立连接上并发执行 count 查询
+		if (Boolean.parseBoolean(StringUtils.trim(properties.getProperty("concurrentCount")))) {
+			String poolSize = properties.getProperty("concurrentCountPoolSize");
+			String timeout = properties.getProperty("concurrentCountTimeout");
+			this.concurrentCountExecutor = new ConcurrentCountExecutor(
+					StringUtils.isNotBlank(poolSize) ? Integer.parseInt(poolSize.trim())
+							: ConcurrentCountExecutor.DEFAULT_POOL_SIZE,
+					StringUtils.isNotBlank(timeout) ? Long.parseLong(timeout.trim())
+							: ConcurrentCountExecutor.DEFAULT_TIMEOUT_MILLIS);
+		}
+		// 缓存分页结果的语句, 清空间隔(毫秒)、容量及 Cache 实现类名(构造参数为 id, 同 <cache type>)
+		this.pageCacheStatements = StatementMatcher.parse(properties.getProperty("pageCacheStatements"));
+		if (this.pageCacheStatements != StatementMatcher.NONE) {
+			String type = properties.getProperty("pageCacheType");
+			if (StringUtils.isNotBlank(type)) {
+				try {
+					this.pageCache = new PageCache((Cache) Class.forName(type.trim()).getConstructor(String.class)
+							.newInstance(PageCache.class.getName()));
+				}
+				catch (ReflectiveOperationException | ClassCastException e) {
+					throw new RuntimeException("mybatis page cache error: " + type, e);
+				}
+			}
+			else {
+				String flushInterval = properties.getProperty("pageCacheFlushInterval");
+				String size = properties.getProperty("pageCacheSize");
+				this.pageCache = new PageCache(
+						StringUtils.isNotBlank(size) ? Integer.parseInt(size.trim()) : PageCache.DEFAULT_MAX_SIZE,
+						StringUtils.isNotBlank(flushInterval) ? Long.parseLong(flushInterval.trim())
+								: PageCache.DEFAULT_FLUSH_INTERVAL_MILLIS);
+			}
+		}
+		// count 查询的路由策略类名, 需要注入 DataSource 的策略(如只读副本)通过 setCountRoutingPolicy 设置
+		String countRoutingPolicy = properties.getProperty("countRoutingPolicy");
+		if (StringUtils.isNotBlank(countRoutingPolicy)) {
+			try {
+				this.countRoutingPolicy = (CountRoutingPolicy) Class.forName(countRoutingPolicy.trim())
+						.getDeclaredConstructor().newInstance();
 			}
+			catch (ReflectiveOperationException | ClassCastException e) {
+				throw new RuntimeException("mybatis count routing policy error: " + countRoutingPolicy, e);
+			}
+		}
+		// count 查询及缓存键共用插件的参数绑定计划
+		if (this.countCache != null) {
+			this.countCache.setBindingPlans(bindingPlans);
+		}
+		if (this.pageCache != null) {
+			this.pageCache.setBindingPlans(bindingPlans);
 		}
-		builder.timeout(ms.getTimeout());
-		builder.parameterMap(ms.getParameterMap());
-		builder.resultMaps(ms.getResultMaps());
-		builder.cache(ms.getCache());
-		return builder.build();
+		if (this.concurrentCountExecutor != null) {
+			this.concurrentCountExecutor.setBindingPlans(bindingPlans);
+		}
+	}
+
+	/**
+	 * 分页SQL改写缓存, 可通过其命中/未命中次数观察缓存效果
+	 */
+	public SqlRewriteCache getRewriteCache() {
+		return rewriteCache;
+	}
+
+	ParameterBindingPlan.PlanCache getBindingPlans() {
+		return bindingPlans;
+	}
+
+	private static long getLong(Properties properties, String name, long defaultValue) {
+		String value = properties.getProperty(name);
+		return StringUtils.isNotBlank(value) ? Long.parseLong(value.trim()) : defaultValue;
+	}
+
+	/**
+	 * 自适应总记录数策略, 可查看各语句当前的策略及原因, 未开启 adaptiveCount 时为 null
+	 */
+	public AdaptiveCountPolicy getAdaptiveCountPolicy() {
+		return adaptiveCountPolicy;
+	}
+
+	/**
+	 * count 查询的预编译语句缓存, 未配置 countStatementCacheSize 时为 null
+	 */
+	public CountStatementCache getCountStatementCache() {
+		return countStatementCache;
+	}
+
+	/**
+	 * 总记录数缓存, 未配置 countCacheStatements 且未开启 adaptiveCount 时为 null
+	 */
+	public CountCache getCountCache() {
+		return countCache;
+	}
+
+	/**
+	 * 分页结果缓存, 未配置 pageCacheStatements 时为 null
+	 */
+	public PageCache getPageCache() {
+		return pageCache;
+	}
+
+	public CountRoutingPolicy getCountRoutingPolicy() {
+		return countRoutingPolicy;
+	}
+
+	/**
+	 * 设置 count 查询的路由策略, 如 {@link ReplicaCountRoutingPolicy} 将 count 查询发往只读副本
+	 */
+	public void setCountRoutingPolicy(CountRoutingPolicy countRoutingPolicy) {
+		this.countRoutingPolicy = countRoutingPolicy;
 	}
 
+	/**
+	 * 返回固定 BoundSql 的 SqlSource, 插件内部已不使用
+	 *
+	 * @deprecated 保留以兼容旧代码, 将在后续版本删除
+	 */
+	@Deprecated
 	public static class BoundSqlSqlSource implements SqlSource {
 		BoundSql boundSql;
 
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultSetType;
+import org.apache.ibatis.mapping.SqlSource;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 分页查询使用的 MappedStatement 缓存.
+ * <p>
+ * 每条原始语句只构建一次对应的分页语句, 复制原始语句的全部属性, SQL 来源替换为 {@link PagingSqlSource}:
+ * 执行前通过 {@link #bind(BoundSql)} 将本次的分页 BoundSql 绑定到当前线程, 执行器取 BoundSql 时直接返回.
+ */
+public class PagingStatementCache {
+
+	private static final ThreadLocal<BoundSql> BOUND_SQL = new ThreadLocal<>();
+
+	private final ConcurrentMap<String, Entry> statements = new ConcurrentHashMap<>();
+
+	private final ConcurrentMap<String, Entry> streamingStatements = new ConcurrentHashMap<>();
+
+	/**
+	 * 获取原始语句对应的分页语句, 原始语句被重新加载后重新构建
+	 */
+	public MappedStatement get(MappedStatement mappedStatement) {
+		Entry entry = statements.get(mappedStatement.getId());
+		if (entry == null || entry.original != mappedStatement) {
+			entry = new Entry(mappedStatement, copy(mappedStatement, new PagingSqlSource(mappedStatement)));
+			statements.put(mappedStatement.getId(), entry);
+		}
+		return entry.paging;
+	}
+
+	/**
+	 * 获取原始语句对应的流式读取语句: 只能向前滚动, 使用指定的 fetchSize, SQL 来源与分页语句相同
+	 */
+	public MappedStatement getStreaming(MappedStatement mappedStatement, int fetchSize) {
+		Entry entry = streamingStatements.get(mappedStatement.getId());
+		if (entry == null || entry.original != mappedStatement || entry.paging.getFetchSize() != fetchSize) {
+			entry = new Entry(mappedStatement, copy(mappedStatement, new PagingSqlSource(mappedStatement),
+					fetchSize, ResultSetType.FORWARD_ONLY));
+			streamingStatements.put(mappedStatement.getId(), entry);
+		}
+		return entry.paging;
+	}
+
+	/**
+	 * 绑定本次执行的分页 BoundSql, 执行后需要调用 {@link #unbind()}
+	 */
+	public static void bind(BoundSql boundSql) {
+		BOUND_SQL.set(boundSql);
+	}
+
+	public static void unbind() {
+		BOUND_SQL.remove();
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	public void clear() {
+		statements.clear();
+		streamingStatements.clear();
+	}
+
+	/**
+	 * 复制语句的全部属性, 替换SQL来源
+	 */
+	static MappedStatement copy(MappedStatement ms, SqlSource sqlSource) {
+		return copy(ms, sqlSource, ms.getFetchSize(), ms.getResultSetType());
+	}
+
+	/**
+	 * 复制语句的全部属性, 替换SQL来源、fetchSize 及结果集类型
+	 */
+	static MappedStatement copy(MappedStatement ms, SqlSource sqlSource, Integer fetchSize,
+			ResultSetType resultSetType) {
+		MappedStatement.Builder builder = new MappedStatement.Builder(ms.getConfiguration(), ms.getId(), sqlSource,
+				ms.getSqlCommandType());
+		builder.resource(ms.getResource());
+		builder.parameterMap(ms.getParameterMap());
+		builder.resultMaps(ms.getResultMaps());
+		builder.fetchSize(fetchSize);
+		builder.timeout(ms.getTimeout());
+		builder.statementType(ms.getStatementType());
+		builder.resultSetType(resultSetType);
+		builder.cache(ms.getCache());
+		builder.flushCacheRequired(ms.isFlushCacheRequired());
+		builder.useCache(ms.isUseCache());
+		builder.resultOrdered(ms.isResultOrdered());
+		builder.keyGenerator(ms.getKeyGenerator());
+		builder.keyProperty(join(ms.getKeyProperties()));
+		builder.keyColumn(join(ms.getKeyColumns()));
+		builder.databaseId(ms.getDatabaseId());
+		builder.lang(ms.getLang());
+		builder.resulSets(join(ms.getResulSets()));
+		return builder.build();
+	}
+
+	private static String join(String[] values) {
+		return values == null ? null : StringUtils.join(values, ',');
+	}
+
+	/**
+	 * 返回当前线程绑定的分页 BoundSql, 没有绑定时返回原始语句的 BoundSql.
+	 * <p>
+	 * 分页插件只生成一次动态SQL, count 查询与分页查询共用同一个 BoundSql, 执行器取 BoundSql 时不再重新生成
+	 */
+	static class PagingSqlSource implements SqlSource {
+
+		private final MappedStatement original;
+
+		PagingSqlSource(MappedStatement original) {
+			this.original = original;
+		}
+
+		@Override
+		public BoundSql getBoundSql(Object parameterObject) {
+			BoundSql boundSql = BOUND_SQL.get();
+			return boundSql != null ? boundSql : original.getSqlSource().getBoundSql(parameterObject);
+		}
+	}
+
+	private static final class Entry {
+
+		private final MappedStatement original;
+
+		private final MappedStatement paging;
+
+		Entry(MappedStatement original, MappedStatement paging) {
+			this.original = original;
+			this.paging = paging;
+		}
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.executor.ExecutorException;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.ParameterMode;
+import org.apache.ibatis.reflection.ReflectionException;
+import org.apache.ibatis.reflection.ReflectorFactory;
+import org.apache.ibatis.reflection.property.PropertyTokenizer;
+import org.apache.ibatis.reflection.wrapper.DefaultObjectWrapperFactory;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.type.TypeHandler;
+
+import java.lang.reflect.Array;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 参数绑定计划.
+ * <p>
+ * 按 (参数类型, 参数映射) 预先解析每个占位符的属性路径及 TypeHandler, 绑定参数时按解析好的路径直接取值,
+ * 不再为每次执行创建 MetaObject, 也不再为每个参数解析属性名. 取值规则与 DefaultParameterHandler 一致:
+ * 参数本身有 TypeHandler 时直接使用参数, 否则优先从附加参数(foreach、bind)中取值.
+ * <p>
+ * 绑定计划缓存在分页插件上({@link PlanCache}), 由插件在 count 查询及生成缓存键时传入, 不传入缓存时每次新建.
+ */
+final class ParameterBindingPlan {
+
+	private final Configuration configuration;
+
+	private final ReflectorFactory reflectorFactory;
+
+	private final boolean simpleParameter;
+
+	private final boolean customWrappers;
+
+	private final Slot[] slots;
+
+	private ParameterBindingPlan(Configuration configuration, String statementId, List<ParameterMapping> mappings,
+			Class<?> parameterType) {
+		this.configuration = configuration;
+		this.reflectorFactory = configuration.getReflectorFactory();
+		this.simpleParameter = parameterType != null
+				&& configuration.getTypeHandlerRegistry().hasTypeHandler(parameterType);
+		this.customWrappers = !(configuration.getObjectWrapperFactory() instanceof DefaultObjectWrapperFactory);
+		this.slots = new Slot[mappings.size()];
+		for (int i = 0; i < slots.length; i++) {
+			ParameterMapping mapping = mappings.get(i);
+			if (mapping.getMode() != ParameterMode.OUT && mapping.getTypeHandler() == null) {
+				throw new ExecutorException("There was no TypeHandler found for parameter "
+						+ mapping.getProperty() + " of statement " + statementId);
+			}
+			slots[i] = new Slot(mapping);
+		}
+	}
+
+	/**
+	 * 获取绑定计划
+	 *
+	 * @param plans 绑定计划缓存, 为 null 时新建计划
+	 */
+	static ParameterBindingPlan get(PlanCache plans, Configuration configuration, String statementId,
+			List<ParameterMapping> mappings, Object parameterObject) {
+		if (plans != null) {
+			return plans.get(configuration, statementId, mappings, parameterObject);
+		}
+		return new ParameterBindingPlan(configuration, statementId, mappings, getParameterType(parameterObject));
+	}
+
+	private static Class<?> getParameterType(Object parameterObject) {
+		return parameterObject == null ? null : parameterObject.getClass();
+	}
+
+	/**
+	 * 按计划设置 PreparedStatement 的参数
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	void bind(PreparedStatement ps, BoundSql boundSql, Object parameterObject) throws SQLException {
+		Map<String, Object> additional = BoundSqlCopier.getAdditionalParameters(boundSql);
+		for (int i = 0; i < slots.length; i++) {
+			Slot slot = slots[i];
+			if (slot.out) {
+				continue;
+			}
+			Object value = getValue(slot, boundSql, additional, parameterObject);
+			TypeHandler typeHandler = slot.mapping.getTypeHandler();
+			typeHandler.setParameter(ps, i + 1, value, slot.mapping.getJdbcType());
+		}
+	}
+
+	/**
+	 * 按计划取得各参数的值, OUT 参数为 null
+	 */
+	List<Object> values(BoundSql boundSql, Object parameterObject) {
+		Map<String, Object> additional = BoundSqlCopier.getAdditionalParameters(boundSql);
+		List<Object> values = new ArrayList<>(slots.length);
+		for (Slot slot : slots) {
+			values.add(slot.out ? null : getValue(slot, boundSql, additional, parameterObject));
+		}
+		return values;
+	}
+
+	private Object getValue(Slot slot, BoundSql boundSql, Map<String, Object> additional, Object parameterObject) {
+		if (parameterObject == null) {
+			return null;
+		}
+		if (simpleParameter) {
+			return parameterObject;
+		}
+		if (additional == null || customWrappers) {
+			// 无法直接读取附加参数时按 MyBatis 的方式取值
+			if (boundSql.hasAdditionalParameter(slot.property)) {
+				return boundSql.getAdditionalParameter(slot.property);
+			}
+			if (boundSql.hasAdditionalParameter(slot.names[0])) {
+				return navigate(boundSql.getAdditionalParameter(slot.names[0]), slot, 0, true);
+			}
+			return configuration.newMetaObject(parameterObject).getValue(slot.property);
+		}
+		if (additional.containsKey(slot.names[0])) {
+			return navigate(additional.get(slot.names[0]), slot, 0, true);
+		}
+		return navigate(parameterObject, slot, 0, false);
+	}
+
+	/**
+	 * 从 target 开始按属性路径取值
+	 *
+	 * @param resolved target 是否已经是第 start 段属性名的值(还需要取下标)
+	 */
+	private Object navigate(Object target, Slot slot, int start, boolean resolved) {
+		Object current = target;
+		for (int i = start; i < slot.names.length && current != null; i++) {
+			if (!resolved || i > start) {
+				current = getProperty(current, slot.names[i]);
+			}
+			if (current != null && slot.indexes[i] != null) {
+				current = getIndexed(current, slot.indexes[i]);
+			}
+		}
+		return current;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private Object getProperty(Object target, String name) {
+		if (target instanceof Map) {
+			return ((Map) target).get(name);
+		}
+		try {
+			return reflectorFactory.findForClass(target.getClass()).getGetInvoker(name).invoke(target, null);
+		}
+		catch (ReflectionException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new ReflectionException("Could not get property '" + name + "' from " + target.getClass()
+					+ ".  Cause: " + e.toString(), e);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static Object getIndexed(Object collection, String index) {
+		if (collection instanceof Map) {
+			return ((Map) collection).get(index);
+		}
+		int i = Integer.parseInt(index);
+		if (collection instanceof List) {
+			return ((List) collection).get(i);
+		}
+		if (collection.getClass().isArray()) {
+			return Array.get(collection, i);
+		}
+		throw new ReflectionException("The property of " + collection + " is not a List or Array.");
+	}
+
+	/**
+	 * 一个占位符的参数: 预先拆分的属性路径, 如 paging.keyset.values[0] 拆分为
+	 * names = {paging, keyset, values}, indexes = {null, null, 0}
+	 */
+	private static final class Slot {
+
+		private final ParameterMapping mapping;
+
+		private final boolean out;
+
+		private final String property;
+
+		private final String[] names;
+
+		private final String[] indexes;
+
+		Slot(ParameterMapping mapping) {
+			this.mapping = mapping;
+			this.out = mapping.getMode() == ParameterMode.OUT;
+			this.property = mapping.getProperty();
+			List<String> names = new ArrayList<>();
+			List<String> indexes = new ArrayList<>();
+			PropertyTokenizer prop = new PropertyTokenizer(property);
+			while (true) {
+				names.add(prop.getName());
+				indexes.add(prop.getIndex());
+				if (!prop.hasNext()) {
+					break;
+				}
+				prop = prop.next();
+			}
+			this.names = names.toArray(new String[names.size()]);
+			this.indexes = indexes.toArray(new String[indexes.size()]);
+		}
+	}
+
+	/**
+	 * 绑定计划的缓存, 超出容量时淘汰最久未使用的计划
+	 */
+	static final class PlanCache {
+
+		private final Map<Key, ParameterBindingPlan> plans;
+
+		PlanCache(final int maxSize) {
+			this.plans = new LinkedHashMap<Key, ParameterBindingPlan>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, ParameterBindingPlan> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+
+		/**
+		 * 获取绑定计划, 不存在时创建并缓存
+		 */
+		ParameterBindingPlan get(Configuration configuration, String statementId, List<ParameterMapping> mappings,
+				Object parameterObject) {
+			Class<?> parameterType = getParameterType(parameterObject);
+			Key key = new Key(configuration, parameterType, mappings);
+			synchronized (plans) {
+				ParameterBindingPlan plan = plans.get(key);
+				if (plan != null) {
+					return plan;
+				}
+			}
+			ParameterBindingPlan plan = new ParameterBindingPlan(configuration, statementId, mappings, parameterType);
+			synchronized (plans) {
+				plans.put(key, plan);
+			}
+			return plan;
+		}
+
+		int size() {
+			synchronized (plans) {
+				return plans.size();
+			}
+		}
+
+		void clear() {
+			synchronized (plans) {
+				plans.clear();
+			}
+		}
+	}
+
+	private static final class Key {
+
+		private final Configuration configuration;
+
+		private final Class<?> parameterType;
+
+		private final List<ParameterMapping> mappings;
+
+		private final int hash;
+
+		Key(Configuration configuration, Class<?> parameterType, List<ParameterMapping> mappings) {
+			this.configuration = configuration;
+			this.parameterType = parameterType;
+			this.mappings = mappings;
+			int h = System.identityHashCode(configuration);
+			h = 31 * h + (parameterType == null ? 0 : parameterType.hashCode());
+			for (ParameterMapping mapping : mappings) {
+				h = 31 * h + mapping.getProperty().hashCode();
+			}
+			this.hash = h;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			if (hash != that.hash || configuration != that.configuration || parameterType != that.parameterType
+					|| mappings.size() != that.mappings.size()) {
+				return false;
+			}
+			for (int i = 0; i < mappings.size(); i++) {
+				ParameterMapping a = mappings.get(i);
+				ParameterMapping b = that.mappings.get(i);
+				if (a != b && (!a.getProperty().equals(b.getProperty()) || a.getTypeHandler() != b.getTypeHandler()
+						|| a.getJdbcType() != b.getJdbcType() || a.getMode() != b.getMode())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,558 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.interceptor.SqlLexer.Token;
+import net.sephy.mybatis.interceptor.SqlLexer.TokenType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 单条 SELECT 语句的顶层结构.
+ * <p>
+ * 记录各个顶层子句(FROM、WHERE、ORDER BY 等)在原SQL中的位置, 以及 FROM 子句中的 JOIN,
+ * 供 count SQL、分页SQL改写使用. 子查询中的内容不参与子句划分.
+ */
+public class ParsedSelect {
+
+	/**
+	 * 顶层子句, 按在SQL中出现的顺序排列
+	 */
+	public enum Clause {
+		SELECT, FROM, WHERE, GROUP_BY, HAVING, WINDOW, ORDER_BY, LIMIT, LOCK
+	}
+
+	private static final Set<String> SELECT_MODIFIERS = new HashSet<>(Arrays.asList("ALL", "DISTINCT",
+			"DISTINCTROW", "HIGH_PRIORITY", "STRAIGHT_JOIN", "SQL_SMALL_RESULT", "SQL_BIG_RESULT",
+			"SQL_BUFFER_RESULT", "SQL_CACHE", "SQL_NO_CACHE", "SQL_CALC_FOUND_ROWS"));
+
+	private static final Set<String> AGGREGATE_FUNCTIONS = new HashSet<>(Arrays.asList("COUNT", "SUM", "AVG",
+			"MIN", "MAX", "GROUP_CONCAT", "BIT_AND", "BIT_OR", "BIT_XOR", "STD", "STDDEV", "STDDEV_POP",
+			"STDDEV_SAMP", "VARIANCE", "VAR_POP", "VAR_SAMP", "JSON_ARRAYAGG", "JSON_OBJECTAGG", "STRING_AGG",
+			"ARRAY_AGG", "LISTAGG"));
+
+	private static final Set<String> JOIN_MODIFIERS = new HashSet<>(Arrays.asList("NATURAL", "LEFT", "RIGHT",
+			"FULL", "INNER", "CROSS", "OUTER"));
+
+	private static final Set<String> NON_ALIAS_WORDS = new HashSet<>(Arrays.asList("ON", "USING", "JOIN",
+			"STRAIGHT_JOIN", "NATURAL", "LEFT", "RIGHT", "FULL", "INNER", "CROSS", "OUTER", "WHERE", "GROUP",
+			"HAVING", "ORDER", "LIMIT", "USE", "FORCE", "IGNORE", "PARTITION", "FOR", "LOCK", "WINDOW"));
+
+	private final String sql;
+
+	private final List<Token> tokens;
+
+	private final int[] clauseTokens = new int[Clause.values().length];
+
+	private int end;
+
+	private int endToken;
+
+	private boolean distinct;
+
+	private List<Join> joins = Collections.emptyList();
+
+	private ParsedSelect(String sql, List<Token> tokens) {
+		this.sql = sql;
+		this.tokens = tokens;
+		Arrays.fill(clauseTokens, -1);
+		this.end = tokens.isEmpty() ? 0 : tokens.get(tokens.size() - 1).getEnd();
+		this.endToken = tokens.size();
+	}
+
+	/**
+	 * 按标准SQL的注释解析SQL, 见 {@link #parse(String, boolean)}
+	 */
+	public static ParsedSelect parse(String sql) {
+		return parse(sql, false);
+	}
+
+	/**
+	 * 解析SQL
+	 *
+	 * @param sql SQL语句
+	 * @param hashComments # 是否开始单行注释(MySQL)
+	 * @return 解析结果, 不是单条 SELECT 语句(如 UNION、WITH、多条语句)时返回 null
+	 */
+	public static ParsedSelect parse(String sql, boolean hashComments) {
+		List<Token> tokens = SqlLexer.tokenize(sql, hashComments);
+		if (tokens.isEmpty() || !tokens.get(0).isKeyword("select")) {
+			return null;
+		}
+		ParsedSelect select = new ParsedSelect(sql, tokens);
+		select.clauseTokens[Clause.SELECT.ordinal()] = 0;
+		for (int i = 1; i < tokens.size() && SELECT_MODIFIERS.contains(upper(tokens.get(i))); i++) {
+			if (tokens.get(i).isKeyword("distinct") || tokens.get(i).isKeyword("distinctrow")) {
+				select.distinct = true;
+			}
+		}
+		Clause current = Clause.SELECT;
+		for (int i = 1; i < tokens.size(); i++) {
+			Token token = tokens.get(i);
+			if (token.getDepth() != 0) {
+				continue;
+			}
+			if (token.getType() == TokenType.SEMICOLON) {
+				for (int j = i + 1; j < tokens.size(); j++) {
+					if (tokens.get(j).getType() != TokenType.SEMICOLON) {
+						return null; // 多条语句
+					}
+				}
+				select.end = tokens.get(i - 1).getEnd();
+				select.endToken = i;
+				break;
+			}
+			if (token.getType() != TokenType.WORD) {
+				continue;
+			}
+			String word = upper(token);
+			Clause next = null;
+			if ("UNION".equals(word) || "INTERSECT".equals(word) || "EXCEPT".equals(word)
+					|| "MINUS".equals(word) || "INTO".equals(word)) {
+				return null;
+			}
+			else if ("FROM".equals(word)) {
+				next = Clause.FROM;
+			}
+			else if ("WHERE".equals(word)) {
+				next = Clause.WHERE;
+			}
+			else if ("GROUP".equals(word) && select.isKeywordAt(i + 1, "by")) {
+				next = Clause.GROUP_BY;
+			}
+			else if ("HAVING".equals(word)) {
+				next = Clause.HAVING;
+			}
+			else if ("WINDOW".equals(word)) {
+				next = Clause.WINDOW;
+			}
+			else if ("ORDER".equals(word) && select.isKeywordAt(i + 1, "by")) {
+				next = Clause.ORDER_BY;
+			}
+			else if ("LIMIT".equals(word) || "OFFSET".equals(word) || "FETCH".equals(word)) {
+				if (current == Clause.LIMIT) {
+					continue; // limit ? offset ? / offset ? rows fetch next ? rows only
+				}
+				next = Clause.LIMIT;
+			}
+			else if ("FOR".equals(word)
+					&& (select.isKeywordAt(i + 1, "update") || select.isKeywordAt(i + 1, "share"))
+					|| "LOCK".equals(word) && select.isKeywordAt(i + 1, "in")) {
+				next = Clause.LOCK;
+			}
+			if (next != null) {
+				if (next.ordinal() <= current.ordinal()) {
+					return null; // 子句顺序不符合预期, 不做处理
+				}
+				select.clauseTokens[next.ordinal()] = i;
+				current = next;
+			}
+		}
+		if (select.hasClause(Clause.FROM)) {
+			select.joins = select.parseJoins();
+		}
+		return select;
+	}
+
+	private static String upper(Token token) {
+		return token.getText().toUpperCase(Locale.ENGLISH);
+	}
+
+	private boolean isKeywordAt(int index, String keyword) {
+		return index >= 0 && index < tokens.size() && tokens.get(index).isKeyword(keyword);
+	}
+
+	private List<Join> parseJoins() {
+		int from = clauseTokens[Clause.FROM.ordinal()] + 1;
+		int to = getClauseEndToken(Clause.FROM);
+		List<Join> result = new ArrayList<>();
+		Join last = null;
+		for (int i = from; i < to; i++) {
+			Token token = tokens.get(i);
+			if (token.getDepth() != 0) {
+				continue;
+			}
+			int keywordEnd = -1;
+			boolean left = false;
+			boolean natural = false;
+			if (token.getType() == TokenType.COMMA) {
+				keywordEnd = i;
+			}
+			else if (token.getType() == TokenType.WORD) {
+				int j = i;
+				while (j < to && JOIN_MODIFIERS.contains(upper(tokens.get(j)))) {
+					left |= tokens.get(j).isKeyword("left");
+					natural |= tokens.get(j).isKeyword("natural");
+					j++;
+				}
+				if (j < to && (tokens.get(j).isKeyword("join") || tokens.get(j).isKeyword("straight_join"))) {
+					keywordEnd = j;
+				}
+			}
+			if (keywordEnd < 0) {
+				continue;
+			}
+			if (last != null) {
+				last.endToken = i;
+			}
+			last = new Join(i, keywordEnd, left && !natural, parseAlias(keywordEnd + 1, to));
+			result.add(last);
+			i = keywordEnd;
+		}
+		if (last != null) {
+			last.endToken = to;
+		}
+		return result;
+	}
+
+	private String parseAlias(int index, int to) {
+		if (index >= to) {
+			return null;
+		}
+		String table = null;
+		int i = index;
+		if (tokens.get(i).getType() == TokenType.LEFT_PAREN) {
+			int depth = tokens.get(i).getDepth();
+			i++;
+			while (i < to && !(tokens.get(i).getType() == TokenType.RIGHT_PAREN && tokens.get(i).getDepth() == depth)) {
+				i++;
+			}
+			i++;
+		}
+		else {
+			while (i < to && isIdentifier(tokens.get(i))) {
+				table = tokens.get(i).getIdentifier();
+				i++;
+				if (i < to && tokens.get(i).getType() == TokenType.DOT) {
+					i++;
+				}
+				else {
+					break;
+				}
+			}
+		}
+		if (i < to && tokens.get(i).isKeyword("as")) {
+			i++;
+		}
+		if (i < to && isIdentifier(tokens.get(i)) && !NON_ALIAS_WORDS.contains(upper(tokens.get(i)))) {
+			return tokens.get(i).getIdentifier();
+		}
+		return table;
+	}
+
+	private static boolean isIdentifier(Token token) {
+		return token.getType() == TokenType.WORD || token.getType() == TokenType.QUOTED_IDENTIFIER;
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	public List<Token> getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * 语句结束位置, 不包含末尾的分号和注释
+	 */
+	public int getEnd() {
+		return end;
+	}
+
+	public boolean isDistinct() {
+		return distinct;
+	}
+
+	/**
+	 * 是否为可以直接改写的简单查询: 有 FROM, 没有 DISTINCT、GROUP BY、HAVING、WINDOW、LIMIT
+	 */
+	public boolean isSimple() {
+		return hasClause(Clause.FROM) && !distinct && !hasClause(Clause.GROUP_BY) && !hasClause(Clause.HAVING)
+				&& !hasClause(Clause.WINDOW) && !hasClause(Clause.LIMIT);
+	}
+
+	public boolean hasClause(Clause clause) {
+		return clauseTokens[clause.ordinal()] >= 0;
+	}
+
+	/**
+	 * 子句起始位置(子句关键字的位置), 不存在时返回 -1
+	 */
+	public int getClauseStart(Clause clause) {
+		int index = clauseTokens[clause.ordinal()];
+		return index < 0 ? -1 : tokens.get(index).getStart();
+	}
+
+	/**
+	 * 子句结束位置, 即下一个子句的起始位置或语句结束位置
+	 */
+	public int getClauseEnd(Clause clause) {
+		int index = getClauseEndToken(clause);
+		return index < endToken ? tokens.get(index).getStart() : end;
+	}
+
+	/**
+	 * 子句关键字之后的内容起始位置, 如 ORDER BY 之后第一个排序项的位置
+	 */
+	public int getClauseBodyStart(Clause clause) {
+		int index = clauseTokens[clause.ordinal()];
+		if (index < 0) {
+			return -1;
+		}
+		if (clause == Clause.GROUP_BY || clause == Clause.ORDER_BY) {
+			index++;
+		}
+		return tokens.get(index).getEnd();
+	}
+
+	public String getClauseText(Clause clause) {
+		if (!hasClause(clause)) {
+			return "";
+		}
+		return sql.substring(getClauseStart(clause), getClauseEnd(clause));
+	}
+
+	private int getClauseEndToken(Clause clause) {
+		for (int i = clause.ordinal() + 1; i < clauseTokens.length; i++) {
+			if (clauseTokens[i] >= 0) {
+				return clauseTokens[i];
+			}
+		}
+		return endToken;
+	}
+
+	/**
+	 * 统计 [start, end) 范围内的参数占位符个数
+	 */
+	public int countParameters(int start, int end) {
+		int count = 0;
+		for (Token token : tokens) {
+			if (token.getStart() >= end) {
+				break;
+			}
+			if (token.getType() == TokenType.PARAMETER && token.getStart() >= start) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 统计子句中的参数占位符个数
+	 */
+	public int countParameters(Clause clause) {
+		return hasClause(clause) ? countParameters(getClauseStart(clause), getClauseEnd(clause)) : 0;
+	}
+
+	/**
+	 * 查询列表中是否直接使用了聚合函数(不含窗口函数), 例如 select max(id) from t
+	 */
+	public boolean hasAggregateSelectItem() {
+		int to = getClauseEndToken(Clause.SELECT);
+		for (int i = 1; i < to; i++) {
+			Token token = tokens.get(i);
+			if (token.getDepth() != 0 || token.getType() != TokenType.WORD
+					|| !AGGREGATE_FUNCTIONS.contains(upper(token)) || i + 1 >= to
+					|| tokens.get(i + 1).getType() != TokenType.LEFT_PAREN) {
+				continue;
+			}
+			int j = i + 2;
+			while (j < to && !(tokens.get(j).getType() == TokenType.RIGHT_PAREN && tokens.get(j).getDepth() == 0)) {
+				j++;
+			}
+			if (j + 1 >= to || !tokens.get(j + 1).isKeyword("over")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 查询列表中的各项, 不含 DISTINCT 等修饰符
+	 */
+	public List<SelectItem> getSelectItems() {
+		int to = getClauseEndToken(Clause.SELECT);
+		int i = 1;
+		while (i < to && SELECT_MODIFIERS.contains(upper(tokens.get(i)))) {
+			i++;
+		}
+		List<SelectItem> items = new ArrayList<>();
+		int start = i;
+		for (; i <= to; i++) {
+			if (i == to || tokens.get(i).getDepth() == 0 && tokens.get(i).getType() == TokenType.COMMA) {
+				if (i > start) {
+					items.add(new SelectItem(start, i));
+				}
+				start = i + 1;
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * FROM 子句中除第一张表以外的连接
+	 */
+	public List<Join> getJoins() {
+		return joins;
+	}
+
+	/**
+	 * 判断别名在 [start, end) 范围内是否以 "alias." 的形式被引用
+	 */
+	public boolean isAliasReferenced(String alias, int start, int end) {
+		for (int i = 0; i + 1 < tokens.size(); i++) {
+			Token token = tokens.get(i);
+			if (token.getStart() >= end) {
+				break;
+			}
+			if (token.getStart() >= start && isIdentifier(token) && token.getIdentifier().equalsIgnoreCase(alias)
+					&& tokens.get(i + 1).getType() == TokenType.DOT) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 查询列表中的一项
+	 */
+	public class SelectItem {
+
+		private final boolean column;
+
+		private final String expression;
+
+		private final String label;
+
+		SelectItem(int startToken, int endToken) {
+			Token last = tokens.get(endToken - 1);
+			boolean columnRef = true;
+			for (int i = startToken; i < endToken && columnRef; i++) {
+				columnRef = (i - startToken) % 2 == 0 ? isIdentifier(tokens.get(i))
+						: tokens.get(i).getType() == TokenType.DOT;
+			}
+			columnRef &= isIdentifier(last);
+			int aliasStart = -1;
+			if (!columnRef && endToken - startToken >= 2 && isIdentifier(last) && !last.isKeyword("end")) {
+				Token previous = tokens.get(endToken - 2);
+				if (previous.isKeyword("as")) {
+					aliasStart = endToken - 2;
+				}
+				else if (previous.getType() == TokenType.RIGHT_PAREN || isIdentifier(previous)) {
+					aliasStart = endToken - 1;
+				}
+			}
+			this.column = columnRef;
+			if (columnRef) {
+				this.expression = sql.substring(tokens.get(startToken).getStart(), last.getEnd());
+				this.label = last.getIdentifier();
+			}
+			else if (aliasStart > startToken) {
+				this.expression = sql.substring(tokens.get(startToken).getStart(),
+						tokens.get(aliasStart - 1).getEnd());
+				this.label = last.getIdentifier();
+			}
+			else {
+				this.expression = sql.substring(tokens.get(startToken).getStart(), last.getEnd());
+				this.label = null;
+			}
+		}
+
+		/**
+		 * 是否为 [表.]列 形式的列引用
+		 */
+		public boolean isColumn() {
+			return column;
+		}
+
+		/**
+		 * 不含别名的表达式
+		 */
+		public String getExpression() {
+			return expression;
+		}
+
+		/**
+		 * 结果列名: 别名或列名, 没有别名的表达式及 * 为 null
+		 */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/**
+	 * FROM 子句中的一个连接, 从连接关键字(或逗号)开始, 到下一个连接或子句之前结束
+	 */
+	public class Join {
+
+		private final int startToken;
+
+		private final int keywordEndToken;
+
+		private int endToken;
+
+		private final boolean leftOuter;
+
+		private final String alias;
+
+		Join(int startToken, int keywordEndToken, boolean leftOuter, String alias) {
+			this.startToken = startToken;
+			this.keywordEndToken = keywordEndToken;
+			this.leftOuter = leftOuter;
+			this.alias = alias;
+		}
+
+		public int getStart() {
+			return tokens.get(startToken).getStart();
+		}
+
+		public int getEnd() {
+			return endToken < ParsedSelect.this.endToken ? tokens.get(endToken).getStart() : end;
+		}
+
+		/**
+		 * 是否为 LEFT [OUTER] JOIN
+		 */
+		public boolean isLeftOuter() {
+			return leftOuter;
+		}
+
+		/**
+		 * 是否为逗号分隔的表
+		 */
+		public boolean isComma() {
+			return tokens.get(keywordEndToken).getType() == TokenType.COMMA;
+		}
+
+		/**
+		 * 连接表的别名, 没有别名时为表名
+		 */
+		public String getAlias() {
+			return alias;
+		}
+
+		public String getText() {
+			return sql.substring(getStart(), getEnd());
+		}
+	}
+}
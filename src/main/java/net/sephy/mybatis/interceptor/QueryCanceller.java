@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 取消当前线程正在执行的分页查询.
+ * <p>
+ * 绑定到执行查询的线程后, 分页插件将该线程上执行的 count 查询及分页查询的 Statement 登记到这里,
+ * 在其他线程调用 {@link #cancel()} 时对它们调用 {@link Statement#cancel()}. 语句执行完成后注销, 取消之后再登记的语句
+ * 直接报错, 不再执行. 没有绑定时分页插件不做任何登记.
+ * <p>
+ * 在其他线程上为本次查询执行的语句(如并发的 count 查询)使用各自的取消器, 通过 {@link #link(QueryCanceller)}
+ * 关联后随本取消器一起取消.
+ */
+public class QueryCanceller {
+
+	private static final Log LOG = LogFactory.getLog(QueryCanceller.class);
+
+	private static final ThreadLocal<QueryCanceller> CURRENT = new ThreadLocal<>();
+
+	private final List<Statement> statements = new ArrayList<>();
+
+	private final List<QueryCanceller> children = new ArrayList<>();
+
+	private volatile boolean cancelled;
+
+	/**
+	 * 绑定到当前线程, 查询结束后需要调用 {@link #unbind()}
+	 */
+	public static void bind(QueryCanceller canceller) {
+		CURRENT.set(canceller);
+	}
+
+	public static void unbind() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * 当前线程绑定的取消器, 没有绑定时返回 null
+	 */
+	public static QueryCanceller current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * 登记即将执行的语句, 已取消时抛出异常. 同时去掉已关闭但没有注销的语句(如执行出错的语句)
+	 */
+	public void register(Statement statement) throws SQLException {
+		synchronized (statements) {
+			if (cancelled) {
+				throw new SQLException("Query cancelled");
+			}
+			for (Iterator<Statement> it = statements.iterator(); it.hasNext();) {
+				if (it.next().isClosed()) {
+					it.remove();
+				}
+			}
+			statements.add(statement);
+		}
+	}
+
+	/**
+	 * 注销执行完成的语句
+	 */
+	public void unregister(Statement statement) {
+		synchronized (statements) {
+			statements.remove(statement);
+		}
+	}
+
+	/**
+	 * 关联其他线程上的取消器, 取消时一起取消; 已取消时立即取消
+	 */
+	public void link(QueryCanceller child) {
+		synchronized (statements) {
+			if (!cancelled) {
+				children.add(child);
+				return;
+			}
+		}
+		child.cancel();
+	}
+
+	/**
+	 * 解除关联, 关联的查询完成后调用
+	 */
+	public void unlink(QueryCanceller child) {
+		synchronized (statements) {
+			children.remove(child);
+		}
+	}
+
+	/**
+	 * 取消已登记的语句及关联的取消器, 之后登记的语句不再执行
+	 */
+	public void cancel() {
+		List<Statement> running;
+		List<QueryCanceller> linked;
+		synchronized (statements) {
+			cancelled = true;
+			running = new ArrayList<>(statements);
+			statements.clear();
+			linked = new ArrayList<>(children);
+			children.clear();
+		}
+		for (QueryCanceller child : linked) {
+			child.cancel();
+		}
+		for (Statement statement : running) {
+			try {
+				if (!statement.isClosed()) {
+					statement.cancel();
+				}
+			}
+			catch (SQLException e) {
+				LOG.debug("Failed to cancel statement: " + e.getMessage());
+			}
+		}
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * count 查询发往只读副本, 读写事务中的 count 查询仍在主连接上执行.
+ * <p>
+ * 主连接处于自动提交或只读状态时, 分页数据本身可以容忍副本的复制延迟, count 查询在副本上执行;
+ * 读写事务中需要读到本事务写入的数据, 不做路由.
+ *
+ * <pre>
+ * interceptor.setCountRoutingPolicy(new ReplicaCountRoutingPolicy(replicaDataSource,
+ *         "com.example.ReportMapper.*"));
+ * </pre>
+ */
+public class ReplicaCountRoutingPolicy implements CountRoutingPolicy {
+
+	private final DataSource replica;
+
+	private final StatementMatcher statements;
+
+	/**
+	 * 所有语句的 count 查询都发往副本
+	 */
+	public ReplicaCountRoutingPolicy(DataSource replica) {
+		this(replica, null);
+	}
+
+	/**
+	 * @param replica 只读副本
+	 * @param statements 发往副本的语句, 格式同 sliceStatements, 为空时所有语句都发往副本
+	 */
+	public ReplicaCountRoutingPolicy(DataSource replica, String statements) {
+		Assert.notNull(replica, "Replica DataSource must not be null!");
+		this.replica = replica;
+		this.statements = StringUtils.isBlank(statements) ? null : StatementMatcher.parse(statements);
+	}
+
+	@Override
+	public DataSource route(MappedStatement mappedStatement, Connection connection) throws SQLException {
+		if (statements != null && !statements.matches(mappedStatement.getId())) {
+			return null;
+		}
+		if (!connection.getAutoCommit() && !connection.isReadOnly()) {
+			return null;
+		}
+		return replica;
+	}
+}
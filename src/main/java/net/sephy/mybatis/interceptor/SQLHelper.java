@@ -17,30 +17,25 @@
 package net.sephy.mybatis.interceptor;
 
 import net.sephy.mybatis.util.Paging;
+import net.sephy.mybatis.util.PagingConsts;
 import net.sephy.mybatis.dialect.Dialect;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.ibatis.executor.ErrorContext;
-import org.apache.ibatis.executor.ExecutorException;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
 import org.apache.ibatis.mapping.ParameterMapping;
-import org.apache.ibatis.mapping.ParameterMode;
-import org.apache.ibatis.reflection.MetaObject;
-import org.apache.ibatis.reflection.property.PropertyTokenizer;
-import org.apache.ibatis.scripting.xmltags.ForEachSqlNode;
 import org.apache.ibatis.session.Configuration;
-import org.apache.ibatis.type.TypeHandler;
-import org.apache.ibatis.type.TypeHandlerRegistry;
-import org.springframework.beans.DirectFieldAccessor;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * SQL工具类
@@ -49,6 +44,8 @@ import java.util.regex.Pattern;
  */
 public abstract class SQLHelper {
 
+	private static final CountSqlParser COUNT_SQL_PARSER = new CountSqlParser();
+
 	/**
 	 * 对SQL参数(?)设值,参考org.apache.ibatis.executor.parameter.
 	 * DefaultParameterHandler
@@ -59,53 +56,53 @@ public abstract class SQLHelper {
 	 * @param parameterObject 参数对象
 	 * @throws SQLException 数据库异常
 	 */
-	@SuppressWarnings("unchecked")
 	public static void setParameters(PreparedStatement ps, MappedStatement mappedStatement,
 			BoundSql boundSql, Object parameterObject) throws SQLException {
+		setParameters(ps, mappedStatement, boundSql, parameterObject, null);
+	}
+
+	/**
+	 * 对SQL参数(?)设值, 使用分页插件缓存的绑定计划
+	 *
+	 * @param plans 绑定计划缓存, 为 null 时新建计划
+	 */
+	static void setParameters(PreparedStatement ps, MappedStatement mappedStatement, BoundSql boundSql,
+			Object parameterObject, ParameterBindingPlan.PlanCache plans) throws SQLException {
 		ErrorContext.instance().activity("setting parameters")
 				.object(mappedStatement.getParameterMap().getId());
 		List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
-		if (parameterMappings != null) {
-			Configuration configuration = mappedStatement.getConfiguration();
-			TypeHandlerRegistry typeHandlerRegistry = configuration.getTypeHandlerRegistry();
-			MetaObject metaObject = parameterObject == null ? null : configuration
-					.newMetaObject(parameterObject);
-			for (int i = 0; i < parameterMappings.size(); i++) {
-				ParameterMapping parameterMapping = parameterMappings.get(i);
-				if (parameterMapping.getMode() != ParameterMode.OUT) {
-					Object value;
-					String propertyName = parameterMapping.getProperty();
-					PropertyTokenizer prop = new PropertyTokenizer(propertyName);
-					if (parameterObject == null) {
-						value = null;
-					}
-					else if (typeHandlerRegistry.hasTypeHandler(parameterObject.getClass())) {
-						value = parameterObject;
-					}
-					else if (boundSql.hasAdditionalParameter(propertyName)) {
-						value = boundSql.getAdditionalParameter(propertyName);
-					}
-					else if (propertyName.startsWith(ForEachSqlNode.ITEM_PREFIX)
-							&& boundSql.hasAdditionalParameter(prop.getName())) {
-						value = boundSql.getAdditionalParameter(prop.getName());
-						if (value != null) {
-							value = configuration.newMetaObject(value).getValue(
-									propertyName.substring(prop.getName().length()));
-						}
-					}
-					else {
-						value = metaObject == null ? null : metaObject.getValue(propertyName);
-					}
-					@SuppressWarnings("rawtypes")
-					TypeHandler typeHandler = parameterMapping.getTypeHandler();
-					if (typeHandler == null) {
-						throw new ExecutorException("There was no TypeHandler found for parameter "
-								+ propertyName + " of statement " + mappedStatement.getId());
-					}
-					typeHandler.setParameter(ps, i + 1, value, parameterMapping.getJdbcType());
-				}
-			}
+		if (parameterMappings != null && !parameterMappings.isEmpty()) {
+			ParameterBindingPlan.get(plans, mappedStatement.getConfiguration(), mappedStatement.getId(),
+					parameterMappings, parameterObject).bind(ps, boundSql, parameterObject);
+		}
+	}
+
+	/**
+	 * 按参数映射的顺序取得本次执行绑定的参数值
+	 *
+	 * @param mappedStatement MappedStatement
+	 * @param boundSql SQL
+	 * @param parameterObject 参数对象
+	 * @return 参数值, OUT 参数为 null
+	 */
+	public static List<Object> getParameterValues(MappedStatement mappedStatement, BoundSql boundSql,
+			Object parameterObject) {
+		return getParameterValues(mappedStatement, boundSql, parameterObject, null);
+	}
+
+	/**
+	 * 按参数映射的顺序取得本次执行绑定的参数值, 使用分页插件缓存的绑定计划
+	 *
+	 * @param plans 绑定计划缓存, 为 null 时新建计划
+	 */
+	static List<Object> getParameterValues(MappedStatement mappedStatement, BoundSql boundSql,
+			Object parameterObject, ParameterBindingPlan.PlanCache plans) {
+		List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
+		if (parameterMappings == null || parameterMappings.isEmpty()) {
+			return Collections.emptyList();
 		}
+		return ParameterBindingPlan.get(plans, mappedStatement.getConfiguration(), mappedStatement.getId(),
+				parameterMappings, parameterObject).values(boundSql, parameterObject);
 	}
 
 	/**
@@ -119,33 +116,262 @@ public abstract class SQLHelper {
 	 */
 	public static long getCount(final Connection connection, final MappedStatement mappedStatement,
 			final Object parameterObject, final BoundSql boundSql, Log log) throws SQLException {
-		String sql = boundSql.getSql();
-		final String countSql = "select count(*) " + removeSelect(removeOrders(sql));
-		Connection conn = connection;
-		PreparedStatement ps = null;
+		return getCount(connection, mappedStatement, parameterObject, boundSql,
+				getCountSql(boundSql.getSql()), log);
+	}
+
+	/**
+	 * 使用已生成的 count SQL 查询总纪录数
+	 * @param connection 数据库连接
+	 * @param mappedStatement mapped
+	 * @param parameterObject 参数
+	 * @param boundSql boundSql
+	 * @param countSql 由 {@link #getCountSql(String)} 生成的 count SQL
+	 * @return 总记录数
+	 * @throws SQLException sql查询错误
+	 */
+	public static long getCount(final Connection connection, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql, Log log)
+			throws SQLException {
+		return getCount(connection, mappedStatement, parameterObject, boundSql, countSql, log, null);
+	}
+
+	static long getCount(final Connection connection, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql, Log log,
+			ParameterBindingPlan.PlanCache plans) throws SQLException {
+		if (connection == null) {
+			// 从连接池中获取新连接
+			return getCount(mappedStatement.getConfiguration().getEnvironment().getDataSource(), mappedStatement,
+					parameterObject, boundSql, countSql, log, plans);
+		}
+		logCountSql(countSql, log);
+		PreparedStatement ps = connection.prepareStatement(countSql);
+		try {
+			return getCount(ps, mappedStatement, parameterObject, boundSql, countSql, plans);
+		}
+		finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * 在指定 DataSource 的新连接上查询总纪录数, 查询后关闭连接
+	 * @param dataSource 数据源, 如 Environment 的 DataSource 或只读副本
+	 * @param mappedStatement mapped
+	 * @param parameterObject 参数
+	 * @param boundSql boundSql
+	 * @param countSql count SQL
+	 * @return 总记录数
+	 * @throws SQLException sql查询错误
+	 */
+	public static long getCount(final DataSource dataSource, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql, Log log)
+			throws SQLException {
+		return getCount(dataSource, mappedStatement, parameterObject, boundSql, countSql, log, null);
+	}
+
+	static long getCount(final DataSource dataSource, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql, Log log,
+			ParameterBindingPlan.PlanCache plans) throws SQLException {
+		logCountSql(countSql, log);
+		Connection conn = dataSource.getConnection();
+		try {
+			PreparedStatement ps = conn.prepareStatement(countSql);
+			try {
+				return getCount(ps, mappedStatement, parameterObject, boundSql, countSql, plans);
+			}
+			finally {
+				ps.close();
+			}
+		}
+		finally {
+			// 内部获取的连接, 主动关闭
+			conn.close();
+		}
+	}
+
+	private static void logCountSql(String countSql, Log log) {
+		if (log.isDebugEnabled()) {
+			log.debug("COUNT SQL: "
+					+ StringUtils.replaceEach(countSql, new String[]{"\n", "\t"},
+                    new String[]{" ", " "}));
+		}
+	}
+
+	/**
+	 * 在已预编译的 count 语句上查询总纪录数, 执行后不关闭语句
+	 * @param ps count SQL 的预编译语句
+	 * @param mappedStatement mapped
+	 * @param parameterObject 参数
+	 * @param boundSql boundSql
+	 * @param countSql count SQL
+	 * @return 总记录数
+	 * @throws SQLException sql查询错误
+	 */
+	public static long getCount(final PreparedStatement ps, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql) throws SQLException {
+		return getCount(ps, mappedStatement, parameterObject, boundSql, countSql, null);
+	}
+
+	static long getCount(final PreparedStatement ps, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql,
+			ParameterBindingPlan.PlanCache plans) throws SQLException {
+		// 共用原 BoundSql 的附加参数, 解决MyBatis 分页foreach 参数失效
+		BoundSql countBS = BoundSqlCopier.copy(mappedStatement.getConfiguration(), boundSql, countSql,
+				boundSql.getParameterMappings());
+		setParameters(ps, mappedStatement, countBS, parameterObject, plans);
+		QueryCanceller canceller = QueryCanceller.current();
+		if (canceller != null) {
+			canceller.register(ps);
+		}
+		try {
+			ResultSet rs = ps.executeQuery();
+			try {
+				long count = 0;
+				if (rs.next()) {
+					count = rs.getLong(1);
+				}
+				return count;
+			}
+			finally {
+				rs.close();
+			}
+		}
+		finally {
+			// 缓存的预编译语句执行后不关闭, 需要主动注销
+			if (canceller != null) {
+				canceller.unregister(ps);
+			}
+		}
+	}
+
+	/**
+	 * 估算总记录数. 没有条件的单表查询读取表统计信息, 其他查询读取 count SQL 执行计划中的估算行数
+	 * @param connection 数据库连接
+	 * @param mappedStatement mapped
+	 * @param parameterObject 参数
+	 * @param boundSql 原查询语句
+	 * @param countSql count SQL
+	 * @param dialect 方言
+	 * @return 估算的总记录数, 无法估算时返回 -1
+	 * @throws SQLException sql查询错误
+	 */
+	public static long getEstimatedCount(final Connection connection, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql, Dialect dialect, Log log)
+			throws SQLException {
+		return getEstimatedCount(connection, mappedStatement, parameterObject, boundSql, countSql, dialect, log,
+				null);
+	}
+
+	static long getEstimatedCount(final Connection connection, final MappedStatement mappedStatement,
+			final Object parameterObject, final BoundSql boundSql, final String countSql, Dialect dialect, Log log,
+			ParameterBindingPlan.PlanCache plans) throws SQLException {
+		String[] table = getSingleTable(ParsedSelect.parse(boundSql.getSql(), dialect.supportsHashComments()));
+		if (table != null && dialect.getTableRowsSql() != null) {
+			PreparedStatement ps = connection.prepareStatement(dialect.getTableRowsSql());
+			try {
+				ps.setString(1, table[0]);
+				ps.setString(2, table[1]);
+				ResultSet rs = ps.executeQuery();
+				try {
+					if (rs.next()) {
+						long rows = rs.getLong(1);
+						if (!rs.wasNull()) {
+							return rows;
+						}
+					}
+				}
+				finally {
+					rs.close();
+				}
+			}
+			finally {
+				ps.close();
+			}
+		}
+		String estimatedCountSql = dialect.getEstimatedCountSql(countSql);
+		if (estimatedCountSql == null) {
+			return PagingConsts.UNKNOWN_TOTAL;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("ESTIMATED COUNT SQL: " + StringUtils.replaceEach(estimatedCountSql, new String[] { "\n",
+					"\t" }, new String[] { " ", " " }));
+		}
+		PreparedStatement ps = connection.prepareStatement(estimatedCountSql);
+		try {
+			BoundSql estimateBS = BoundSqlCopier.copy(mappedStatement.getConfiguration(), boundSql,
+					estimatedCountSql, boundSql.getParameterMappings());
+			setParameters(ps, mappedStatement, estimateBS, parameterObject, plans);
+			ResultSet rs = ps.executeQuery();
+			try {
+				return dialect.getEstimatedCount(rs);
+			}
+			finally {
+				rs.close();
+			}
+		}
+		finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * 没有条件的单表查询, 返回 {库名(可能为 null), 表名}, 其他查询返回 null
+	 */
+	private static String[] getSingleTable(ParsedSelect select) {
+		if (select == null || !select.isSimple() || select.hasClause(ParsedSelect.Clause.WHERE)
+				|| !select.getJoins().isEmpty()) {
+			return null;
+		}
+		int start = select.getClauseBodyStart(ParsedSelect.Clause.FROM);
+		int end = select.getClauseEnd(ParsedSelect.Clause.FROM);
+		List<SqlLexer.Token> names = new ArrayList<>();
+		boolean dot = false;
+		for (SqlLexer.Token token : select.getTokens()) {
+			if (token.getStart() < start || token.getEnd() > end) {
+				continue;
+			}
+			boolean name = token.getType() == SqlLexer.TokenType.WORD
+					|| token.getType() == SqlLexer.TokenType.QUOTED_IDENTIFIER;
+			if (name && (names.isEmpty() || dot)) {
+				names.add(token);
+				dot = false;
+			}
+			else if (token.getType() == SqlLexer.TokenType.DOT && !names.isEmpty() && !dot) {
+				dot = true;
+			}
+			else if (!name || names.isEmpty() || dot) {
+				// 子查询、函数等
+				return null;
+			}
+			else {
+				// 别名
+				break;
+			}
+		}
+		if (names.isEmpty() || names.size() > 2 || dot) {
+			return null;
+		}
+		return names.size() == 1 ? new String[] { null, names.get(0).getIdentifier() }
+				: new String[] { names.get(0).getIdentifier(), names.get(1).getIdentifier() };
+	}
+
+	/**
+	 * 在分页查询所用的连接上执行 select FOUND_ROWS() 等无参数查询, 读取总记录数
+	 * @param connection 执行分页查询的数据库连接
+	 * @param sql 查询总记录数的SQL
+	 * @return 总记录数
+	 * @throws SQLException sql查询错误
+	 */
+	public static long getFoundRows(final Connection connection, final String sql, Log log) throws SQLException {
+		if (log.isDebugEnabled()) {
+			log.debug("COUNT SQL: " + sql);
+		}
+		Statement statement = null;
 		ResultSet rs = null;
-		boolean createConn = (connection == null); // 是否需要从连接池中获取新连接
 		try {
-			if (log.isDebugEnabled()) {
-				log.debug("COUNT SQL: "
-						+ StringUtils.replaceEach(countSql, new String[]{"\n", "\t"},
-                        new String[]{" ", " "}));
-			}
-			if (createConn) {
-				conn = mappedStatement.getConfiguration().getEnvironment().getDataSource()
-						.getConnection();
-			}
-			ps = conn.prepareStatement(countSql);
-			BoundSql countBS = new BoundSql(mappedStatement.getConfiguration(), countSql,
-					boundSql.getParameterMappings(), parameterObject);
-
-			// 解决MyBatis 分页foreach 参数失效 start
-			DirectFieldAccessor cpfrom = new DirectFieldAccessor(boundSql);
-			DirectFieldAccessor cpTo = new DirectFieldAccessor(countBS);
-			cpTo.setPropertyValue("metaParameters", cpfrom.getPropertyValue("metaParameters"));
-			// 解决MyBatis 分页foreach 参数失效 end
-			SQLHelper.setParameters(ps, mappedStatement, countBS, parameterObject);
-			rs = ps.executeQuery();
+			statement = connection.createStatement();
+			rs = statement.executeQuery(sql);
 			long count = 0;
 			if (rs.next()) {
 				count = rs.getLong(1);
@@ -156,16 +382,21 @@ public abstract class SQLHelper {
 			if (rs != null) {
 				rs.close();
 			}
-			if (ps != null) {
-				ps.close();
-			}
-			if (createConn) {
-				// 如果是内部获取的连接，主动关闭
-				conn.close();
+			if (statement != null) {
+				statement.close();
 			}
 		}
 	}
 
+	/**
+	 * 根据原始查询语句生成 count SQL
+	 * @param sql 原始查询语句
+	 * @return count SQL
+	 */
+	public static String getCountSql(String sql) {
+		return COUNT_SQL_PARSER.getCountSql(sql);
+	}
+
 	/**
 	 * 根据数据库方言，生成特定的分页sql
 	 * @param sql Mapper中的Sql语句
@@ -191,32 +422,4 @@ public abstract class SQLHelper {
 			return boundSql;
 		}
 	}
-
-	/**
-	 * 去除qlString的select子句。
-	 * @param sql
-	 * @return
-	 */
-	@SuppressWarnings("unused")
-	private static String removeSelect(String sql) {
-		int beginPos = sql.toLowerCase().indexOf("from");
-		return sql.substring(beginPos);
-	}
-
-	/**
-	 * 去除hql的orderBy子句。
-	 * @param sql
-	 * @return
-	 */
-	@SuppressWarnings("unused")
-	private static String removeOrders(String sql) {
-		Pattern p = Pattern.compile("order\\s*by[\\w|\\W|\\s|\\S]*", Pattern.CASE_INSENSITIVE);
-		Matcher m = p.matcher(sql);
-		StringBuffer sb = new StringBuffer();
-		while (m.find()) {
-			m.appendReplacement(sb, "");
-		}
-		m.appendTail(sb);
-		return sb.toString();
-	}
 }
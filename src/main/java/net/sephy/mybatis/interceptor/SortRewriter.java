@@ -0,0 +1,344 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.interceptor.ParsedSelect.Clause;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.ResultMapping;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 将分页对象的 {@link Sort} 写入分页SQL的 ORDER BY.
+ * <p>
+ * 每条语句第一次排序时, 从结果映射(resultMap 的 property/column)及查询列表(列名、别名)解析出可排序的属性,
+ * 只有其中的属性可以排序, 其他属性忽略, 避免通过排序参数注入SQL. 属性名匹配时忽略大小写及下划线,
+ * 兼容 mapUnderscoreToCamelCase. 结果映射的列出现在查询列表中时, 使用查询列表中的表达式(如 u.id),
+ * 避免多表查询中列名不明确.
+ * <p>
+ * 排序项之后追加稳定排序列, 保证翻页结果确定: 按语句配置的列({@link #setTiebreakers(StatementMatcher)}),
+ * 没有配置时为主键(resultMap 的 id 列, 没有时为 id 属性). 主键不在查询列表中(如 select *)且语句有多张表时,
+ * 无法确定所属的表, 不追加稳定排序列. 生成的 ORDER BY 替换语句原有的 ORDER BY.
+ * <p>
+ * 改写结果按 (语句, SQL, 排序项) 缓存, 超出容量时淘汰最久未使用的结果.
+ */
+public class SortRewriter {
+
+	private static final Log LOG = LogFactory.getLog(SortRewriter.class);
+
+	/**
+	 * 默认最多缓存的SQL条数
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private static final Rewritten UNSUPPORTED = new Rewritten(null, 0, 0);
+
+	private final ConcurrentMap<String, SortColumns> columns = new ConcurrentHashMap<>();
+
+	private final Map<Key, Rewritten> cache;
+
+	private StatementMatcher tiebreakers = StatementMatcher.NONE;
+
+	public SortRewriter() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize 最多缓存的SQL条数
+	 */
+	public SortRewriter(final int maxSize) {
+		this.cache = new LinkedHashMap<Key, Rewritten>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Rewritten> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * 按语句指定稳定排序列, 如 <code>com.example.UserMapper.*=u.id</code>
+	 */
+	public void setTiebreakers(StatementMatcher tiebreakers) {
+		this.tiebreakers = tiebreakers == null ? StatementMatcher.NONE : tiebreakers;
+		this.columns.clear();
+	}
+
+	/**
+	 * 按排序条件改写SQL
+	 *
+	 * @param mappedStatement 原始语句
+	 * @param boundSql 原始语句本次执行的SQL
+	 * @param sort 排序条件
+	 * @return 改写后的 BoundSql, 没有可排序的属性或语句无法改写时返回原 BoundSql
+	 */
+	public BoundSql apply(MappedStatement mappedStatement, BoundSql boundSql, Sort sort) {
+		if (sort == null) {
+			return boundSql;
+		}
+		String orderBy = getColumns(mappedStatement, boundSql).render(sort, mappedStatement.getId());
+		if (orderBy == null) {
+			return boundSql;
+		}
+		Key key = new Key(mappedStatement.getId(), boundSql.getSql(), orderBy);
+		Rewritten rewritten;
+		synchronized (cache) {
+			rewritten = cache.get(key);
+		}
+		if (rewritten == null) {
+			rewritten = rewrite(boundSql, orderBy);
+			synchronized (cache) {
+				cache.put(key, rewritten);
+			}
+		}
+		if (rewritten == UNSUPPORTED) {
+			return boundSql;
+		}
+		List<ParameterMapping> mappings = boundSql.getParameterMappings();
+		if (rewritten.removedCount > 0) {
+			mappings = new ArrayList<>(mappings);
+			mappings.subList(rewritten.removedFrom, rewritten.removedFrom + rewritten.removedCount).clear();
+		}
+		return BoundSqlCopier.copy(mappedStatement.getConfiguration(), boundSql, rewritten.sql, mappings);
+	}
+
+	/**
+	 * 替换或插入 ORDER BY, 记录被替换的 ORDER BY 中的参数位置
+	 */
+	private static Rewritten rewrite(BoundSql boundSql, String orderBy) {
+		ParsedSelect select = ParsedSelect.parse(boundSql.getSql());
+		if (select == null || select.countParameters(0, select.getSql().length()) != boundSql.getParameterMappings()
+				.size()) {
+			LOG.warn("Unable to apply sort to SQL: " + boundSql.getSql());
+			return UNSUPPORTED;
+		}
+		String sql = select.getSql();
+		int start;
+		int end;
+		if (select.hasClause(Clause.ORDER_BY)) {
+			start = select.getClauseStart(Clause.ORDER_BY);
+			end = select.getClauseEnd(Clause.ORDER_BY);
+		}
+		else {
+			start = select.hasClause(Clause.LIMIT) ? select.getClauseStart(Clause.LIMIT)
+					: select.hasClause(Clause.LOCK) ? select.getClauseStart(Clause.LOCK) : select.getEnd();
+			end = start;
+		}
+		String rewritten = sql.substring(0, start) + (start > 0 && sql.charAt(start - 1) == ' ' ? "" : " ")
+				+ "order by " + orderBy + (end < select.getEnd() ? " " : "") + sql.substring(end, select.getEnd());
+		return new Rewritten(rewritten, select.countParameters(0, start), select.countParameters(start, end));
+	}
+
+	private SortColumns getColumns(MappedStatement mappedStatement, BoundSql boundSql) {
+		SortColumns sortColumns = columns.get(mappedStatement.getId());
+		if (sortColumns == null) {
+			sortColumns = resolve(mappedStatement, boundSql);
+			columns.put(mappedStatement.getId(), sortColumns);
+		}
+		return sortColumns;
+	}
+
+	/**
+	 * 从结果映射及查询列表解析可排序的属性
+	 */
+	private SortColumns resolve(MappedStatement mappedStatement, BoundSql boundSql) {
+		// 查询列表中的结果列名(小写)及排序时使用的表达式
+		Map<String, String> selectColumns = new HashMap<>();
+		ParsedSelect select = ParsedSelect.parse(boundSql.getSql());
+		if (select != null) {
+			for (ParsedSelect.SelectItem item : select.getSelectItems()) {
+				if (item.getLabel() != null && !selectColumns.containsKey(item.getLabel().toLowerCase(Locale.ENGLISH))) {
+					selectColumns.put(item.getLabel().toLowerCase(Locale.ENGLISH),
+							item.isColumn() ? item.getExpression() : item.getLabel());
+				}
+			}
+		}
+		Map<String, String> properties = new HashMap<>();
+		String idColumn = null;
+		for (ResultMap resultMap : mappedStatement.getResultMaps()) {
+			for (ResultMapping mapping : resultMap.getResultMappings()) {
+				if (isSimpleColumn(mapping)) {
+					putIfAbsent(properties, mapping.getProperty(), qualify(selectColumns, mapping.getColumn()));
+				}
+			}
+			for (ResultMapping mapping : resultMap.getIdResultMappings()) {
+				if (idColumn == null && isSimpleColumn(mapping)) {
+					idColumn = mapping.getColumn();
+				}
+			}
+		}
+		for (Map.Entry<String, String> e : selectColumns.entrySet()) {
+			putIfAbsent(properties, e.getKey(), e.getValue());
+		}
+		String tiebreaker = tiebreakers.getValue(mappedStatement.getId());
+		if (tiebreaker == null) {
+			tiebreaker = idColumn != null ? selectColumns.get(idColumn.toLowerCase(Locale.ENGLISH))
+					: properties.get(normalize("id"));
+			if (tiebreaker == null && idColumn != null) {
+				if (select != null && select.getJoins().isEmpty()) {
+					tiebreaker = idColumn;
+				}
+				else {
+					LOG.debug("Tiebreaker column '" + idColumn + "' of " + mappedStatement.getId()
+							+ " is ambiguous, configure sortTiebreakers to keep paging stable");
+				}
+			}
+		}
+		return new SortColumns(properties, tiebreaker);
+	}
+
+	/**
+	 * 结果映射的列出现在查询列表中时使用查询列表中的表达式
+	 */
+	private static String qualify(Map<String, String> selectColumns, String column) {
+		String expression = selectColumns.get(column.toLowerCase(Locale.ENGLISH));
+		return expression != null ? expression : column;
+	}
+
+	private static boolean isSimpleColumn(ResultMapping mapping) {
+		return mapping.getProperty() != null && mapping.getColumn() != null && mapping.getNestedQueryId() == null
+				&& mapping.getNestedResultMapId() == null && mapping.getComposites().isEmpty();
+	}
+
+	private static void putIfAbsent(Map<String, String> properties, String property, String column) {
+		String key = normalize(property);
+		if (!properties.containsKey(key)) {
+			properties.put(key, column);
+		}
+	}
+
+	private static String normalize(String property) {
+		return property.replace("_", "").toLowerCase(Locale.ENGLISH);
+	}
+
+	public void clear() {
+		columns.clear();
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * 一条语句可排序的属性及对应的列
+	 */
+	private static final class SortColumns {
+
+		private final Map<String, String> properties;
+
+		private final String tiebreaker;
+
+		SortColumns(Map<String, String> properties, String tiebreaker) {
+			this.properties = Collections.unmodifiableMap(properties);
+			this.tiebreaker = tiebreaker;
+		}
+
+		/**
+		 * @return ORDER BY 之后的排序项, 没有可排序的属性时返回 null
+		 */
+		String render(Sort sort, String statementId) {
+			StringBuilder orderBy = new StringBuilder();
+			Set<String> used = new HashSet<>();
+			for (Sort.Order order : sort) {
+				String column = properties.get(normalize(order.getProperty()));
+				if (column == null) {
+					LOG.warn("Ignore unknown sort property '" + order.getProperty() + "' of " + statementId);
+					continue;
+				}
+				if (!used.add(column.toLowerCase(Locale.ENGLISH))) {
+					continue;
+				}
+				if (orderBy.length() > 0) {
+					orderBy.append(", ");
+				}
+				orderBy.append(column).append(order.isAscending() ? " asc" : " desc");
+			}
+			if (orderBy.length() == 0) {
+				return null;
+			}
+			if (tiebreaker != null && !used.contains(tiebreaker.toLowerCase(Locale.ENGLISH))) {
+				orderBy.append(", ").append(tiebreaker).append(" asc");
+			}
+			return orderBy.toString();
+		}
+	}
+
+	private static final class Rewritten {
+
+		private final String sql;
+
+		private final int removedFrom;
+
+		private final int removedCount;
+
+		Rewritten(String sql, int removedFrom, int removedCount) {
+			this.sql = sql;
+			this.removedFrom = removedFrom;
+			this.removedCount = removedCount;
+		}
+	}
+
+	private static final class Key {
+
+		private final String statementId;
+
+		private final String sql;
+
+		private final String orderBy;
+
+		private final int hash;
+
+		Key(String statementId, String sql, String orderBy) {
+			this.statementId = statementId;
+			this.sql = sql;
+			this.orderBy = orderBy;
+			this.hash = 31 * (31 * statementId.hashCode() + sql.hashCode()) + orderBy.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return hash == that.hash && statementId.equals(that.statementId) && orderBy.equals(that.orderBy)
+					&& sql.equals(that.sql);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 简单的SQL词法分析器.
+ * <p>
+ * 只做分页改写需要的切分: 跳过注释, 识别字符串、带引号的标识符、参数占位符(?)以及括号层级,
+ * 不校验SQL语法. 注释为标准的单行注释(--)及块注释; # 开头的单行注释只有 MySQL 支持, 其他数据库中 # 是运算符
+ * (如 PostgreSQL 的按位异或), 需要按方言指定.
+ */
+public final class SqlLexer {
+
+	public enum TokenType {
+		/** 关键字或标识符 */
+		WORD,
+		/** 反引号或双引号括起的标识符 */
+		QUOTED_IDENTIFIER,
+		/** 字符串常量 */
+		STRING,
+		NUMBER,
+		/** 参数占位符 ? */
+		PARAMETER,
+		LEFT_PAREN,
+		RIGHT_PAREN,
+		COMMA,
+		DOT,
+		SEMICOLON,
+		OPERATOR
+	}
+
+	private SqlLexer() {
+	}
+
+	/**
+	 * 按标准SQL的注释将SQL切分为词法单元, # 作为运算符
+	 *
+	 * @param sql SQL语句
+	 * @return 词法单元, 不包含空白和注释
+	 */
+	public static List<Token> tokenize(String sql) {
+		return tokenize(sql, false);
+	}
+
+	/**
+	 * 将SQL切分为词法单元
+	 *
+	 * @param sql SQL语句
+	 * @param hashComments # 是否开始单行注释(MySQL)
+	 * @return 词法单元, 不包含空白和注释
+	 */
+	public static List<Token> tokenize(String sql, boolean hashComments) {
+		List<Token> tokens = new ArrayList<>();
+		int length = sql.length();
+		int depth = 0;
+		int i = 0;
+		while (i < length) {
+			char c = sql.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			}
+			else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-' || c == '#' && hashComments) {
+				i = skipLine(sql, i);
+			}
+			else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+				int close = sql.indexOf("*/", i + 2);
+				i = close < 0 ? length : close + 2;
+			}
+			else if (c == '\'') {
+				int end = skipQuoted(sql, i, '\'', true);
+				tokens.add(new Token(TokenType.STRING, sql, i, end, depth));
+				i = end;
+			}
+			else if (c == '"' || c == '`') {
+				int end = skipQuoted(sql, i, c, false);
+				tokens.add(new Token(TokenType.QUOTED_IDENTIFIER, sql, i, end, depth));
+				i = end;
+			}
+			else if (c == '?') {
+				tokens.add(new Token(TokenType.PARAMETER, sql, i, i + 1, depth));
+				i++;
+			}
+			else if (c == '(') {
+				tokens.add(new Token(TokenType.LEFT_PAREN, sql, i, i + 1, depth));
+				depth++;
+				i++;
+			}
+			else if (c == ')') {
+				depth = Math.max(0, depth - 1);
+				tokens.add(new Token(TokenType.RIGHT_PAREN, sql, i, i + 1, depth));
+				i++;
+			}
+			else if (c == ',') {
+				tokens.add(new Token(TokenType.COMMA, sql, i, i + 1, depth));
+				i++;
+			}
+			else if (c == ';') {
+				tokens.add(new Token(TokenType.SEMICOLON, sql, i, i + 1, depth));
+				i++;
+			}
+			else if (Character.isDigit(c)
+					|| c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1))) {
+				int end = i + 1;
+				while (end < length && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '.')) {
+					end++;
+				}
+				tokens.add(new Token(TokenType.NUMBER, sql, i, end, depth));
+				i = end;
+			}
+			else if (c == '.') {
+				tokens.add(new Token(TokenType.DOT, sql, i, i + 1, depth));
+				i++;
+			}
+			else if (isWordStart(c)) {
+				int end = i + 1;
+				while (end < length && isWordPart(sql.charAt(end))) {
+					end++;
+				}
+				tokens.add(new Token(TokenType.WORD, sql, i, end, depth));
+				i = end;
+			}
+			else {
+				tokens.add(new Token(TokenType.OPERATOR, sql, i, i + 1, depth));
+				i++;
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * 按标准SQL的注释去掉SQL末尾的分号和注释
+	 *
+	 * @param sql SQL语句
+	 * @return 去掉末尾分号和注释后的SQL
+	 */
+	public static String trimEnd(String sql) {
+		return trimEnd(sql, false);
+	}
+
+	/**
+	 * 去掉SQL末尾的分号和注释, 便于在其后追加内容
+	 *
+	 * @param sql SQL语句
+	 * @param hashComments # 是否开始单行注释(MySQL)
+	 * @return 去掉末尾分号和注释后的SQL
+	 */
+	public static String trimEnd(String sql, boolean hashComments) {
+		List<Token> tokens = tokenize(sql, hashComments);
+		int last = tokens.size() - 1;
+		while (last >= 0 && tokens.get(last).getType() == TokenType.SEMICOLON) {
+			last--;
+		}
+		return last < 0 ? sql : sql.substring(0, tokens.get(last).getEnd());
+	}
+
+	private static boolean isWordStart(char c) {
+		return Character.isLetter(c) || c == '_' || c == '$' || c == '@';
+	}
+
+	private static boolean isWordPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '@';
+	}
+
+	private static int skipLine(String sql, int from) {
+		int end = sql.indexOf('\n', from);
+		return end < 0 ? sql.length() : end + 1;
+	}
+
+	/**
+	 * 跳过引号内容, 支持重复引号转义, 字符串常量还支持反斜杠转义(MySQL)
+	 */
+	private static int skipQuoted(String sql, int from, char quote, boolean backslashEscape) {
+		int length = sql.length();
+		int i = from + 1;
+		while (i < length) {
+			char c = sql.charAt(i);
+			if (backslashEscape && c == '\\') {
+				i += 2;
+			}
+			else if (c == quote) {
+				if (i + 1 < length && sql.charAt(i + 1) == quote) {
+					i += 2;
+				}
+				else {
+					return i + 1;
+				}
+			}
+			else {
+				i++;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * 词法单元
+	 */
+	public static final class Token {
+
+		private final TokenType type;
+
+		private final String text;
+
+		private final int start;
+
+		private final int end;
+
+		private final int depth;
+
+		Token(TokenType type, String sql, int start, int end, int depth) {
+			this.type = type;
+			this.text = sql.substring(start, end);
+			this.start = start;
+			this.end = end;
+			this.depth = depth;
+		}
+
+		public TokenType getType() {
+			return type;
+		}
+
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * 在原SQL中的起始位置
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * 在原SQL中的结束位置(不包含)
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * 括号嵌套层级, 括号本身与括号外的内容同级
+		 */
+		public int getDepth() {
+			return depth;
+		}
+
+		public boolean isKeyword(String keyword) {
+			return type == TokenType.WORD && text.equalsIgnoreCase(keyword);
+		}
+
+		/**
+		 * 去掉引号后的标识符名称
+		 */
+		public String getIdentifier() {
+			if (type == TokenType.QUOTED_IDENTIFIER && text.length() >= 2) {
+				return text.substring(1, text.length() - 1);
+			}
+			return text;
+		}
+
+		@Override
+		public String toString() {
+			return type + "(" + text + ")";
+		}
+	}
+}
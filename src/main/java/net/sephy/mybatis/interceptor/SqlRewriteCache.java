@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.dialect.Dialect;
+import net.sephy.mybatis.util.Keyset;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分页SQL改写缓存.
+ * <p>
+ * 以 (MappedStatement id, 原始SQL, 方言) 为键, 缓存生成好的 count SQL、分页 SQL 以及扩展后的参数映射,
+ * 同一条语句重复分页查询时不再重新解析SQL. 缓存容量有上限, 超出后按写入顺序淘汰.
+ */
+public class SqlRewriteCache {
+
+	/**
+	 * 默认最多缓存的SQL条数
+	 */
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	private final int maxSize;
+
+	private final ConcurrentMap<Key, RewrittenSql> cache = new ConcurrentHashMap<>();
+
+	private final Queue<Key> insertionOrder = new ConcurrentLinkedQueue<>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	private CountSqlParser countSqlParser = new CountSqlParser();
+
+	public SqlRewriteCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize 最多缓存的SQL条数, 小于1时不缓存
+	 */
+	public SqlRewriteCache(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * 获取改写后的SQL, 缓存中不存在时生成并放入缓存
+	 *
+	 * @param mappedStatement 原始语句
+	 * @param boundSql 原始语句本次执行的SQL
+	 * @param dialect 方言
+	 * @return 改写结果
+	 */
+	public RewrittenSql get(MappedStatement mappedStatement, BoundSql boundSql, Dialect dialect) {
+		return get(mappedStatement, boundSql, dialect, null, CountQueryMode.SEPARATE);
+	}
+
+	/**
+	 * 获取 keyset 分页改写后的SQL, 排序键相同的条件共用缓存
+	 *
+	 * @param mappedStatement 原始语句
+	 * @param boundSql 原始语句本次执行的SQL
+	 * @param dialect 方言
+	 * @param keyset keyset 分页条件, 为 null 时按 offset 分页
+	 * @return 改写结果
+	 */
+	public RewrittenSql get(MappedStatement mappedStatement, BoundSql boundSql, Dialect dialect, Keyset keyset) {
+		return get(mappedStatement, boundSql, dialect, keyset, CountQueryMode.SEPARATE);
+	}
+
+	/**
+	 * 获取改写后的SQL
+	 *
+	 * @param mappedStatement 原始语句
+	 * @param boundSql 原始语句本次执行的SQL
+	 * @param dialect 方言
+	 * @param keyset keyset 分页条件, 为 null 时按 offset 分页
+	 * @param countQueryMode 总记录数的查询方式, 只对 offset 分页有效, 方言或语句不支持时退回
+	 *            {@link CountQueryMode#SEPARATE}, 实际采用的方式见 {@link RewrittenSql#getCountQueryMode()}
+	 * @return 改写结果
+	 */
+	public RewrittenSql get(MappedStatement mappedStatement, BoundSql boundSql, Dialect dialect, Keyset keyset,
+			CountQueryMode countQueryMode) {
+		return get(mappedStatement, boundSql, dialect, keyset, countQueryMode, null);
+	}
+
+	/**
+	 * 获取改写后的SQL
+	 *
+	 * @param mappedStatement 原始语句
+	 * @param boundSql 原始语句本次执行的SQL
+	 * @param dialect 方言
+	 * @param keyset keyset 分页条件, 为 null 时按 offset 分页
+	 * @param countQueryMode 总记录数的查询方式, 只对 offset 分页有效
+	 * @param deferredJoinKey 按 offset 分页时使用延迟关联的主键列名, 为 null 时不使用; 使用延迟关联时
+	 *            总记录数单独查询, 方言或语句不支持时按普通方式分页
+	 * @return 改写结果
+	 */
+	public RewrittenSql get(MappedStatement mappedStatement, BoundSql boundSql, Dialect dialect, Keyset keyset,
+			CountQueryMode countQueryMode, String deferredJoinKey) {
+		if (keyset != null) {
+			countQueryMode = CountQueryMode.SEPARATE;
+			deferredJoinKey = null;
+		}
+		if (deferredJoinKey != null) {
+			countQueryMode = CountQueryMode.SEPARATE;
+		}
+		String variant = keyset != null ? keyset.getSignature()
+				: deferredJoinKey != null ? "deferred:" + deferredJoinKey
+				: countQueryMode != CountQueryMode.SEPARATE ? countQueryMode.name() : null;
+		Key key = new Key(mappedStatement.getId(), boundSql.getSql(), dialect, variant);
+		RewrittenSql rewritten = cache.get(key);
+		// 相同SQL文本的动态语句, 参数映射也可能不同(不同 if 分支), 需要校验
+		if (rewritten != null && rewritten.matches(boundSql.getParameterMappings())) {
+			hits.incrementAndGet();
+			return rewritten;
+		}
+		misses.incrementAndGet();
+		rewritten = rewrite(mappedStatement.getConfiguration(), boundSql, dialect, keyset, countQueryMode,
+				deferredJoinKey);
+		if (maxSize > 0) {
+			if (cache.put(key, rewritten) == null) {
+				insertionOrder.offer(key);
+				while (cache.size() > maxSize) {
+					Key eldest = insertionOrder.poll();
+					if (eldest == null) {
+						break;
+					}
+					cache.remove(eldest);
+				}
+			}
+		}
+		return rewritten;
+	}
+
+	private RewrittenSql rewrite(Configuration configuration, BoundSql boundSql, Dialect dialect, Keyset keyset,
+			CountQueryMode countQueryMode, String deferredJoinKey) {
+		String countSql = countSqlParser.getCountSql(boundSql.getSql(), dialect.supportsHashComments());
+		BoundSql pagingBoundSql = null;
+		if (keyset != null) {
+			pagingBoundSql = dialect.getKeysetBoundSql(configuration, boundSql, keyset);
+		}
+		else if (deferredJoinKey != null) {
+			pagingBoundSql = dialect.getDeferredJoinBoundSql(configuration, boundSql, deferredJoinKey);
+		}
+		if (pagingBoundSql == null) {
+			BoundSql countingBoundSql = null;
+			if (countQueryMode == CountQueryMode.WINDOW) {
+				countingBoundSql = dialect.getWindowCountBoundSql(configuration, boundSql);
+			}
+			else if (countQueryMode == CountQueryMode.FOUND_ROWS) {
+				countingBoundSql = dialect.getFoundRowsBoundSql(configuration, boundSql);
+			}
+			if (countingBoundSql == null) {
+				countingBoundSql = boundSql;
+				countQueryMode = CountQueryMode.SEPARATE;
+			}
+			pagingBoundSql = SQLHelper.generatePagingBoundSql(configuration, countingBoundSql, dialect);
+		}
+		return new RewrittenSql(countSql, pagingBoundSql.getSql(), boundSql.getParameterMappings(),
+				pagingBoundSql.getParameterMappings(), countQueryMode);
+	}
+
+	public CountSqlParser getCountSqlParser() {
+		return countSqlParser;
+	}
+
+	public void setCountSqlParser(CountSqlParser countSqlParser) {
+		this.countSqlParser = countSqlParser;
+		clear();
+	}
+
+	/**
+	 * 命中次数
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * 未命中次数
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void clear() {
+		cache.clear();
+		insertionOrder.clear();
+	}
+
+	/**
+	 * 改写后的SQL
+	 */
+	public static class RewrittenSql {
+
+		private final String countSql;
+
+		private final String pagingSql;
+
+		private final List<ParameterMapping> parameterMappings;
+
+		private final List<ParameterMapping> pagingParameterMappings;
+
+		private final CountQueryMode countQueryMode;
+
+		RewrittenSql(String countSql, String pagingSql, List<ParameterMapping> parameterMappings,
+				List<ParameterMapping> pagingParameterMappings, CountQueryMode countQueryMode) {
+			this.countSql = countSql;
+			this.pagingSql = pagingSql;
+			this.parameterMappings = parameterMappings;
+			this.pagingParameterMappings = Collections.unmodifiableList(pagingParameterMappings);
+			this.countQueryMode = countQueryMode;
+		}
+
+		public String getCountSql() {
+			return countSql;
+		}
+
+		public String getPagingSql() {
+			return pagingSql;
+		}
+
+		public List<ParameterMapping> getPagingParameterMappings() {
+			return pagingParameterMappings;
+		}
+
+		/**
+		 * 分页SQL实际采用的总记录数查询方式
+		 */
+		public CountQueryMode getCountQueryMode() {
+			return countQueryMode;
+		}
+
+		/**
+		 * 根据缓存的分页SQL生成本次执行的 BoundSql, 共用原 BoundSql 的附加参数
+		 */
+		public BoundSql newPagingBoundSql(Configuration configuration, BoundSql boundSql) {
+			return BoundSqlCopier.copy(configuration, boundSql, pagingSql, pagingParameterMappings);
+		}
+
+		boolean matches(List<ParameterMapping> mappings) {
+			if (mappings == parameterMappings) {
+				return true;
+			}
+			if (mappings == null || parameterMappings == null
+					|| mappings.size() != parameterMappings.size()) {
+				return false;
+			}
+			for (int i = 0; i < mappings.size(); i++) {
+				ParameterMapping current = mappings.get(i);
+				ParameterMapping cached = parameterMappings.get(i);
+				if (!current.getProperty().equals(cached.getProperty())
+						|| current.getTypeHandler() != cached.getTypeHandler()
+						|| current.getMode() != cached.getMode()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class Key {
+
+		private final String statementId;
+
+		private final String sql;
+
+		private final Dialect dialect;
+
+		private final String variant;
+
+		private final int hash;
+
+		Key(String statementId, String sql, Dialect dialect, String variant) {
+			this.statementId = statementId;
+			this.sql = sql;
+			this.dialect = dialect;
+			this.variant = variant;
+			int h = statementId.hashCode();
+			h = 31 * h + sql.hashCode();
+			h = 31 * h + dialect.hashCode();
+			h = 31 * h + (variant == null ? 0 : variant.hashCode());
+			this.hash = h;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return hash == that.hash && statementId.equals(that.statementId)
+					&& dialect.equals(that.dialect) && sql.equals(that.sql)
+					&& (variant == null ? that.variant == null : variant.equals(that.variant));
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * 按 MappedStatement id 匹配语句, 用于按语句开启分页功能.
+ * <p>
+ * 配置为逗号分隔的多个 id, 可以使用 * 通配, 如
+ * <code>com.example.UserMapper.findAll, com.example.LogMapper.*</code>.
+ * 每个 id 之后可以用 = 附带一个值, 如 <code>com.example.LogMapper.*=log_id</code>, 通过 {@link #getValue(String)} 读取
+ */
+public class StatementMatcher {
+
+	/**
+	 * 不匹配任何语句
+	 */
+	public static final StatementMatcher NONE = new StatementMatcher(new ArrayList<Pattern>(),
+			new ArrayList<String>());
+
+	private final List<Pattern> patterns;
+
+	private final List<String> values;
+
+	private final ConcurrentMap<String, Integer> results = new ConcurrentHashMap<>();
+
+	private StatementMatcher(List<Pattern> patterns, List<String> values) {
+		this.patterns = patterns;
+		this.values = values;
+	}
+
+	/**
+	 * @param patterns 逗号分隔的语句 id
+	 * @return 匹配器, 配置为空时返回 {@link #NONE}
+	 */
+	public static StatementMatcher parse(String patterns) {
+		if (StringUtils.isBlank(patterns)) {
+			return NONE;
+		}
+		List<Pattern> compiled = new ArrayList<>();
+		List<String> values = new ArrayList<>();
+		for (String pattern : patterns.split(",")) {
+			pattern = pattern.trim();
+			String value = null;
+			int index = pattern.indexOf('=');
+			if (index >= 0) {
+				value = pattern.substring(index + 1).trim();
+				pattern = pattern.substring(0, index).trim();
+			}
+			if (pattern.isEmpty()) {
+				continue;
+			}
+			StringBuilder regex = new StringBuilder();
+			for (String part : pattern.split("\\*", -1)) {
+				if (regex.length() > 0) {
+					regex.append(".*");
+				}
+				regex.append(Pattern.quote(part));
+			}
+			compiled.add(Pattern.compile(regex.toString()));
+			values.add(StringUtils.isEmpty(value) ? null : value);
+		}
+		return new StatementMatcher(compiled, values);
+	}
+
+	public boolean matches(String statementId) {
+		return indexOf(statementId) >= 0;
+	}
+
+	/**
+	 * @return 第一个匹配的 id 附带的值, 不匹配或没有附带值时返回 null
+	 */
+	public String getValue(String statementId) {
+		int index = indexOf(statementId);
+		return index < 0 ? null : values.get(index);
+	}
+
+	private int indexOf(String statementId) {
+		if (patterns.isEmpty()) {
+			return -1;
+		}
+		Integer matched = results.get(statementId);
+		if (matched == null) {
+			matched = -1;
+			for (int i = 0; i < patterns.size(); i++) {
+				if (patterns.get(i).matcher(statementId).matches()) {
+					matched = i;
+					break;
+				}
+			}
+			results.put(statementId, matched);
+		}
+		return matched;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.apache.ibatis.mapping.BoundSql;
+
+/**
+ * 执行 insert/update/delete 时的上下文, 绑定在当前线程上.
+ * <p>
+ * 写语句按原语句执行, 主键生成(如 &lt;selectKey order="BEFORE"&gt;)先于动态SQL的生成. 分页插件拦截
+ * StatementHandler 时记录其生成的 BoundSql, 执行后按该SQL使缓存失效, 不再另外生成动态SQL.
+ * 写语句执行期间的嵌套查询(如 selectKey)暂停记录.
+ */
+final class UpdateContext {
+
+	private static final ThreadLocal<UpdateContext> CURRENT = new ThreadLocal<>();
+
+	private BoundSql boundSql;
+
+	private UpdateContext() {
+	}
+
+	static UpdateContext begin() {
+		UpdateContext context = new UpdateContext();
+		CURRENT.set(context);
+		return context;
+	}
+
+	static UpdateContext current() {
+		return CURRENT.get();
+	}
+
+	void end() {
+		CURRENT.remove();
+	}
+
+	/**
+	 * 嵌套查询结束后恢复记录
+	 */
+	void resume() {
+		CURRENT.set(this);
+	}
+
+	/**
+	 * 记录写语句的 StatementHandler 生成的 BoundSql
+	 */
+	void capture(BoundSql boundSql) {
+		if (this.boundSql == null) {
+			this.boundSql = boundSql;
+		}
+	}
+
+	/**
+	 * @return 写语句执行的SQL, 没有执行到 StatementHandler 时返回 null
+	 */
+	BoundSql getBoundSql() {
+		return boundSql;
+	}
+}
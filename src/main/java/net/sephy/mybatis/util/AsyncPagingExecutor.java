@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import net.sephy.mybatis.interceptor.QueryCanceller;
+import org.apache.ibatis.binding.MapperMethod;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步执行分页查询.
+ * <p>
+ * 分页语句(含分页插件的 count 查询)在独立的会话上、由指定的线程池执行, 调用方立即得到
+ * {@link CompletableFuture}, 完成时分页对象已填入本页数据及总记录数. 取消 future 时对正在执行的
+ * count 查询或分页查询调用 {@link java.sql.Statement#cancel()}, 尚未开始的查询不再执行.
+ * <p>
+ * 没有指定线程池时, JVM 支持虚拟线程(Java 21+)则每个查询使用一个虚拟线程, 同时执行的查询数由连接池限制;
+ * 否则使用固定大小、等待队列有上限的线程池, 队列已满时返回的 future 以 {@link RejectedExecutionException} 失败.
+ *
+ * <pre>
+ * AsyncPagingExecutor async = new AsyncPagingExecutor(sqlSessionFactory);
+ * async.selectPage("com.example.UserMapper.find", params, new Paging&lt;User&gt;(0, 20))
+ *         .thenAccept(page -&gt; render(page));
+ * </pre>
+ */
+public class AsyncPagingExecutor {
+
+	/**
+	 * 不支持虚拟线程时默认的线程数
+	 */
+	public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+	/**
+	 * 不支持虚拟线程时默认的等待队列长度
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	private final SqlSessionFactory sqlSessionFactory;
+
+	private final Executor executor;
+
+	// 自行创建的线程池, 由 shutdown() 关闭
+	private final ExecutorService ownedExecutor;
+
+	/**
+	 * 支持虚拟线程时使用虚拟线程, 否则使用 {@link #DEFAULT_POOL_SIZE} 个线程
+	 */
+	public AsyncPagingExecutor(SqlSessionFactory sqlSessionFactory) {
+		this(sqlSessionFactory, DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * @param poolSize 不支持虚拟线程时的线程数
+	 */
+	public AsyncPagingExecutor(SqlSessionFactory sqlSessionFactory, int poolSize) {
+		this(sqlSessionFactory, poolSize, DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * @param poolSize 不支持虚拟线程时的线程数
+	 * @param queueSize 不支持虚拟线程时的等待队列长度
+	 */
+	public AsyncPagingExecutor(SqlSessionFactory sqlSessionFactory, int poolSize, int queueSize) {
+		Assert.notNull(sqlSessionFactory, "SqlSessionFactory must not be null!");
+		Assert.isTrue(poolSize > 0, "Pool size must be greater than zero!");
+		Assert.isTrue(queueSize > 0, "Queue size must be greater than zero!");
+		this.sqlSessionFactory = sqlSessionFactory;
+		this.ownedExecutor = newDefaultExecutor(poolSize, queueSize);
+		this.executor = ownedExecutor;
+	}
+
+	/**
+	 * @param executor 执行查询的线程池, 由调用方管理
+	 */
+	public AsyncPagingExecutor(SqlSessionFactory sqlSessionFactory, Executor executor) {
+		Assert.notNull(sqlSessionFactory, "SqlSessionFactory must not be null!");
+		Assert.notNull(executor, "Executor must not be null!");
+		this.sqlSessionFactory = sqlSessionFactory;
+		this.executor = executor;
+		this.ownedExecutor = null;
+	}
+
+	/**
+	 * 异步查询一页
+	 *
+	 * @param statementId 分页语句的 id
+	 * @param parameters 语句的参数(不含分页参数)
+	 * @param paging 分页对象
+	 * @return 完成时返回传入的分页对象
+	 */
+	public <T> CompletableFuture<Paging<T>> selectPage(final String statementId, Map<String, ?> parameters,
+			final Paging<T> paging) {
+		final QueryCanceller canceller = new QueryCanceller();
+		final CancellableFuture<Paging<T>> future = new CancellableFuture<>(canceller);
+		final MapperMethod.ParamMap<Object> parameterObject = new MapperMethod.ParamMap<>();
+		if (parameters != null) {
+			parameterObject.putAll(parameters);
+		}
+		parameterObject.put(PagingConsts.PAGING_NAME, paging);
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (future.isDone()) {
+						return;
+					}
+					QueryCanceller.bind(canceller);
+					try {
+						SqlSession session = sqlSessionFactory.openSession(true);
+						try {
+							session.selectList(statementId, parameterObject);
+						}
+						finally {
+							session.close();
+						}
+						future.complete(paging);
+					}
+					catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+					finally {
+						QueryCanceller.unbind();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	/**
+	 * 关闭自行创建的线程池, 正在执行的查询不受影响
+	 */
+	public void shutdown() {
+		if (ownedExecutor != null) {
+			ownedExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Java 21+ 使用虚拟线程, 否则使用固定大小的线程池, 队列已满时拒绝提交
+	 */
+	private static ExecutorService newDefaultExecutor(int poolSize, int queueSize) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), new AsyncThreadFactory(),
+					new ThreadPoolExecutor.AbortPolicy());
+			executor.allowCoreThreadTimeOut(true);
+			return executor;
+		}
+	}
+
+	/**
+	 * 取消时同时取消正在执行的语句
+	 */
+	private static class CancellableFuture<T> extends CompletableFuture<T> {
+
+		private final QueryCanceller canceller;
+
+		CancellableFuture(QueryCanceller canceller) {
+			this.canceller = canceller;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				canceller.cancel();
+			}
+			return cancelled;
+		}
+	}
+
+	private static class AsyncThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+		private final int poolNumber = POOL_NUMBER.incrementAndGet();
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "paging-async-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
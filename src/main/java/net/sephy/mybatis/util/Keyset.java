@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import org.springframework.data.domain.Sort;
+import org.springframework.util.Assert;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * keyset(seek) 分页条件.
+ * <p>
+ * 按排序键的值定位下一页, 而不是跳过 offset 条记录, 翻到多深的页耗时都一样.
+ * 排序键的组合必须唯一(通常以主键结尾), 且值不能为 null. 列名直接写入SQL, 只能是 [别名.]列名 形式的标识符,
+ * 可以带引号.
+ *
+ * <pre>
+ * Paging&lt;User&gt; paging = new Paging&lt;User&gt;(0, 20);
+ * paging.setKeyset(new Keyset().desc("u.created_at", "createdAt").desc("u.id", "id"));
+ * userMapper.find(paging);
+ * Paging&lt;User&gt; next = (Paging&lt;User&gt;) paging.next(); // 携带本页最后一行的排序键值
+ * </pre>
+ */
+public class Keyset implements Serializable {
+
+	private static final long serialVersionUID = -4581216350376617036L;
+
+	// [别名.]列名, 各部分为普通标识符或 "..."、`...`、[...] 引起的标识符
+	private static final Pattern COLUMN = Pattern
+			.compile("(?:[A-Za-z_][A-Za-z0-9_$]*|\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\])"
+					+ "(?:\\.(?:[A-Za-z_][A-Za-z0-9_$]*|\"[^\"]+\"|`[^`]+`|\\[[^\\]]+\\]))*");
+
+	private final List<Key> keys = new ArrayList<>();
+
+	// 本页从哪一行之后开始查询, 为 null 时从第一行开始
+	private Object[] values;
+
+	// 本页最后一行的排序键值, 查询后由分页插件回填
+	private Object[] lastValues;
+
+	// 本页是否已经查询过
+	private boolean executed;
+
+	/**
+	 * 按列名升序创建, 列名同时作为结果对象的属性名
+	 */
+	public static Keyset of(String... columns) {
+		Keyset keyset = new Keyset();
+		for (String column : columns) {
+			keyset.asc(column);
+		}
+		return keyset;
+	}
+
+	public Keyset asc(String column) {
+		return asc(column, column);
+	}
+
+	/**
+	 * @param column SQL中的列名, 可以带表别名
+	 * @param property 结果对象中对应的属性名
+	 */
+	public Keyset asc(String column, String property) {
+		return add(new Key(column, property, Sort.Direction.ASC));
+	}
+
+	public Keyset desc(String column) {
+		return desc(column, column);
+	}
+
+	public Keyset desc(String column, String property) {
+		return add(new Key(column, property, Sort.Direction.DESC));
+	}
+
+	private Keyset add(Key key) {
+		Assert.isNull(values, "Keys can not be added after values are set!");
+		keys.add(key);
+		return this;
+	}
+
+	public List<Key> getKeys() {
+		return Collections.unmodifiableList(keys);
+	}
+
+	public Object[] getValues() {
+		return values;
+	}
+
+	/**
+	 * 设置本页起始位置, 即上一页最后一行的排序键值
+	 */
+	public void setValues(Object... values) {
+		Assert.isTrue(values == null || values.length == keys.size(), "Values must match the keys!");
+		this.values = values;
+	}
+
+	public boolean hasValues() {
+		return values != null;
+	}
+
+	public Object[] getLastValues() {
+		return lastValues;
+	}
+
+	/**
+	 * 查询后回填本页最后一行的排序键值, 本页没有数据时为 null
+	 */
+	public void setLastValues(Object... lastValues) {
+		this.lastValues = lastValues;
+		this.executed = true;
+	}
+
+	/**
+	 * 本页是否已经查询过, 查询过且没有数据时已读完全部数据
+	 */
+	public boolean isExecuted() {
+		return executed;
+	}
+
+	/**
+	 * 下一页的查询条件, 本页没有数据时返回 null
+	 */
+	public Keyset next() {
+		if (lastValues == null) {
+			return null;
+		}
+		Keyset next = first();
+		next.values = lastValues;
+		return next;
+	}
+
+	/**
+	 * 从第一行开始的查询条件
+	 */
+	public Keyset first() {
+		Keyset first = new Keyset();
+		first.keys.addAll(keys);
+		return first;
+	}
+
+	/**
+	 * 排序键的签名, 相同签名的条件生成的SQL相同
+	 */
+	public String getSignature() {
+		StringBuilder signature = new StringBuilder();
+		for (Key key : keys) {
+			signature.append(key.getColumn()).append(' ').append(key.getDirection()).append(',');
+		}
+		return signature.append(hasValues() ? "seek" : "first").toString();
+	}
+
+	/**
+	 * 排序键
+	 */
+	public static class Key implements Serializable {
+
+		private static final long serialVersionUID = 2710425936152386011L;
+
+		private final String column;
+
+		private final String property;
+
+		private final Sort.Direction direction;
+
+		public Key(String column, String property, Sort.Direction direction) {
+			Assert.hasText(column, "Column must not be empty!");
+			Assert.hasText(property, "Property must not be empty!");
+			Assert.isTrue(COLUMN.matcher(column).matches(), "Column must be an identifier: " + column);
+			this.column = column;
+			this.property = property;
+			this.direction = direction == null ? Sort.Direction.ASC : direction;
+		}
+
+		public String getColumn() {
+			return column;
+		}
+
+		public String getProperty() {
+			return property;
+		}
+
+		public Sort.Direction getDirection() {
+			return direction;
+		}
+	}
+}
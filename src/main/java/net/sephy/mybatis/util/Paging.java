@@ -16,6 +16,7 @@
 
 package net.sephy.mybatis.util;
 
+import org.apache.ibatis.session.ResultHandler;
 import org.springframework.core.convert.converter.Converter;
 import org.springframework.data.domain.AbstractPageRequest;
 import org.springframework.data.domain.Page;
@@ -41,12 +42,33 @@ public class Paging<T> extends AbstractPageRequest implements Page<T>, Serializa
     // 记录总数
 	private long total = 0;
 
+    // 查询到总记录数的时间, 0 表示总记录数不是查询得到的
+	private long totalTime;
+
+    // 总记录数是否为估算值
+	private boolean totalEstimated;
+
     // 分页内容
 	private List<T> content = new ArrayList<T>();
 
     // 排序
 	private Sort sort;
 
+    // keyset 分页条件
+	private Keyset keyset;
+
+    // slice 模式, 不查询总数
+	private boolean slice;
+
+    // slice 模式下是否有下一页
+	private boolean hasNextSlice;
+
+    // 本次查询是否多读一行判断有无下一页, 只在分页插件执行查询期间为 true
+	private transient boolean probeNext;
+
+    // 流式读取全部结果时接收每一行的处理器
+	private transient ResultHandler<? super T> resultHandler;
+
 	/**
 	 * Creates a new {@link AbstractPageRequest}. Pages are zero indexed, thus
 	 * providing 0 for {@code page} will return the first page.
@@ -77,14 +99,152 @@ public class Paging<T> extends AbstractPageRequest implements Page<T>, Serializa
 		this.total = total;
 	}
 
+	/**
+	 * 创建 slice 模式的分页对象: 不查询总数, 多取一行判断是否有下一页
+	 */
+	public static <T> Paging<T> slice(int page, int size) {
+		Paging<T> paging = new Paging<T>(page, size);
+		paging.slice = true;
+		return paging;
+	}
+
+	public static <T> Paging<T> slice(int page, int size, Sort sort) {
+		Paging<T> paging = new Paging<T>(page, size, sort);
+		paging.slice = true;
+		return paging;
+	}
+
+	/**
+	 * 创建流式读取的分页对象: 不分页也不查询总数, 查询结果逐行交给 resultHandler 处理, 不在内存中保留,
+	 * 查询方法返回空列表. resultHandler 中调用 ResultContext.stop() 可以提前结束并关闭语句;
+	 * 读取完全部结果后总记录数为读取的行数, 提前结束时总记录数未知
+	 */
+	public static <T> Paging<T> stream(ResultHandler<? super T> resultHandler) {
+		return stream(resultHandler, null);
+	}
+
+	public static <T> Paging<T> stream(ResultHandler<? super T> resultHandler, Sort sort) {
+		Assert.notNull(resultHandler, "ResultHandler must not be null!");
+		Paging<T> paging = new Paging<T>(0, Integer.MAX_VALUE, sort);
+		paging.resultHandler = resultHandler;
+		return paging;
+	}
+
+	/**
+	 * 流式读取时接收每一行的处理器, 不是流式读取时为 null
+	 */
+	public ResultHandler<? super T> getResultHandler() {
+		return resultHandler;
+	}
+
+	public boolean isStreaming() {
+		return resultHandler != null;
+	}
+
+	/**
+	 * 设置查询得到的总记录数, 同时记录查询时间
+	 */
 	public void setTotal(long total) {
+		setTotal(total, total >= 0 ? System.currentTimeMillis() : 0);
+	}
+
+	/**
+	 * 设置之前查询得到的总记录数, 如客户端回传的总数
+	 *
+	 * @param total 总记录数
+	 * @param totalTime 查询到总记录数的时间(毫秒)
+	 */
+	public void setTotal(long total, long totalTime) {
 		this.total = total;
+		this.totalTime = totalTime;
+		this.totalEstimated = false;
+	}
+
+	/**
+	 * 设置估算的总记录数, 如按执行计划估算的行数
+	 */
+	public void setEstimatedTotal(long total) {
+		setTotal(total);
+		this.totalEstimated = true;
+	}
+
+	/**
+	 * 总记录数是否为估算值, 估算值只能用于显示大致的页数
+	 */
+	public boolean isTotalEstimated() {
+		return totalEstimated;
+	}
+
+	/**
+	 * 查询到总记录数的时间(毫秒), 总记录数不是查询得到时返回 0
+	 */
+	public long getTotalTime() {
+		return totalTime;
+	}
+
+	/**
+	 * 总记录数是否在 maxAgeMillis 毫秒内查询得到, 分页插件据此跳过 count 查询
+	 */
+	public boolean isTotalFresh(long maxAgeMillis) {
+		return isTotalKnown() && totalTime > 0 && System.currentTimeMillis() - totalTime <= maxAgeMillis;
 	}
 
 	public void setContent(List<T> content) {
 		this.content = content;
 	}
 
+	public boolean isSlice() {
+		return slice;
+	}
+
+	/**
+	 * 设置 slice 模式, 开启后不查询总数, 总数未知时 {@link #getTotalElements()} 返回
+	 * {@link PagingConsts#UNKNOWN_TOTAL}
+	 */
+	public void setSlice(boolean slice) {
+		this.slice = slice;
+	}
+
+	/**
+	 * slice 模式下由分页插件设置是否有下一页
+	 */
+	public void setHasNext(boolean hasNext) {
+		this.hasNextSlice = hasNext;
+	}
+
+	/**
+	 * 分页插件对本次查询使用 slice 模式(如按语句配置或自适应策略)时设置, 查询结束后清除,
+	 * 不改变分页对象本身的 slice 模式
+	 */
+	public void setProbeNext(boolean probeNext) {
+		this.probeNext = probeNext;
+	}
+
+	/**
+	 * 总记录数是否已知
+	 */
+	public boolean isTotalKnown() {
+		return total >= 0;
+	}
+
+	/**
+	 * 本次查询实际读取的行数, slice 模式下多读一行用于判断是否有下一页
+	 */
+	public int getLimit() {
+		return slice || probeNext ? getPageSize() + 1 : getPageSize();
+	}
+
+	public Keyset getKeyset() {
+		return keyset;
+	}
+
+	/**
+	 * 设置 keyset 分页条件, 设置后按排序键定位分页而不是跳过 offset 条记录
+	 */
+	public void setKeyset(Keyset keyset) {
+		this.keyset = keyset;
+	}
+
 	@Override
 	public int getNumber() {
 		return getPageNumber();
@@ -127,6 +287,9 @@ public class Paging<T> extends AbstractPageRequest implements Page<T>, Serializa
 
 	@Override
 	public boolean hasNext() {
+		if (!isTotalKnown()) {
+			return hasNextSlice;
+		}
 		return getNumber() + 1 < getTotalPages();
 	}
 
@@ -144,27 +307,73 @@ public class Paging<T> extends AbstractPageRequest implements Page<T>, Serializa
 		return null;
 	}
 
+	/**
+	 * 下一页, 携带已知的总记录数; keyset 分页时携带本页最后一行的排序键值,
+	 * 本页查询过且没有数据(已读完)时返回 null, 本页未查询过时按 offset 定位
+	 */
 	@Override
 	public Pageable next() {
-		return new Paging(getPageNumber() + 1, getPageSize(), getSort());
+		Paging<T> next = new Paging<T>(getPageNumber() + 1, getPageSize(), getSort());
+		copyStateTo(next);
+		if (keyset != null) {
+			next.keyset = keyset.isExecuted() ? keyset.next() : keyset.first();
+			if (next.keyset == null) {
+				return null;
+			}
+		}
+		return next;
 	}
 
+	/**
+	 * 上一页, keyset 分页时按 offset 定位
+	 */
 	@Override
 	public Pageable previous() {
-		return getPageNumber() == 0 ? this : new Paging<T>(getPageNumber() - 1, getPageSize(),
-				getSort());
+		if (getPageNumber() == 0) {
+			return this;
+		}
+		Paging<T> previous = new Paging<T>(getPageNumber() - 1, getPageSize(), getSort());
+		copyStateTo(previous);
+		if (keyset != null) {
+			previous.keyset = keyset.first();
+		}
+		return previous;
 	}
 
 	@Override
 	public Pageable first() {
-		return new Paging(0, getPageSize(), getSort());
+		Paging<T> first = new Paging<T>(0, getPageSize(), getSort());
+		copyStateTo(first);
+		if (keyset != null) {
+			first.keyset = keyset.first();
+		}
+		return first;
+	}
+
+	/**
+	 * 翻页时保留 slice 模式及已知的总记录数
+	 */
+	private void copyStateTo(Paging<T> paging) {
+		paging.slice = slice;
+		paging.total = total;
+		paging.totalTime = totalTime;
+		paging.totalEstimated = totalEstimated;
 	}
 
+	/**
+	 * 总页数, 总记录数未知时返回 -1
+	 */
 	@Override
 	public int getTotalPages() {
+		if (!isTotalKnown()) {
+			return -1;
+		}
 		return getSize() == 0 ? 1 : (int) Math.ceil((double) total / (double) getSize());
 	}
 
+	/**
+	 * 总记录数, 未知时返回 {@link PagingConsts#UNKNOWN_TOTAL}
+	 */
 	@Override
 	public long getTotalElements() {
 		return total;
@@ -195,6 +404,9 @@ public class Paging<T> extends AbstractPageRequest implements Page<T>, Serializa
 			contentType = content.get(0).getClass().getName();
 		}
 
+		if (!isTotalKnown()) {
+			return String.format("Slice %s containing %s instances", getNumber(), contentType);
+		}
 		return String.format("Page %s of %d containing %s instances", getNumber(), getTotalPages(),
 				contentType);
 	}
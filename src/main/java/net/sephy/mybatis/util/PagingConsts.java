@@ -26,4 +26,24 @@ public abstract class PagingConsts {
 	public static final String PAGE_OFFSET = PAGING_NAME + ".offset";
 
 	public static final String PAGE_SIZE = PAGING_NAME + ".size";
+
+    /**
+     * 本次查询实际读取的行数, slice 模式下比每页条数多一行
+     */
+	public static final String PAGE_LIMIT = PAGING_NAME + ".limit";
+
+    /**
+     * count(*) over() 窗口函数列的别名
+     */
+	public static final String WINDOW_TOTAL_COLUMN = "tmp_paging_total";
+
+    /**
+     * 总记录数未知
+     */
+	public static final long UNKNOWN_TOTAL = -1;
+
+    /**
+     * keyset 分页的起始排序键值, 按下标引用, 如 paging.keyset.values[0]
+     */
+	public static final String KEYSET_VALUES = PAGING_NAME + ".keyset.values";
 }
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import net.sephy.mybatis.interceptor.QueryCanceller;
+import org.apache.ibatis.binding.MapperMethod;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 按需逐页读取分页语句的行流.
+ * <p>
+ * 订阅者通过 {@link Subscription#request(long)} 声明需要的行数, 当前页的行发完且仍有需求时才读取下一页,
+ * 开始发送一页时预读其后的一页, 最多领先一页. 每页在独立的会话上以 slice 模式读取(不执行 count 查询),
+ * 读取后立即关闭会话归还连接, 页与页之间不占用连接. 分页对象设置了 keyset 时按 keyset 翻页, 否则按 offset 翻页.
+ * <p>
+ * 接口与 Reactive Streams 的 Publisher/Subscriber/Subscription 一一对应, 可以直接适配到 Reactor、RxJava
+ * 或 java.util.concurrent.Flow. 每个订阅都从传入的分页对象所在的页开始读取, 同一订阅的回调不会并发执行.
+ *
+ * <pre>
+ * new PagingPublisher&lt;User&gt;(sqlSessionFactory, "com.example.UserMapper.find", params,
+ *         Paging.&lt;User&gt; slice(0, 500)).subscribe(subscriber);
+ * </pre>
+ */
+public class PagingPublisher<T> {
+
+	private static final Executor DEFAULT_EXECUTOR = newDefaultExecutor();
+
+	private final SqlSessionFactory sqlSessionFactory;
+
+	private final String statementId;
+
+	private final Map<String, ?> parameters;
+
+	private final Paging<T> firstPage;
+
+	private final Executor executor;
+
+	/**
+	 * 在共享的线程池上读取各页
+	 */
+	public PagingPublisher(SqlSessionFactory sqlSessionFactory, String statementId, Map<String, ?> parameters,
+			Paging<T> firstPage) {
+		this(sqlSessionFactory, statementId, parameters, firstPage, DEFAULT_EXECUTOR);
+	}
+
+	/**
+	 * @param sqlSessionFactory 会话工厂
+	 * @param statementId 分页语句的 id
+	 * @param parameters 语句的参数(不含分页参数)
+	 * @param firstPage 从哪一页开始读取及每页行数
+	 * @param executor 读取各页的线程池
+	 */
+	public PagingPublisher(SqlSessionFactory sqlSessionFactory, String statementId, Map<String, ?> parameters,
+			Paging<T> firstPage, Executor executor) {
+		Assert.notNull(sqlSessionFactory, "SqlSessionFactory must not be null!");
+		Assert.hasText(statementId, "Statement id must not be empty!");
+		Assert.notNull(firstPage, "Paging must not be null!");
+		Assert.notNull(executor, "Executor must not be null!");
+		this.sqlSessionFactory = sqlSessionFactory;
+		this.statementId = statementId;
+		this.parameters = parameters == null ? Collections.<String, Object> emptyMap() : parameters;
+		this.firstPage = firstPage;
+		this.executor = executor;
+	}
+
+	public void subscribe(Subscriber<? super T> subscriber) {
+		Assert.notNull(subscriber, "Subscriber must not be null!");
+		PageSubscription<T> subscription = new PageSubscription<>(this, subscriber, copyFirstPage());
+		subscriber.onSubscribe(subscription);
+	}
+
+	/**
+	 * 复制起始页, 使用 slice 模式
+	 */
+	private Paging<T> copyFirstPage() {
+		Paging<T> paging = Paging.slice(firstPage.getPageNumber(), firstPage.getPageSize(), firstPage.getSort());
+		Keyset keyset = firstPage.getKeyset();
+		if (keyset != null) {
+			Keyset copy = keyset.first();
+			if (keyset.hasValues()) {
+				copy.setValues(keyset.getValues());
+			}
+			paging.setKeyset(copy);
+		}
+		return paging;
+	}
+
+	/**
+	 * 在独立会话上读取一页, 读取后关闭会话
+	 */
+	private List<T> fetch(Paging<T> paging, QueryCanceller canceller) {
+		MapperMethod.ParamMap<Object> parameterObject = new MapperMethod.ParamMap<>();
+		parameterObject.putAll(parameters);
+		parameterObject.put(PagingConsts.PAGING_NAME, paging);
+		QueryCanceller.bind(canceller);
+		try {
+			SqlSession session = sqlSessionFactory.openSession(true);
+			try {
+				return session.selectList(statementId, parameterObject);
+			}
+			finally {
+				session.close();
+			}
+		}
+		finally {
+			QueryCanceller.unbind();
+		}
+	}
+
+	private static Executor newDefaultExecutor() {
+		int poolSize = Runtime.getRuntime().availableProcessors() * 2;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+					private final AtomicInteger threadNumber = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "paging-publisher-" + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * 行的订阅者, 对应 Reactive Streams 的 Subscriber
+	 */
+	public interface Subscriber<T> {
+
+		void onSubscribe(Subscription subscription);
+
+		void onNext(T row);
+
+		void onError(Throwable throwable);
+
+		void onComplete();
+	}
+
+	/**
+	 * 订阅, 对应 Reactive Streams 的 Subscription
+	 */
+	public interface Subscription {
+
+		/**
+		 * 再请求 n 行
+		 */
+		void request(long n);
+
+		/**
+		 * 取消订阅, 正在读取的页随之取消
+		 */
+		void cancel();
+	}
+
+	/**
+	 * 一个订阅的状态. 发送由 drain 串行执行: 当前页发完且有需求时切换到已读取的下一页, 并预读再下一页;
+	 * 下一页还未读取完成时退出, 读取完成后再次 drain
+	 */
+	private static final class PageSubscription<T> implements Subscription {
+
+		private final PagingPublisher<T> publisher;
+
+		private final Subscriber<? super T> subscriber;
+
+		private final AtomicLong requested = new AtomicLong();
+
+		private final AtomicInteger wip = new AtomicInteger();
+
+		private volatile boolean cancelled;
+
+		// 非法的请求数, 在 drain 中发送给订阅者
+		private volatile Throwable error;
+
+		// 以下字段只在 drain 中访问, pendingCanceller 除外
+		private Paging<T> nextPaging;
+
+		private Iterator<T> current = Collections.<T> emptyList().iterator();
+
+		private CompletableFuture<List<T>> pending;
+
+		private Paging<T> pendingPaging;
+
+		private volatile QueryCanceller pendingCanceller;
+
+		private boolean terminated;
+
+		PageSubscription(PagingPublisher<T> publisher, Subscriber<? super T> subscriber, Paging<T> firstPage) {
+			this.publisher = publisher;
+			this.subscriber = subscriber;
+			this.nextPaging = firstPage;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				if (error == null) {
+					error = new IllegalArgumentException("Requested rows must be positive: " + n);
+				}
+				drain();
+				return;
+			}
+			long current;
+			long next;
+			do {
+				current = requested.get();
+				next = current + n < 0 ? Long.MAX_VALUE : current + n;
+			}
+			while (!requested.compareAndSet(current, next));
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			QueryCanceller canceller = pendingCanceller;
+			if (canceller != null) {
+				canceller.cancel();
+			}
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			while (true) {
+				if (!emit()) {
+					return;
+				}
+				missed = wip.addAndGet(-missed);
+				if (missed == 0) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * 按需求发送已读取的行
+		 *
+		 * @return 订阅已结束时返回 false
+		 */
+		@SuppressWarnings("unchecked")
+		private boolean emit() {
+			long demand = requested.get();
+			long emitted = 0;
+			while (!terminated) {
+				if (cancelled) {
+					terminated = true;
+					return false;
+				}
+				if (error != null) {
+					terminated = true;
+					QueryCanceller canceller = pendingCanceller;
+					if (canceller != null) {
+						canceller.cancel();
+					}
+					subscriber.onError(error);
+					return false;
+				}
+				if (current.hasNext()) {
+					if (emitted == demand) {
+						break;
+					}
+					subscriber.onNext(current.next());
+					emitted++;
+					continue;
+				}
+				if (pending == null && nextPaging == null) {
+					terminated = true;
+					subscriber.onComplete();
+					return false;
+				}
+				// 当前页已发完, 没有需求时不切换到下一页, 也不再预读
+				if (emitted == demand) {
+					break;
+				}
+				if (pending == null) {
+					fetchNext();
+				}
+				if (!pending.isDone()) {
+					break;
+				}
+				List<T> page;
+				try {
+					page = pending.join();
+				}
+				catch (Throwable e) {
+					terminated = true;
+					if (!cancelled) {
+						subscriber.onError(e.getCause() != null ? e.getCause() : e);
+					}
+					return false;
+				}
+				Paging<T> fetched = pendingPaging;
+				pending = null;
+				pendingPaging = null;
+				pendingCanceller = null;
+				current = page.iterator();
+				boolean hasNext = fetched.hasNext() && !page.isEmpty()
+						&& (fetched.getKeyset() == null || fetched.getKeyset().getLastValues() != null);
+				nextPaging = hasNext ? (Paging<T>) fetched.next() : null;
+				// 预读下一页
+				if (nextPaging != null) {
+					fetchNext();
+				}
+			}
+			if (demand != Long.MAX_VALUE && emitted > 0) {
+				requested.addAndGet(-emitted);
+			}
+			return !terminated;
+		}
+
+		private void fetchNext() {
+			final Paging<T> paging = nextPaging;
+			final QueryCanceller canceller = new QueryCanceller();
+			nextPaging = null;
+			pendingPaging = paging;
+			pendingCanceller = canceller;
+			pending = CompletableFuture.supplyAsync(new Supplier<List<T>>() {
+				@Override
+				public List<T> get() {
+					return publisher.fetch(paging, canceller);
+				}
+			}, publisher.executor);
+			pending.whenComplete(new BiConsumer<List<T>, Throwable>() {
+				@Override
+				public void accept(List<T> page, Throwable throwable) {
+					drain();
+				}
+			});
+			if (cancelled) {
+				canceller.cancel();
+			}
+		}
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import net.sephy.mybatis.interceptor.BoundSqlBuilder;
+import net.sephy.mybatis.interceptor.BoundSqlCopier;
+import net.sephy.mybatis.interceptor.ParsedSelect;
+import net.sephy.mybatis.interceptor.SQLHelper;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.ibatis.binding.MapperMethod;
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.logging.Log;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.util.Assert;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按数值主键范围并行扫描分页语句.
+ * <p>
+ * 先查询语句结果中主键的最小值和最大值, 将范围等分为若干段, 每段在独立的会话(从 Environment 的 DataSource
+ * 获取的连接)上按主键做 keyset 分页, 同时执行的段数不超过并行度. 每页数据在工作线程上交给
+ * {@link PageConsumer} 处理, 处理完成后才读取该段的下一页, 处理速度跟不上时读取随之放慢.
+ * 任一段出错时其余段停止读取, 异常抛给调用方.
+ *
+ * <pre>
+ * long rows = new ParallelScanner(sqlSessionFactory, "com.example.UserMapper.find", "u.id", "id")
+ *         .parallelism(4).pageSize(1000)
+ *         .scan(Collections.&lt;String, Object&gt; singletonMap("status", 1), new PageConsumer&lt;User&gt;() {
+ *             public void accept(List&lt;User&gt; rows) {
+ *                 writer.write(rows); // 多个线程同时调用
+ *             }
+ *         });
+ * </pre>
+ *
+ * 语句必须使用分页插件分页(接受名为 {@link PagingConsts#PAGING_NAME} 的分页参数), 其他参数按名称传入.
+ * 主键值不能为 null, 各段内按主键升序, 段与段之间的先后顺序不确定.
+ */
+public class ParallelScanner {
+
+	private static final Log LOG = LogFactory.getLog(ParallelScanner.class);
+
+	/**
+	 * 默认并行度
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/**
+	 * 默认每页记录数
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 1000;
+
+	private final SqlSessionFactory sqlSessionFactory;
+
+	private final String statementId;
+
+	private final String column;
+
+	private final String property;
+
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	// 分段数, 为 0 时取并行度的 4 倍, 各段数据量不均匀时由空闲线程接着处理剩余的段
+	private int chunks;
+
+	private int pageSize = DEFAULT_PAGE_SIZE;
+
+	/**
+	 * @param sqlSessionFactory 会话工厂
+	 * @param statementId 分页语句的 id
+	 * @param column SQL中的主键列名, 可以带表别名
+	 * @param property 结果对象中对应的属性名
+	 */
+	public ParallelScanner(SqlSessionFactory sqlSessionFactory, String statementId, String column, String property) {
+		Assert.notNull(sqlSessionFactory, "SqlSessionFactory must not be null!");
+		Assert.hasText(statementId, "Statement id must not be empty!");
+		Assert.hasText(column, "Key column must not be empty!");
+		Assert.hasText(property, "Key property must not be empty!");
+		this.sqlSessionFactory = sqlSessionFactory;
+		this.statementId = statementId;
+		this.column = column;
+		this.property = property;
+	}
+
+	/**
+	 * 同时执行的段数, 即同时占用的连接数, 不应超过连接池大小
+	 */
+	public ParallelScanner parallelism(int parallelism) {
+		Assert.isTrue(parallelism > 0, "Parallelism must be greater than zero!");
+		this.parallelism = parallelism;
+		return this;
+	}
+
+	/**
+	 * 主键范围划分的段数, 不能少于并行度
+	 */
+	public ParallelScanner chunks(int chunks) {
+		Assert.isTrue(chunks > 0, "Chunks must be greater than zero!");
+		this.chunks = chunks;
+		return this;
+	}
+
+	public ParallelScanner pageSize(int pageSize) {
+		Assert.isTrue(pageSize > 0, "Page size must be greater than zero!");
+		this.pageSize = pageSize;
+		return this;
+	}
+
+	/**
+	 * 扫描语句的全部结果
+	 *
+	 * @param parameters 语句的参数(不含分页参数)
+	 * @param consumer 每页数据的处理器, 在多个工作线程上同时调用
+	 * @return 处理的总记录数
+	 */
+	public <T> long scan(Map<String, ?> parameters, PageConsumer<T> consumer) {
+		Assert.notNull(consumer, "Consumer must not be null!");
+		Map<String, ?> params = parameters == null ? Collections.<String, Object> emptyMap() : parameters;
+		long[] range = getKeyRange(params);
+		if (range == null) {
+			return 0;
+		}
+		AtomicBoolean cancelled = new AtomicBoolean();
+		List<Chunk<T>> tasks = split(range[0], range[1], params, consumer, cancelled);
+		int threads = Math.min(parallelism, tasks.size());
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ScanThreadFactory());
+		try {
+			CompletionService<Long> completion = new ExecutorCompletionService<>(executor);
+			for (Chunk<T> task : tasks) {
+				completion.submit(task);
+			}
+			long rows = 0;
+			for (int i = 0; i < tasks.size(); i++) {
+				try {
+					rows += completion.take().get();
+				}
+				catch (ExecutionException e) {
+					cancelled.set(true);
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new PersistenceException("Error scanning " + statementId + ". Cause: " + cause, cause);
+				}
+			}
+			return rows;
+		}
+		catch (InterruptedException e) {
+			cancelled.set(true);
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Scanning " + statementId + " was interrupted", e);
+		}
+		finally {
+			executor.shutdown();
+			if (cancelled.get()) {
+				awaitTermination(executor);
+			}
+		}
+	}
+
+	/**
+	 * 将 [min, max] 等分为若干段
+	 */
+	private <T> List<Chunk<T>> split(long min, long max, Map<String, ?> parameters, PageConsumer<T> consumer,
+			AtomicBoolean cancelled) {
+		int count = chunks > 0 ? Math.max(chunks, parallelism) : parallelism * 4;
+		// max - min + 1 溢出时按 Long.MAX_VALUE 估算段长
+		long span = max - min + 1;
+		long size = span > 0 ? Math.max(1, (span + count - 1) / count) : Long.MAX_VALUE / count + 1;
+		List<Chunk<T>> tasks = new ArrayList<>(count);
+		long start = min;
+		while (true) {
+			long end = start + size;
+			boolean last = end <= start || end > max;
+			tasks.add(new Chunk<>(parameters, consumer, start, last ? null : end, cancelled));
+			if (last) {
+				return tasks;
+			}
+			start = end;
+		}
+	}
+
+	/**
+	 * 查询语句结果中主键的最小值和最大值, 没有数据时返回 null
+	 */
+	private long[] getKeyRange(Map<String, ?> parameters) {
+		SqlSession session = sqlSessionFactory.openSession(true);
+		try {
+			Configuration configuration = sqlSessionFactory.getConfiguration();
+			MappedStatement mappedStatement = configuration.getMappedStatement(statementId);
+			Object parameterObject = newParameter(parameters, Paging.<Object> slice(0, pageSize));
+			BoundSql boundSql = mappedStatement.getBoundSql(parameterObject);
+			BoundSqlBuilder builder = getKeyRangeSql(configuration, boundSql);
+			BoundSql rangeSql = BoundSqlCopier.copy(configuration, boundSql, builder.getSql(),
+					builder.getParameterMappings());
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("KEY RANGE SQL: " + StringUtils.replaceEach(rangeSql.getSql(), new String[] { "\n",
+						"\t" }, new String[] { " ", " " }));
+			}
+			PreparedStatement ps = session.getConnection().prepareStatement(rangeSql.getSql());
+			try {
+				SQLHelper.setParameters(ps, mappedStatement, rangeSql, parameterObject);
+				ResultSet rs = ps.executeQuery();
+				try {
+					if (!rs.next()) {
+						return null;
+					}
+					long min = rs.getLong(1);
+					if (rs.wasNull()) {
+						return null;
+					}
+					return new long[] { min, rs.getLong(2) };
+				}
+				finally {
+					rs.close();
+				}
+			}
+			finally {
+				ps.close();
+			}
+		}
+		catch (SQLException e) {
+			throw new PersistenceException("Error querying key range of " + statementId + ". Cause: " + e, e);
+		}
+		finally {
+			session.close();
+		}
+	}
+
+	/**
+	 * 简单查询直接替换选择列表并去掉 ORDER BY, 其他查询包装为子查询, 按不带表别名的列名取值
+	 */
+	private BoundSqlBuilder getKeyRangeSql(Configuration configuration, BoundSql boundSql) {
+		ParsedSelect select = ParsedSelect.parse(boundSql.getSql());
+		BoundSqlBuilder builder = new BoundSqlBuilder(configuration, select, boundSql);
+		if (select != null && select.isSimple() && !select.hasClause(ParsedSelect.Clause.LOCK)
+				&& builder.isAligned()) {
+			int end = select.hasClause(ParsedSelect.Clause.ORDER_BY) ? select.getClauseStart(ParsedSelect.Clause.ORDER_BY)
+					: select.getEnd();
+			return builder.append("select min(" + column + "), max(" + column + ") ")
+					.copy(select.getClauseStart(ParsedSelect.Clause.FROM), end);
+		}
+		String name = column.substring(column.lastIndexOf('.') + 1);
+		return new BoundSqlBuilder(configuration, null, boundSql).append(
+				"select min(tmp_scan." + name + "), max(tmp_scan." + name + ") from (" + boundSql.getSql()
+						+ ") tmp_scan", boundSql.getParameterMappings());
+	}
+
+	private static Object newParameter(Map<String, ?> parameters, Paging<?> paging) {
+		MapperMethod.ParamMap<Object> parameterObject = new MapperMethod.ParamMap<>();
+		parameterObject.putAll(parameters);
+		parameterObject.put(PagingConsts.PAGING_NAME, paging);
+		return parameterObject;
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * 每页数据的处理器, 实现必须线程安全
+	 */
+	public interface PageConsumer<T> {
+
+		/**
+		 * @param rows 一页数据, 按主键升序, 不为空
+		 */
+		void accept(List<T> rows) throws Exception;
+	}
+
+	/**
+	 * 主键在 [start, end) 范围内的一段, end 为 null 时不限上界
+	 */
+	private class Chunk<T> implements Callable<Long> {
+
+		private final Map<String, ?> parameters;
+
+		private final PageConsumer<T> consumer;
+
+		private final long start;
+
+		private final Long end;
+
+		private final AtomicBoolean cancelled;
+
+		Chunk(Map<String, ?> parameters, PageConsumer<T> consumer, long start, Long end, AtomicBoolean cancelled) {
+			this.parameters = parameters;
+			this.consumer = consumer;
+			this.start = start;
+			this.end = end;
+			this.cancelled = cancelled;
+		}
+
+		@Override
+		public Long call() throws Exception {
+			SqlSession session = sqlSessionFactory.openSession(true);
+			try {
+				Configuration configuration = session.getConfiguration();
+				Keyset keyset = new Keyset().asc(column, property);
+				if (start > Long.MIN_VALUE) {
+					// 从 start 开始, 即 start - 1 之后
+					keyset.setValues(start - 1);
+				}
+				long rows = 0;
+				while (keyset != null && !cancelled.get()) {
+					Paging<T> paging = Paging.slice(0, pageSize);
+					paging.setKeyset(keyset);
+					List<T> page = session.selectList(statementId, newParameter(parameters, paging));
+					int size = page.size();
+					boolean done = !paging.hasNext();
+					if (end != null) {
+						for (int i = 0; i < size; i++) {
+							Object key = configuration.newMetaObject(page.get(i)).getValue(property);
+							if (((Number) key).longValue() >= end) {
+								size = i;
+								done = true;
+								break;
+							}
+						}
+					}
+					if (size > 0) {
+						consumer.accept(size == page.size() ? page : page.subList(0, size));
+						rows += size;
+					}
+					if (done) {
+						break;
+					}
+					keyset = keyset.next();
+					// 各页互不相同, 不需要一级缓存
+					session.clearCache();
+				}
+				return rows;
+			}
+			finally {
+				session.close();
+			}
+		}
+	}
+
+	private static class ScanThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+		private final int poolNumber = POOL_NUMBER.incrementAndGet();
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "paging-scan-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import org.apache.ibatis.binding.MapperMethod;
+import org.apache.ibatis.exceptions.PersistenceException;
+import org.apache.ibatis.reflection.MetaObject;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.util.Assert;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 跨多个分片的合并分页.
+ * <p>
+ * 同一张表按行拆分到多个库时, 每个分片对应一个 SqlSessionFactory(各自的 DataSource, 注册相同的 Mapper
+ * 及分页插件). 查询一页时在各分片上并发执行同一条分页语句: offset 分页取各分片的前 offset + size 行,
+ * keyset 分页取各分片在排序键之后的 size 行; 总记录数为各分片之和. 各分片的结果按分页对象的排序条件
+ * (keyset 分页按排序键)多路归并, 截取全局的一页.
+ *
+ * <pre>
+ * ShardedPager pager = new ShardedPager(Arrays.asList(shard0, shard1, shard2));
+ * Paging&lt;User&gt; paging = new Paging&lt;User&gt;(3, 20, Sort.Direction.DESC, "createdAt", "id");
+ * pager.selectPage("com.example.UserMapper.find", Collections.&lt;String, Object&gt; singletonMap("status", 1), paging);
+ * </pre>
+ *
+ * 排序条件必须唯一确定行的顺序(通常以主键结尾), 且各分片按相同的条件排序: 分片语句本身按该条件排序,
+ * 或在分页插件中开启 sortPushdown. offset 分页每个分片读取
+ * offset + size 行, 越往后翻越慢, 深分页应使用 keyset 分页.
+ */
+public class ShardedPager {
+
+	private final List<SqlSessionFactory> shards;
+
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param shards 各分片的会话工厂, 线程数为分片数的 2 倍
+	 */
+	public ShardedPager(List<SqlSessionFactory> shards) {
+		this(shards, shards.size() * 2);
+	}
+
+	/**
+	 * @param shards 各分片的会话工厂
+	 * @param poolSize 并发查询分片的线程数, 即同时占用的连接数上限
+	 */
+	public ShardedPager(List<SqlSessionFactory> shards, int poolSize) {
+		Assert.notEmpty(shards, "Shards must not be empty!");
+		Assert.isTrue(poolSize > 0, "Pool size must be greater than zero!");
+		this.shards = new ArrayList<>(shards);
+		this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ShardThreadFactory());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * 查询全局的一页, 结果及总记录数写入分页对象
+	 *
+	 * @param statementId 分页语句的 id
+	 * @param parameters 语句的参数(不含分页参数)
+	 * @param paging 分页对象, 必须有排序条件或 keyset 分页条件
+	 * @return 本页数据
+	 */
+	public <T> List<T> selectPage(String statementId, Map<String, ?> parameters, Paging<T> paging) {
+		Keyset keyset = paging.getKeyset();
+		Comparator<Object> comparator = keyset != null ? new RowComparator(shards.get(0).getConfiguration(),
+				keyset) : new RowComparator(shards.get(0).getConfiguration(), paging.getSort());
+		// keyset 分页从排序键之后开始, 不跳过记录
+		int offset = keyset != null ? 0 : paging.getOffset();
+		int limit = offset + paging.getPageSize();
+		List<Paging<T>> shardPagings = query(statementId, parameters, paging, limit);
+
+		List<T> content = merge(shardPagings, comparator, offset, limit);
+		if (keyset != null) {
+			captureKeyset(shards.get(0).getConfiguration(), keyset, content);
+		}
+		boolean slice = paging.isSlice();
+		boolean estimated = false;
+		boolean hasNext = false;
+		long total = 0;
+		for (Paging<T> shardPaging : shardPagings) {
+			slice |= !shardPaging.isTotalKnown();
+			estimated |= shardPaging.isTotalEstimated();
+			hasNext |= !shardPaging.isTotalKnown() && shardPaging.hasNext();
+			total += shardPaging.getTotalElements();
+		}
+		if (slice) {
+			int rows = 0;
+			for (Paging<T> shardPaging : shardPagings) {
+				rows += shardPaging.getContent().size();
+			}
+			hasNext |= rows > limit;
+			paging.setHasNext(hasNext);
+			// 最后一页可以确定总数, 超出末页的空页无法确定
+			boolean lastPage = !hasNext && (!content.isEmpty() || paging.getOffset() == 0) && keyset == null;
+			paging.setTotal(lastPage ? paging.getOffset() + content.size() : PagingConsts.UNKNOWN_TOTAL);
+		}
+		else if (estimated) {
+			paging.setEstimatedTotal(total);
+		}
+		else {
+			paging.setTotal(total);
+		}
+		paging.setContent(content);
+		return content;
+	}
+
+	/**
+	 * 关闭线程池, 正在执行的查询不受影响
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * 在各分片上并发执行分页语句
+	 */
+	private <T> List<Paging<T>> query(final String statementId, Map<String, ?> parameters, Paging<T> paging,
+			int limit) {
+		List<Future<Paging<T>>> futures = new ArrayList<>(shards.size());
+		for (final SqlSessionFactory shard : shards) {
+			final Paging<T> shardPaging = paging.isSlice() ? Paging.<T> slice(0, limit, paging.getSort())
+					: new Paging<T>(0, limit, paging.getSort());
+			if (paging.getKeyset() != null) {
+				Keyset keyset = paging.getKeyset().first();
+				if (paging.getKeyset().hasValues()) {
+					keyset.setValues(paging.getKeyset().getValues());
+				}
+				shardPaging.setKeyset(keyset);
+			}
+			final Map<String, Object> parameterObject = new MapperMethod.ParamMap<>();
+			if (parameters != null) {
+				parameterObject.putAll(parameters);
+			}
+			parameterObject.put(PagingConsts.PAGING_NAME, shardPaging);
+			futures.add(executor.submit(new Callable<Paging<T>>() {
+				@Override
+				public Paging<T> call() throws Exception {
+					SqlSession session = shard.openSession(true);
+					try {
+						shardPaging.setContent(session.<T> selectList(statementId, parameterObject));
+						return shardPaging;
+					}
+					finally {
+						session.close();
+					}
+				}
+			}));
+		}
+		List<Paging<T>> shardPagings = new ArrayList<>(shards.size());
+		try {
+			for (Future<Paging<T>> future : futures) {
+				shardPagings.add(future.get());
+			}
+			return shardPagings;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PersistenceException("Querying shards of " + statementId + " was interrupted", e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new PersistenceException("Error querying shards of " + statementId + ". Cause: " + cause, cause);
+		}
+		finally {
+			for (Future<Paging<T>> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * 多路归并各分片已排序的结果, 返回全局排序后 [offset, limit) 范围内的行
+	 */
+	private static <T> List<T> merge(List<Paging<T>> shardPagings, final Comparator<Object> comparator, int offset,
+			int limit) {
+		PriorityQueue<Cursor<T>> queue = new PriorityQueue<>(shardPagings.size(), new Comparator<Cursor<T>>() {
+			@Override
+			public int compare(Cursor<T> o1, Cursor<T> o2) {
+				int result = comparator.compare(o1.current(), o2.current());
+				// 排序键相同时按分片顺序, 保证结果稳定
+				return result != 0 ? result : o1.shard - o2.shard;
+			}
+		});
+		for (int i = 0; i < shardPagings.size(); i++) {
+			List<T> rows = shardPagings.get(i).getContent();
+			if (!rows.isEmpty()) {
+				queue.add(new Cursor<>(i, rows));
+			}
+		}
+		List<T> content = new ArrayList<>(Math.max(0, limit - offset));
+		for (int position = 0; position < limit && !queue.isEmpty(); position++) {
+			Cursor<T> cursor = queue.poll();
+			if (position >= offset) {
+				content.add(cursor.current());
+			}
+			if (++cursor.index < cursor.rows.size()) {
+				queue.add(cursor);
+			}
+		}
+		return content;
+	}
+
+	/**
+	 * 记录本页最后一行的排序键值, 供下一页使用
+	 */
+	private static void captureKeyset(Configuration configuration, Keyset keyset, List<?> content) {
+		if (content.isEmpty()) {
+			keyset.setLastValues((Object[]) null);
+			return;
+		}
+		Object row = content.get(content.size() - 1);
+		List<Keyset.Key> keys = keyset.getKeys();
+		Object[] values = new Object[keys.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = getValue(configuration, row, keys.get(i).getProperty());
+		}
+		keyset.setLastValues(values);
+	}
+
+	/**
+	 * 读取结果对象的属性, Map 结果不区分键的大小写
+	 */
+	private static Object getValue(Configuration configuration, Object row, String property) {
+		if (row instanceof Map && !((Map<?, ?>) row).containsKey(property)) {
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) row).entrySet()) {
+				if (property.equalsIgnoreCase(String.valueOf(entry.getKey()))) {
+					return entry.getValue();
+				}
+			}
+		}
+		MetaObject metaObject = configuration.newMetaObject(row);
+		return metaObject.getValue(property);
+	}
+
+	private static final class Cursor<T> {
+
+		private final int shard;
+
+		private final List<T> rows;
+
+		private int index;
+
+		Cursor(int shard, List<T> rows) {
+			this.shard = shard;
+			this.rows = rows;
+		}
+
+		T current() {
+			return rows.get(index);
+		}
+	}
+
+	/**
+	 * 按排序条件比较两行, null 值排在最前
+	 */
+	private static final class RowComparator implements Comparator<Object> {
+
+		private final Configuration configuration;
+
+		private final List<String> properties = new ArrayList<>();
+
+		private final List<Boolean> descending = new ArrayList<>();
+
+		private final List<Boolean> ignoreCase = new ArrayList<>();
+
+		RowComparator(Configuration configuration, Keyset keyset) {
+			this.configuration = configuration;
+			for (Keyset.Key key : keyset.getKeys()) {
+				properties.add(key.getProperty());
+				descending.add(key.getDirection() == Sort.Direction.DESC);
+				ignoreCase.add(false);
+			}
+		}
+
+		RowComparator(Configuration configuration, Sort sort) {
+			Assert.notNull(sort, "Sort or keyset is required to merge shard pages!");
+			this.configuration = configuration;
+			for (Sort.Order order : sort) {
+				properties.add(order.getProperty());
+				descending.add(order.getDirection() == Sort.Direction.DESC);
+				ignoreCase.add(order.isIgnoreCase());
+			}
+		}
+
+		@Override
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public int compare(Object o1, Object o2) {
+			for (int i = 0; i < properties.size(); i++) {
+				Object v1 = getValue(configuration, o1, properties.get(i));
+				Object v2 = getValue(configuration, o2, properties.get(i));
+				int result;
+				if (v1 == null || v2 == null) {
+					result = v1 == null ? (v2 == null ? 0 : -1) : 1;
+				}
+				else if (ignoreCase.get(i) && v1 instanceof String && v2 instanceof String) {
+					result = ((String) v1).compareToIgnoreCase((String) v2);
+				}
+				else {
+					result = ((Comparable) v1).compareTo(v2);
+				}
+				if (result != 0) {
+					return descending.get(i) ? -result : result;
+				}
+			}
+			return 0;
+		}
+	}
+
+	private static class ShardThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+
+		private final int poolNumber = POOL_NUMBER.incrementAndGet();
+
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "paging-shard-" + poolNumber + "-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
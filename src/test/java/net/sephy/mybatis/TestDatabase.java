@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis;
+
+import net.sephy.mybatis.interceptor.PaginationInterceptor;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+/**
+ * 测试用的 H2 内存库: users(id, name, grp) 表, 注册 {@link UserMapper} 及分页插件.
+ * 函数 sleep_millis(ms) 暂停指定毫秒后返回 0, 用于模拟慢查询
+ */
+public final class TestDatabase {
+
+	private TestDatabase() {
+	}
+
+	/**
+	 * 创建内存库并写入指定 id 的用户, name 为 "u" + id, grp 为 id % 5
+	 *
+	 * @param name 库名, 同一个 JVM 内不同的库名对应不同的库
+	 * @param properties 分页插件的配置
+	 * @param ids 写入的用户 id
+	 */
+	public static SqlSessionFactory create(String name, Properties properties, int... ids) throws SQLException {
+		DataSource dataSource = new UnpooledDataSource("org.h2.Driver", "jdbc:h2:mem:" + name
+				+ ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+		try (Connection conn = dataSource.getConnection(); Statement stmt = conn.createStatement()) {
+			stmt.execute("drop table if exists users");
+			stmt.execute("create table users (id int primary key, name varchar(50), grp int)");
+			stmt.execute("create alias if not exists sleep_millis for \"" + TestDatabase.class.getName()
+					+ ".sleepMillis\"");
+			try (PreparedStatement ps = conn.prepareStatement("insert into users values (?, ?, ?)")) {
+				for (int id : ids) {
+					ps.setInt(1, id);
+					ps.setString(2, "u" + id);
+					ps.setInt(3, id % 5);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}
+		}
+		PaginationInterceptor interceptor = new PaginationInterceptor();
+		interceptor.setProperties(properties);
+		Configuration configuration = new Configuration(new Environment(name, new JdbcTransactionFactory(),
+				dataSource));
+		configuration.addInterceptor(interceptor);
+		configuration.addMapper(UserMapper.class);
+		return new SqlSessionFactoryBuilder().build(configuration);
+	}
+
+	/**
+	 * sleep_millis 函数的实现
+	 */
+	public static int sleepMillis(int millis) throws InterruptedException {
+		Thread.sleep(millis);
+		return 0;
+	}
+
+	/**
+	 * id 为 from 到 to (含) 的连续整数
+	 */
+	public static int[] range(int from, int to) {
+		int[] ids = new int[to - from + 1];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = from + i;
+		}
+		return ids;
+	}
+}
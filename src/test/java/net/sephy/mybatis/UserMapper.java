@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis;
+
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.SelectKey;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 测试用的 Mapper, 对应 {@link TestDatabase} 创建的 users 表
+ */
+public interface UserMapper {
+
+	@Select("<script>select id, name, grp from users <where><if test='name != null'>name like #{name}</if></where>"
+			+ " order by id</script>")
+	List<Map<String, Object>> find(@Param("paging") Paging<Map<String, Object>> paging, @Param("name") String name);
+
+	@Select("<script>select id, name, grp from users where id in"
+			+ "<foreach collection='ids' item='id' open='(' separator=',' close=')'>#{id}</foreach></script>")
+	List<Map<String, Object>> findByIds(@Param("paging") Paging<Map<String, Object>> paging,
+			@Param("ids") List<Integer> ids);
+
+	@Insert("<script>insert into users (id, name, grp) values (#{id}, #{name},"
+			+ "<choose><when test='grp != null'>#{grp}</when><otherwise>0</otherwise></choose>)</script>")
+	int insert(@Param("id") int id, @Param("name") String name, @Param("grp") Integer grp);
+
+	/**
+	 * 主键由 selectKey 先行生成, 生成主键后 grp 取主键值, 否则不写入 grp
+	 */
+	@SelectKey(statement = "select coalesce(max(id), 0) + 1 from users", keyProperty = "id", before = true,
+			resultType = int.class)
+	@Insert("<script>insert into users (id, name<if test='id != null'>, grp</if>) values (#{id}, #{name}"
+			+ "<if test='id != null'>, #{id}</if>)</script>")
+	int insertWithKey(Map<String, Object> user);
+
+	/**
+	 * 每读取一行暂停 millis 毫秒的慢查询
+	 */
+	@Select("select id, name, grp from users where sleep_millis(#{millis}) = 0 order by id")
+	List<Map<String, Object>> findSlow(@Param("paging") Paging<Map<String, Object>> paging,
+			@Param("millis") int millis);
+
+	@Select("select grp from users where id = #{id}")
+	Integer findGroup(int id);
+}
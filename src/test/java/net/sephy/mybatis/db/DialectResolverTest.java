@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.db;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 按名称及数据库产品选择方言
+ */
+public class DialectResolverTest {
+
+	@Test
+	public void detectsByProductAndVersion() throws SQLException {
+		assertTrue(DialectResolver.detect(metaData("MySQL", 8)) instanceof MySQLDialect);
+		assertTrue(DialectResolver.detect(metaData("MariaDB", 10)) instanceof MySQLDialect);
+		assertTrue(DialectResolver.detect(metaData("PostgreSQL", 15)) instanceof PostgreSQLDialect);
+		assertTrue(DialectResolver.detect(metaData("Oracle", 19)) instanceof OracleDialect);
+		assertTrue(DialectResolver.detect(metaData("Microsoft SQL Server", 15)) instanceof SQLServerDialect);
+		assertTrue(DialectResolver.detect(metaData("H2", 2)) instanceof H2Dialect);
+	}
+
+	@Test
+	public void rejectsVersionsWithoutOffsetFetch() throws SQLException {
+		for (DatabaseMetaData metaData : new DatabaseMetaData[] { metaData("Oracle", 11),
+				metaData("Microsoft SQL Server", 10), metaData("Apache Derby", 10) }) {
+			try {
+				DialectResolver.detect(metaData);
+				fail(metaData.getDatabaseProductName() + " should not be supported");
+			}
+			catch (RuntimeException e) {
+				assertTrue(e.getMessage().contains(metaData.getDatabaseProductName()));
+			}
+		}
+	}
+
+	@Test
+	public void createsByName() {
+		assertTrue(DialectResolver.forName(" MySQL ") instanceof MySQLDialect);
+		assertTrue(DialectResolver.forName("postgres") instanceof PostgreSQLDialect);
+		assertTrue(DialectResolver.forName("sqlserver") instanceof SQLServerDialect);
+		assertTrue(DialectResolver.forName(H2Dialect.class.getName()) instanceof H2Dialect);
+		assertNull(DialectResolver.forName("db2"));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void rejectsUnknownClass() {
+		DialectResolver.forName("net.sephy.mybatis.db.MissingDialect");
+	}
+
+	@Test
+	public void pagesWithDetectedDialect() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("dialect_auto", new Properties(), TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			Paging<Map<String, Object>> paging = new Paging<>(1, 3);
+			assertEquals(3, session.getMapper(UserMapper.class).find(paging, "u%").size());
+			assertEquals(4, paging.getContent().get(0).get("ID"));
+			assertEquals(7, paging.getTotalElements());
+		}
+	}
+
+	private static DatabaseMetaData metaData(final String product, final int majorVersion) {
+		return (DatabaseMetaData) Proxy.newProxyInstance(DatabaseMetaData.class.getClassLoader(),
+				new Class<?>[] { DatabaseMetaData.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						if ("getDatabaseProductName".equals(method.getName())) {
+							return product;
+						}
+						if ("getDatabaseMajorVersion".equals(method.getName())) {
+							return majorVersion;
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.db;
+
+import net.sephy.mybatis.util.Keyset;
+import net.sephy.mybatis.util.PagingConsts;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 各方言生成的分页SQL及参数顺序
+ */
+public class DialectSqlTest {
+
+	private final Configuration configuration = new Configuration();
+
+	@Test
+	public void mysql() {
+		MySQLDialect dialect = new MySQLDialect();
+		assertEquals("select * from t limit ?, ?", dialect.getPagingSql("select * from t;"));
+		assertEquals("select * from t limit 20,10", dialect.getLimitString("select * from t -- all\n", 20, 10));
+		assertEquals("select * from t limit 10", dialect.getLimitString("select * from t", 0, 10));
+		BoundSql paging = dialect.getPagingBoundSql(configuration, boundSql("select * from t where a = ?; ", "a"));
+		assertEquals("select * from t where a = ? limit ?, ?", paging.getSql());
+		assertEquals(Arrays.asList("a", PagingConsts.PAGE_OFFSET, PagingConsts.PAGE_LIMIT), properties(paging));
+		assertKeyset(dialect, "select * from t where (a, id) > (?, ?) and ( b = ?)  order by a asc, id asc limit ?");
+	}
+
+	@Test
+	public void postgresql() {
+		PostgreSQLDialect dialect = new PostgreSQLDialect();
+		assertEquals("select * from t limit ? offset ?", dialect.getPagingSql("select * from t; -- done"));
+		assertEquals("select * from t limit 10 offset 20", dialect.getLimitString("select * from t;", 20, 10));
+		BoundSql paging = dialect.getPagingBoundSql(configuration,
+				boundSql("select * from t where a = ? /* tail */", "a"));
+		assertEquals("select * from t where a = ? limit ? offset ?", paging.getSql());
+		assertEquals(Arrays.asList("a", PagingConsts.PAGE_LIMIT, PagingConsts.PAGE_OFFSET), properties(paging));
+		assertKeyset(dialect, "select * from t where (a, id) > (?, ?) and ( b = ?)  order by a asc, id asc limit ?");
+	}
+
+	@Test
+	public void h2() {
+		H2Dialect dialect = new H2Dialect();
+		assertEquals("select * from t limit ? offset ?", dialect.getPagingSql("select * from t;"));
+		assertEquals("select * from t limit 10", dialect.getLimitString("select * from t -- all", 0, 10));
+		assertKeyset(dialect, "select * from t where (a, id) > (?, ?) and ( b = ?)  order by a asc, id asc limit ?");
+	}
+
+	@Test
+	public void oracle() {
+		OracleDialect dialect = new OracleDialect();
+		assertEquals("select * from t offset ? rows fetch next ? rows only", dialect.getPagingSql("select * from t;"));
+		assertEquals("select * from t offset 20 rows fetch next 10 rows only",
+				dialect.getLimitString("select * from t -- all", 20, 10));
+		BoundSql paging = dialect.getPagingBoundSql(configuration, boundSql("select * from t where a = ?;", "a"));
+		assertEquals("select * from t where a = ? offset ? rows fetch next ? rows only", paging.getSql());
+		assertEquals(Arrays.asList("a", PagingConsts.PAGE_OFFSET, PagingConsts.PAGE_LIMIT), properties(paging));
+		assertKeyset(dialect, "select * from t where ((a > ?) or (a = ? and id > ?)) and ( b = ?)"
+				+ "  order by a asc, id asc fetch first ? rows only");
+	}
+
+	@Test
+	public void sqlServer() {
+		SQLServerDialect dialect = new SQLServerDialect();
+		assertEquals("select * from t order by (select null) offset ? rows fetch next ? rows only",
+				dialect.getPagingSql("select * from t;"));
+		assertEquals("select * from t order by id offset 20 rows fetch next 10 rows only",
+				dialect.getLimitString("select * from t order by id -- by id", 20, 10));
+		BoundSql paging = dialect.getPagingBoundSql(configuration, boundSql("select * from t where a = ?;", "a"));
+		assertEquals("select * from t where a = ? order by (select null) offset ? rows fetch next ? rows only",
+				paging.getSql());
+		assertEquals(Arrays.asList("a", PagingConsts.PAGE_OFFSET, PagingConsts.PAGE_LIMIT), properties(paging));
+		assertKeyset(dialect, "select * from t where ((a > ?) or (a = ? and id > ?)) and ( b = ?)"
+				+ "  order by a asc, id asc offset 0 rows fetch next ? rows only");
+	}
+
+	@Test
+	public void windowCount() {
+		String sql = "select a, b from t where a = ?";
+		String expected = "select a, b , count(*) over() as " + PagingConsts.WINDOW_TOTAL_COLUMN
+				+ " from t where a = ?";
+		assertEquals(expected, new MySQLDialect().getWindowCountBoundSql(configuration, boundSql(sql, "a")).getSql());
+		assertEquals(expected,
+				new PostgreSQLDialect().getWindowCountBoundSql(configuration, boundSql(sql, "a")).getSql());
+		assertEquals(expected, new OracleDialect().getWindowCountBoundSql(configuration, boundSql(sql, "a")).getSql());
+		// Oracle 不允许 select *, 其他列
+		assertNull(new OracleDialect().getWindowCountBoundSql(configuration, boundSql("select * from t")));
+		// DISTINCT 加入窗口函数后总数不正确
+		assertNull(new MySQLDialect().getWindowCountBoundSql(configuration, boundSql("select distinct a from t")));
+	}
+
+	@Test
+	public void legacyDialectAppendsPagingSql() {
+		LegacyDialect dialect = new LegacyDialect();
+		BoundSql paging = dialect.addLimitClause(configuration, boundSql("select * from t where a = ?", "a"));
+		assertEquals("select * from t where a = ? limit ? , ?", paging.getSql());
+		assertEquals(Arrays.asList("a", PagingConsts.PAGE_OFFSET, PagingConsts.PAGE_LIMIT), properties(paging));
+
+		Keyset keyset = Keyset.of("id");
+		keyset.setValues(10);
+		BoundSql seek = dialect.rewriteKeyset(configuration, boundSql("select * from t"), keyset);
+		assertEquals("select * from t where ((id > ?))  order by id asc limit 0 , ?", seek.getSql());
+		assertEquals(Arrays.asList(PagingConsts.KEYSET_VALUES + "[0]", PagingConsts.PAGE_LIMIT), properties(seek));
+	}
+
+	/**
+	 * 两列排序键从 (1, 2) 之后开始的 keyset 分页
+	 */
+	private void assertKeyset(AbstractDialect dialect, String expected) {
+		Keyset keyset = Keyset.of("a", "id");
+		keyset.setValues(1, 2);
+		BoundSql seek = dialect.getKeysetBoundSql(configuration, boundSql("select * from t where b = ?", "b"), keyset);
+		assertEquals(expected, seek.getSql());
+		assertEquals(PagingConsts.PAGE_LIMIT, properties(seek).get(properties(seek).size() - 1));
+		assertEquals("b", properties(seek).get(properties(seek).size() - 2));
+	}
+
+	BoundSql boundSql(String sql, String... properties) {
+		List<ParameterMapping> mappings = new ArrayList<>();
+		for (String property : properties) {
+			mappings.add(new ParameterMapping.Builder(configuration, property, Object.class).build());
+		}
+		return new BoundSql(configuration, sql, mappings, Collections.emptyMap());
+	}
+
+	static List<String> properties(BoundSql boundSql) {
+		List<String> properties = new ArrayList<>();
+		for (ParameterMapping mapping : boundSql.getParameterMappings()) {
+			properties.add(mapping.getProperty());
+		}
+		return properties;
+	}
+
+	/**
+	 * 只实现了 getPagingSql 的旧版方言
+	 */
+	private static class LegacyDialect extends AbstractDialect {
+
+		@Override
+		public boolean supportsLimit() {
+			return true;
+		}
+
+		@Override
+		public String getPagingSql(String origSql) {
+			return origSql + " limit ? , ?";
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 总记录数缓存: 写操作及事务提交后失效, count 查询期间失效的结果不写入
+ */
+public class CountCacheTest {
+
+	@Test
+	public void invalidatesOnWrite() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("count_cache_write", properties(), TestDatabase.range(1, 7));
+		CountCache countCache = countCache(factory);
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			assertEquals(7, total(mapper));
+			assertEquals(7, total(mapper));
+			assertEquals(1, countCache.getHitCount());
+
+			mapper.insert(8, "u8", null);
+			assertEquals(8, total(mapper));
+			assertEquals(1, countCache.getHitCount());
+		}
+	}
+
+	@Test
+	public void invalidatesAgainOnCommit() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("count_cache_tx", properties(), TestDatabase.range(1, 7));
+		CountCache countCache = countCache(factory);
+		try (SqlSession writer = factory.openSession(false); SqlSession reader = factory.openSession(true)) {
+			UserMapper writerMapper = writer.getMapper(UserMapper.class);
+			writerMapper.insert(8, "u8", null);
+			// 有未提交写操作的会话不使用缓存
+			assertEquals(8, total(writerMapper));
+			assertEquals(0, countCache.size());
+
+			// 其他会话在提交前缓存了旧的总数
+			assertEquals(7, total(reader.getMapper(UserMapper.class)));
+			assertEquals(1, countCache.size());
+
+			writer.commit();
+			assertEquals(0, countCache.size());
+			assertEquals(8, total(reader.getMapper(UserMapper.class)));
+		}
+	}
+
+	@Test
+	public void rejectsCountStartedBeforeInvalidation() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("count_cache_race", properties(), TestDatabase.range(1, 7));
+		MappedStatement mappedStatement = factory.getConfiguration()
+				.getMappedStatement("net.sephy.mybatis.UserMapper.findByIds");
+		Map<String, Object> parameterObject = new HashMap<>();
+		parameterObject.put("ids", Collections.singletonList(1));
+		BoundSql boundSql = mappedStatement.getBoundSql(parameterObject);
+		String countSql = "select count(*) from users where id in (?)";
+		CountCache countCache = new CountCache();
+
+		CountCache.Key key = countCache.newKey(mappedStatement, boundSql, countSql);
+		// count 查询执行期间其他语句写入了同一张表
+		countCache.invalidate(factory.getConfiguration().getMappedStatement("net.sephy.mybatis.UserMapper.insert"),
+				Collections.singleton("users"));
+		countCache.put(key, 1);
+		assertNull(countCache.get(key));
+
+		// 失效之后开始的 count 查询照常缓存
+		key = countCache.newKey(mappedStatement, boundSql, countSql);
+		countCache.put(key, 1);
+		assertEquals(Long.valueOf(1), countCache.get(key));
+	}
+
+	@Test
+	public void unrelatedTableDoesNotReject() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("count_cache_other", properties(), TestDatabase.range(1, 7));
+		MappedStatement mappedStatement = factory.getConfiguration()
+				.getMappedStatement("net.sephy.mybatis.UserMapper.findByIds");
+		Map<String, Object> parameterObject = new HashMap<>();
+		parameterObject.put("ids", Collections.singletonList(1));
+		BoundSql boundSql = mappedStatement.getBoundSql(parameterObject);
+		CountCache countCache = new CountCache();
+
+		CountCache.Key key = countCache.newKey(mappedStatement, boundSql,
+				"select count(*) from users where id in (?)");
+		MappedStatement other = new MappedStatement.Builder(factory.getConfiguration(), "com.example.LogMapper.insert",
+				mappedStatement.getSqlSource(), mappedStatement.getSqlCommandType()).build();
+		countCache.invalidate(other, Collections.singleton("logs"));
+		countCache.put(key, 1);
+		assertEquals(Long.valueOf(1), countCache.get(key));
+	}
+
+	private static long total(UserMapper mapper) {
+		Paging<Map<String, Object>> paging = new Paging<>(0, 3);
+		mapper.find(paging, null);
+		return paging.getTotalElements();
+	}
+
+	private static CountCache countCache(SqlSessionFactory factory) {
+		return ((PaginationInterceptor) factory.getConfiguration().getInterceptors().get(0)).getCountCache();
+	}
+
+	private static Properties properties() {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		properties.setProperty("countCacheStatements", "net.sephy.mybatis.UserMapper.*");
+		return properties;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * count SQL 的生成, 参数占位符的个数和顺序必须与原语句一致
+ */
+public class CountSqlParserTest {
+
+	private final CountSqlParser parser = new CountSqlParser();
+
+	@Test
+	public void simpleSelect() {
+		assertEquals("select count(*) from users where name like ?",
+				parser.getCountSql("select id, name from users where name like ?"));
+		assertEquals("select count(*) from users ", parser.getCountSql("select * from users order by id desc"));
+	}
+
+	@Test
+	public void distinct() {
+		assertEquals("select count(*) from (select distinct grp from users where id > ?) tmp_count",
+				parser.getCountSql("select distinct grp from users where id > ?"));
+	}
+
+	@Test
+	public void groupByAndHaving() {
+		assertEquals("select count(*) from (select 1 from users group by grp ) tmp_count",
+				parser.getCountSql("select grp, count(*) from users group by grp order by grp"));
+		assertEquals("select count(*) from (select grp, count(*) c from users group by grp having count(*) > ?"
+				+ " ) tmp_count",
+				parser.getCountSql("select grp, count(*) c from users group by grp having count(*) > ? order by c"));
+	}
+
+	@Test
+	public void union() {
+		String sql = "select id from users where grp = ? union all select id from archived where grp = ?";
+		assertEquals("select count(*) from (" + sql + ") tmp_count", parser.getCountSql(sql));
+	}
+
+	@Test
+	public void nestedSubquery() {
+		assertEquals("select count(*) from users u where u.grp in (select grp from groups g order by g.name) and"
+				+ " u.id > ? ",
+				parser.getCountSql("select u.* from users u where u.grp in (select grp from groups g order by g.name)"
+						+ " and u.id > ? order by u.id"));
+		assertEquals("select count(*) from (select t.id from (select id from users where name = ?) t limit 10)"
+				+ " tmp_count",
+				parser.getCountSql("select t.id from (select id from users where name = ?) t limit 10"));
+	}
+
+	@Test
+	public void quotedIdentifiers() {
+		assertEquals("select count(*) from \"order\" where \"from\" = ? ",
+				parser.getCountSql("select \"select\", \"from\" from \"order\" where \"from\" = ? order by \"from\""));
+		assertEquals("select count(*) from `group` where `where` = ?",
+				parser.getCountSql("select `order` from `group` where `where` = ?", true));
+	}
+
+	@Test
+	public void comments() {
+		assertEquals("select count(*) from users /* from t */ where id > ?",
+				parser.getCountSql("select id /* , name */ from users /* from t */ where id > ? -- order by\n"));
+		// MySQL 中 # 开始单行注释
+		assertEquals("select count(*) from users where id > ?",
+				parser.getCountSql("select id from users where id > ? # order by ?\n", true));
+	}
+
+	@Test
+	public void hashIsOperatorOutsideMySQL() {
+		// PostgreSQL 中 # 是按位异或, 其后的条件、参数和 ORDER BY 都属于语句
+		assertEquals("select count(*) from users where grp # ? = 1 ",
+				parser.getCountSql("select id from users where grp # ? = 1 order by id"));
+		assertEquals("select count(*) from (select id from users where grp # 1 = 0 order by ?) tmp_count",
+				parser.getCountSql("select id from users where grp # 1 = 0 order by ?"));
+	}
+
+	@Test
+	public void parametersInsideLiterals() {
+		assertEquals("select count(*) from users where name = '?' and grp = ? ",
+				parser.getCountSql("select id, '?' q from users where name = '?' and grp = ? order by 'a?'"));
+		assertEquals("select count(*) from users where name = 'it''s ?' ",
+				parser.getCountSql("select id from users where name = 'it''s ?' order by id"));
+	}
+
+	@Test
+	public void parameterizedOrderByIsWrapped() {
+		// count(*) 中保留 ORDER BY 在 PostgreSQL 中会报错, 包含参数的 ORDER BY 又不能去掉
+		assertEquals("select count(*) from (select id from users where grp = ? order by"
+				+ " case when name = ? then 0 else 1 end) tmp_count",
+				parser.getCountSql("select id from users where grp = ? order by case when name = ? then 0 else 1 end"));
+	}
+
+	@Test
+	public void limitIsWrapped() {
+		assertEquals("select count(*) from (select id from users order by id limit 5) tmp_count",
+				parser.getCountSql("select id from users order by id limit 5;"));
+	}
+
+	@Test
+	public void aggregateIsWrapped() {
+		assertEquals("select count(*) from (select max(id) from users where grp = ?) tmp_count",
+				parser.getCountSql("select max(id) from users where grp = ?"));
+	}
+}
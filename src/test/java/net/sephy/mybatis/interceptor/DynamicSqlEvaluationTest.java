@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 每次分页查询及写操作只生成一次动态SQL: count 查询、分页查询与缓存失效共用同一个 BoundSql
+ */
+public class DynamicSqlEvaluationTest {
+
+	private static final List<Integer> IDS = Arrays.asList(3, 5, 7, 9, 11, 13, 15);
+
+	@Test
+	public void separateCountEvaluatesOnce() throws Exception {
+		assertPagesEvaluatedOnce("separate", new Properties());
+	}
+
+	@Test
+	public void windowCountEvaluatesOnce() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("countQueryMode", "window");
+		assertPagesEvaluatedOnce("window", properties);
+	}
+
+	@Test
+	public void updateEvaluatesOnce() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		properties.setProperty("countCacheStatements", "net.sephy.mybatis.UserMapper.*");
+		properties.setProperty("pageCacheStatements", "net.sephy.mybatis.UserMapper.*");
+		SqlSessionFactory factory = TestDatabase.create("dynamic_sql_update", properties, TestDatabase.range(1, 20));
+		AtomicInteger find = countEvaluations(factory, "net.sephy.mybatis.UserMapper.findByIds");
+		AtomicInteger insert = countEvaluations(factory, "net.sephy.mybatis.UserMapper.insert");
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(0, 2);
+			mapper.findByIds(paging, Arrays.asList(3, 21));
+			assertEquals(1, paging.getTotalElements());
+			for (int i = 0; i < 3; i++) {
+				mapper.insert(21 + i, "n" + i, i == 1 ? 1 : null);
+				assertEquals(1, insert.getAndSet(0));
+			}
+			// 插入使缓存的总记录数及分页结果失效
+			find.set(0);
+			paging = new Paging<>(0, 2);
+			mapper.findByIds(paging, Arrays.asList(3, 21));
+			assertEquals(2, paging.getTotalElements());
+			assertEquals(1, find.get());
+		}
+	}
+
+	@Test
+	public void updateRendersAfterSelectKey() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		properties.setProperty("countCacheStatements", "net.sephy.mybatis.UserMapper.*");
+		properties.setProperty("pageCacheStatements", "net.sephy.mybatis.UserMapper.*");
+		SqlSessionFactory factory = TestDatabase.create("dynamic_sql_select_key", properties, TestDatabase.range(1, 20));
+		AtomicInteger insert = countEvaluations(factory, "net.sephy.mybatis.UserMapper.insertWithKey");
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(0, 2);
+			mapper.find(paging, null);
+			assertEquals(20, paging.getTotalElements());
+			Map<String, Object> user = new HashMap<>();
+			user.put("name", "k");
+			mapper.insertWithKey(user);
+			assertEquals(1, insert.get());
+			// 动态SQL在 selectKey 生成主键之后生成
+			assertEquals(21, user.get("id"));
+			assertEquals(Integer.valueOf(21), mapper.findGroup(21));
+			// selectKey 查询不影响按插入语句失效缓存
+			paging = new Paging<>(0, 2);
+			mapper.find(paging, null);
+			assertEquals(21, paging.getTotalElements());
+		}
+	}
+
+	private void assertPagesEvaluatedOnce(String name, Properties properties) throws Exception {
+		properties.setProperty("dialect", "h2");
+		SqlSessionFactory factory = TestDatabase.create("dynamic_sql_" + name, properties, TestDatabase.range(1, 20));
+		AtomicInteger evaluations = countEvaluations(factory, "net.sephy.mybatis.UserMapper.findByIds");
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			for (int page = 0; page < 5; page++) {
+				Paging<Map<String, Object>> paging = new Paging<>(page, 3);
+				List<Map<String, Object>> content = mapper.findByIds(paging, IDS);
+				assertEquals(IDS.size(), paging.getTotalElements());
+				assertEquals(Math.max(0, Math.min(3, IDS.size() - page * 3)), content.size());
+				assertEquals("page " + page, 1, evaluations.getAndSet(0));
+			}
+		}
+	}
+
+	/**
+	 * 替换语句的 SqlSource, 统计生成 BoundSql 的次数
+	 */
+	private static AtomicInteger countEvaluations(SqlSessionFactory factory, String statementId) throws Exception {
+		MappedStatement mappedStatement = factory.getConfiguration().getMappedStatement(statementId);
+		Field field = MappedStatement.class.getDeclaredField("sqlSource");
+		field.setAccessible(true);
+		final SqlSource sqlSource = (SqlSource) field.get(mappedStatement);
+		final AtomicInteger evaluations = new AtomicInteger();
+		field.set(mappedStatement, new SqlSource() {
+			@Override
+			public BoundSql getBoundSql(Object parameterObject) {
+				evaluations.incrementAndGet();
+				return sqlSource.getBoundSql(parameterObject);
+			}
+		});
+		return evaluations;
+	}
+}
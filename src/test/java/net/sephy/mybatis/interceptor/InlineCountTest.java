@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 分页查询同时取得总记录数: 总记录数列对结果映射不可见, 不支持的方式退回单独的 count 查询
+ */
+public class InlineCountTest {
+
+	@Test
+	public void windowCountIsReadAndHidden() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("inline_window", properties("window"),
+				TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(1, 3);
+			List<Map<String, Object>> content = mapper.find(paging, null);
+			assertEquals(7, paging.getTotalElements());
+			assertEquals(3, content.size());
+			assertEquals(4, content.get(0).get("ID"));
+			// 结果映射看不到追加的总记录数列
+			assertEquals(new HashSet<>(Arrays.asList("ID", "NAME", "GRP")), content.get(0).keySet());
+
+			paging = new Paging<>(0, 3);
+			mapper.find(paging, "u1%");
+			assertEquals(1, paging.getTotalElements());
+		}
+	}
+
+	@Test
+	public void windowCountOfEmptyPages() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("inline_empty", properties("window"),
+				TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			// 第一页为空时总数为 0
+			Paging<Map<String, Object>> paging = new Paging<>(0, 3);
+			assertEquals(0, mapper.find(paging, "x%").size());
+			assertEquals(0, paging.getTotalElements());
+
+			// 超出末页的空页读不到总数列, 单独查询总数
+			paging = new Paging<>(5, 3);
+			assertEquals(0, mapper.find(paging, null).size());
+			assertEquals(7, paging.getTotalElements());
+		}
+	}
+
+	@Test
+	public void foundRowsFallsBackOutsideMySQL() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("inline_found_rows", properties("found_rows"),
+				TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			Paging<Map<String, Object>> paging = new Paging<>(1, 3);
+			assertEquals(3, session.getMapper(UserMapper.class).find(paging, null).size());
+			assertEquals(7, paging.getTotalElements());
+		}
+	}
+
+	private static Properties properties(String countQueryMode) {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		properties.setProperty("countQueryMode", countQueryMode);
+		return properties;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Keyset;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * keyset 分页: 按排序键定位下一页, 读完后不再回到第一页
+ */
+public class KeysetPagingTest {
+
+	@Test
+	public void walksAllPagesAndStops() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("keyset_walk", properties(), TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(0, 3);
+			paging.setKeyset(new Keyset().desc("grp", "GRP").asc("id", "ID"));
+			List<List<Object>> pages = new ArrayList<>();
+			int queries = 0;
+			while (paging != null) {
+				List<Object> ids = new ArrayList<>();
+				for (Map<String, Object> row : mapper.find(paging, null)) {
+					ids.add(row.get("ID"));
+				}
+				pages.add(ids);
+				queries++;
+				assertTrue("keyset walk does not terminate", queries < 10);
+				paging = (Paging<Map<String, Object>>) paging.next();
+			}
+			// grp = id % 5 降序, id 升序
+			assertEquals(Arrays.<List<Object>> asList(Arrays.<Object> asList(4, 3, 2),
+					Arrays.<Object> asList(7, 1, 6), Arrays.<Object> asList(5),
+					Arrays.<Object> asList()), pages);
+		}
+	}
+
+	@Test
+	public void nextOfUnexecutedPageUsesOffset() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("keyset_offset", properties(), TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(0, 3);
+			Keyset keyset = new Keyset().asc("id", "ID");
+			paging.setKeyset(keyset);
+			assertFalse(keyset.isExecuted());
+			Paging<Map<String, Object>> next = (Paging<Map<String, Object>>) paging.next();
+			List<Map<String, Object>> content = mapper.find(next, null);
+			assertEquals(4, content.get(0).get("ID"));
+			assertTrue(next.getKeyset().isExecuted());
+		}
+	}
+
+	@Test
+	public void emptyFirstPageHasNoNext() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("keyset_empty", properties());
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(0, 3);
+			paging.setKeyset(Keyset.of("id"));
+			assertEquals(0, mapper.find(paging, null).size());
+			assertNull(paging.next());
+		}
+	}
+
+	@Test
+	public void acceptsQualifiedAndQuotedColumns() {
+		new Keyset().asc("u.id", "id").asc("\"u\".\"created at\"", "createdAt").desc("`grp`", "grp")
+				.asc("[dbo].[name]", "name");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsExpressionColumns() {
+		Keyset.of("id; drop table users");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsFunctionColumns() {
+		new Keyset().asc("lower(name)", "name");
+	}
+
+	private static Properties properties() {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		return properties;
+	}
+}
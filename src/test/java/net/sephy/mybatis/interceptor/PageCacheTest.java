@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.cache.impl.PerpetualCache;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 分页结果缓存: 命中时返回副本, 写操作、事务提交及查询期间的写操作使缓存失效
+ */
+public class PageCacheTest {
+
+	@Test
+	public void hitReturnsCopy() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("page_cache_hit", properties(), TestDatabase.range(1, 7));
+		PageCache pageCache = pageCache(factory);
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(1, 3);
+			mapper.find(paging, null).get(0).put("NAME", "changed");
+
+			paging = new Paging<>(1, 3);
+			List<Map<String, Object>> content = mapper.find(paging, null);
+			assertEquals(1, pageCache.getHitCount());
+			assertEquals(7, paging.getTotalElements());
+			assertEquals("u4", content.get(0).get("NAME"));
+
+			// 其他页及其他参数不命中
+			mapper.find(new Paging<Map<String, Object>>(0, 3), null);
+			mapper.find(new Paging<Map<String, Object>>(1, 3), "u%");
+			assertEquals(1, pageCache.getHitCount());
+			assertEquals(3, pageCache.getMissCount());
+		}
+	}
+
+	@Test
+	public void invalidatesOnWrite() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("page_cache_write", properties(), TestDatabase.range(1, 7));
+		PageCache pageCache = pageCache(factory);
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			mapper.find(new Paging<Map<String, Object>>(2, 3), null);
+			mapper.insert(8, "u8", null);
+			Paging<Map<String, Object>> paging = new Paging<>(2, 3);
+			assertEquals(2, mapper.find(paging, null).size());
+			assertEquals(8, paging.getTotalElements());
+			assertEquals(0, pageCache.getHitCount());
+		}
+	}
+
+	@Test
+	public void invalidatesAgainOnCommit() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("page_cache_tx", properties(), TestDatabase.range(1, 7));
+		PageCache pageCache = pageCache(factory);
+		try (SqlSession writer = factory.openSession(false); SqlSession reader = factory.openSession(true)) {
+			UserMapper writerMapper = writer.getMapper(UserMapper.class);
+			writerMapper.insert(8, "u8", null);
+			assertTrue(pageCache.hasPendingWrites(executor(writer)));
+			// 有未提交写操作的会话不读写缓存
+			assertEquals(8, total(writerMapper));
+
+			// 其他会话在提交前缓存了旧数据
+			UserMapper readerMapper = reader.getMapper(UserMapper.class);
+			assertEquals(7, total(readerMapper));
+			assertEquals(7, total(readerMapper));
+			assertEquals(1, pageCache.getHitCount());
+
+			writer.commit();
+			assertEquals(8, total(readerMapper));
+			assertEquals(1, pageCache.getHitCount());
+		}
+	}
+
+	@Test
+	public void rejectsPageReadBeforeWrite() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("page_cache_race", properties(), TestDatabase.range(1, 7));
+		PageCache pageCache = pageCache(factory);
+		MappedStatement mappedStatement = factory.getConfiguration()
+				.getMappedStatement("net.sephy.mybatis.UserMapper.findByIds");
+		Map<String, Object> parameterObject = new HashMap<>();
+		parameterObject.put("ids", Collections.singletonList(1));
+		BoundSql boundSql = mappedStatement.getBoundSql(parameterObject);
+		Paging<Object> paging = new Paging<>(0, 3);
+		paging.setTotal(1);
+
+		PageCache.Key key = pageCache.newKey(mappedStatement, boundSql, paging, null, false);
+		// 分页查询执行期间其他会话写入了同一张表
+		try (SqlSession session = factory.openSession(true)) {
+			session.getMapper(UserMapper.class).insert(8, "u8", null);
+		}
+		pageCache.put(key, paging, new ArrayList<Object>(Collections.singletonList("row")));
+		assertNull(pageCache.get(key, new Paging<>(0, 3)));
+
+		key = pageCache.newKey(mappedStatement, boundSql, paging, null, false);
+		pageCache.put(key, paging, new ArrayList<Object>(Collections.singletonList("row")));
+		assertEquals(Collections.singletonList("row"), pageCache.get(key, new Paging<>(0, 3)));
+	}
+
+	@Test
+	public void customCacheType() throws Exception {
+		Properties properties = properties();
+		properties.setProperty("pageCacheType", PerpetualCache.class.getName());
+		SqlSessionFactory factory = TestDatabase.create("page_cache_custom", properties, TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			assertEquals(7, total(mapper));
+			assertEquals(7, total(mapper));
+			assertTrue(pageCache(factory).getCache() instanceof PerpetualCache);
+			assertEquals(1, pageCache(factory).getHitCount());
+		}
+	}
+
+	private static long total(UserMapper mapper) {
+		Paging<Map<String, Object>> paging = new Paging<>(0, 3);
+		mapper.find(paging, null);
+		return paging.getTotalElements();
+	}
+
+	private static Executor executor(SqlSession session) throws Exception {
+		Field field = session.getClass().getDeclaredField("executor");
+		field.setAccessible(true);
+		return (Executor) field.get(session);
+	}
+
+	private static PageCache pageCache(SqlSessionFactory factory) {
+		return ((PaginationInterceptor) factory.getConfiguration().getInterceptors().get(0)).getPageCache();
+	}
+
+	private static Properties properties() {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		properties.setProperty("pageCacheStatements", "net.sephy.mybatis.UserMapper.*");
+		return properties;
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import net.sephy.mybatis.util.PagingConsts;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * slice 模式: 不查询总数, 多取一行判断是否有下一页
+ */
+public class SlicePagingTest {
+
+	@Test
+	public void slicePaging() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("slice", properties(), TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = Paging.slice(0, 3);
+			List<Map<String, Object>> content = mapper.find(paging, null);
+			assertEquals(3, content.size());
+			assertTrue(paging.hasNext());
+			assertEquals(PagingConsts.UNKNOWN_TOTAL, paging.getTotalElements());
+			assertEquals(-1, paging.getTotalPages());
+
+			paging = (Paging<Map<String, Object>>) paging.next().next();
+			assertTrue(paging.isSlice());
+			content = mapper.find(paging, null);
+			assertEquals(1, content.size());
+			assertEquals(7, content.get(0).get("ID"));
+			// 最后一页可以确定总数
+			assertFalse(paging.hasNext());
+			assertEquals(7, paging.getTotalElements());
+
+			// 超出末页的空页无法确定总数
+			paging = Paging.slice(5, 3);
+			assertEquals(0, mapper.find(paging, null).size());
+			assertFalse(paging.hasNext());
+			assertEquals(PagingConsts.UNKNOWN_TOTAL, paging.getTotalElements());
+		}
+	}
+
+	@Test
+	public void sliceStatementsDoNotChangePaging() throws Exception {
+		Properties properties = properties();
+		properties.setProperty("sliceStatements", "net.sephy.mybatis.UserMapper.find");
+		SqlSessionFactory factory = TestDatabase.create("slice_statements", properties, TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			Paging<Map<String, Object>> paging = new Paging<>(0, 3);
+			assertEquals(3, mapper.find(paging, null).size());
+			assertTrue(paging.hasNext());
+			assertEquals(PagingConsts.UNKNOWN_TOTAL, paging.getTotalElements());
+			// 按语句配置的 slice 模式只对本次查询生效
+			assertFalse(paging.isSlice());
+			assertEquals(3, paging.getLimit());
+			Paging<Map<String, Object>> next = (Paging<Map<String, Object>>) paging.next();
+			assertFalse(next.isSlice());
+
+			// 其他语句照常查询总数
+			paging = new Paging<>(0, 3);
+			mapper.findByIds(paging, Arrays.asList(1, 2, 3, 4));
+			assertEquals(4, paging.getTotalElements());
+		}
+	}
+
+	@Test
+	public void cachedSliceKeepsPaging() throws Exception {
+		Properties properties = properties();
+		properties.setProperty("sliceStatements", "net.sephy.mybatis.UserMapper.find");
+		properties.setProperty("pageCacheStatements", "net.sephy.mybatis.UserMapper.*");
+		SqlSessionFactory factory = TestDatabase.create("slice_cached", properties, TestDatabase.range(1, 7));
+		PaginationInterceptor interceptor = (PaginationInterceptor) factory.getConfiguration().getInterceptors()
+				.get(0);
+		try (SqlSession session = factory.openSession(true)) {
+			UserMapper mapper = session.getMapper(UserMapper.class);
+			for (int i = 0; i < 3; i++) {
+				Paging<Map<String, Object>> paging = new Paging<>(1, 3);
+				assertEquals(3, mapper.find(paging, null).size());
+				assertTrue(paging.hasNext());
+				assertFalse(paging.isSlice());
+				assertEquals(PagingConsts.UNKNOWN_TOTAL, paging.getTotalElements());
+			}
+			// 同一请求只缓存一次
+			assertEquals(1, interceptor.getPageCache().getMissCount());
+			assertEquals(2, interceptor.getPageCache().getHitCount());
+		}
+	}
+
+	private static Properties properties() {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		return properties;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.interceptor;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.UserMapper;
+import net.sephy.mybatis.util.Paging;
+import org.apache.ibatis.builder.StaticSqlSource;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ResultFlag;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.ResultMapping;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 排序条件写入SQL: 需要显式开启, 稳定排序列使用查询列表中的表达式或按语句配置
+ */
+public class SortRewriterTest {
+
+	private final Configuration configuration = new Configuration();
+
+	@Test
+	public void disabledByDefault() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		assertEquals(Arrays.<Object> asList(1, 2, 3), findIds("sort_default", properties));
+
+		properties.setProperty("sortPushdown", "true");
+		assertEquals(Arrays.<Object> asList(7, 6, 5), findIds("sort_pushdown", properties));
+	}
+
+	@Test
+	public void tiebreakerUsesSelectExpression() {
+		MappedStatement mappedStatement = statement("test.find",
+				"select u.id, u.name, g.title from users u join groups g on g.id = u.grp",
+				Collections.<ResultMapping> emptyList());
+		assertEquals("select u.id, u.name, g.title from users u join groups g on g.id = u.grp"
+				+ " order by u.name asc, u.id asc", rewrite(new SortRewriter(), mappedStatement, "name"));
+	}
+
+	@Test
+	public void resultMapColumnsAreQualified() {
+		MappedStatement mappedStatement = statement("test.find",
+				"select u.id, u.name from users u join groups g on g.id = u.grp",
+				Arrays.asList(id("userId", "id"), column("userName", "name")));
+		assertEquals("select u.id, u.name from users u join groups g on g.id = u.grp"
+				+ " order by u.name desc, u.id asc", rewrite(new SortRewriter(), mappedStatement,
+				new Sort(Sort.Direction.DESC, "userName")));
+	}
+
+	@Test
+	public void ambiguousTiebreakerIsOmitted() {
+		MappedStatement mappedStatement = statement("test.find",
+				"select * from users u join groups g on g.id = u.grp",
+				Arrays.asList(id("id", "id"), column("name", "name")));
+		assertEquals("select * from users u join groups g on g.id = u.grp order by name asc",
+				rewrite(new SortRewriter(), mappedStatement, "name"));
+
+		SortRewriter configured = new SortRewriter();
+		configured.setTiebreakers(StatementMatcher.parse("test.*=u.id"));
+		assertEquals("select * from users u join groups g on g.id = u.grp order by name asc, u.id asc",
+				rewrite(configured, mappedStatement, "name"));
+	}
+
+	@Test
+	public void singleTableKeepsIdColumn() {
+		MappedStatement mappedStatement = statement("test.find", "select * from users",
+				Arrays.asList(id("id", "id"), column("name", "name")));
+		assertEquals("select * from users order by name asc, id asc",
+				rewrite(new SortRewriter(), mappedStatement, "name"));
+	}
+
+	private static List<Object> findIds(String name, Properties properties) throws Exception {
+		SqlSessionFactory factory = TestDatabase.create(name, properties, TestDatabase.range(1, 7));
+		try (SqlSession session = factory.openSession(true)) {
+			List<Object> ids = new ArrayList<>();
+			for (Map<String, Object> row : session.getMapper(UserMapper.class).find(
+					new Paging<Map<String, Object>>(0, 3, Sort.Direction.DESC, "id"), null)) {
+				ids.add(row.get("ID"));
+			}
+			return ids;
+		}
+	}
+
+	private static String rewrite(SortRewriter rewriter, MappedStatement mappedStatement, String property) {
+		return rewrite(rewriter, mappedStatement, new Sort(Sort.Direction.ASC, property));
+	}
+
+	private static String rewrite(SortRewriter rewriter, MappedStatement mappedStatement, Sort sort) {
+		return rewriter.apply(mappedStatement, mappedStatement.getBoundSql(null), sort).getSql();
+	}
+
+	private MappedStatement statement(String id, String sql, List<ResultMapping> mappings) {
+		ResultMap resultMap = new ResultMap.Builder(configuration, id + "-result", Map.class, mappings).build();
+		return new MappedStatement.Builder(configuration, id, new StaticSqlSource(configuration, sql),
+				SqlCommandType.SELECT).resultMaps(Collections.singletonList(resultMap)).build();
+	}
+
+	private ResultMapping id(String property, String column) {
+		return new ResultMapping.Builder(configuration, property, column, Object.class)
+				.flags(Collections.singletonList(ResultFlag.ID)).build();
+	}
+
+	private ResultMapping column(String property, String column) {
+		return new ResultMapping.Builder(configuration, property, column, Object.class).build();
+	}
+}
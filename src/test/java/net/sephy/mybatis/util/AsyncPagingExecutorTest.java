@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import net.sephy.mybatis.TestDatabase;
+import net.sephy.mybatis.interceptor.ConcurrentCountExecutor;
+import net.sephy.mybatis.interceptor.QueryCanceller;
+import org.apache.ibatis.binding.MapperMethod;
+import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 异步分页: 取消时停止正在执行的语句, 线程池已满时 future 失败
+ */
+public class AsyncPagingExecutorTest {
+
+	private static final String FIND = "net.sephy.mybatis.UserMapper.find";
+
+	private static final String FIND_SLOW = "net.sephy.mybatis.UserMapper.findSlow";
+
+	@Test
+	public void selectsPage() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("async_page", properties(), TestDatabase.range(1, 7));
+		AsyncPagingExecutor async = new AsyncPagingExecutor(factory, 1);
+		try {
+			Paging<Map<String, Object>> paging = async.selectPage(FIND, Collections.singletonMap("name", null),
+					new Paging<Map<String, Object>>(1, 3)).get(5, TimeUnit.SECONDS);
+			assertEquals(3, paging.getContent().size());
+			assertEquals(4, paging.getContent().get(0).get("ID"));
+			assertEquals(7, paging.getTotalElements());
+		}
+		finally {
+			async.shutdown();
+		}
+	}
+
+	@Test
+	public void cancelStopsRunningQuery() throws Exception {
+		assumeFixedPool();
+		SqlSessionFactory factory = TestDatabase.create("async_cancel", properties(), TestDatabase.range(1, 2000));
+		AsyncPagingExecutor async = new AsyncPagingExecutor(factory, 1);
+		try {
+			// count 查询每行暂停 2ms, 不取消时需要 4 秒以上 (H2 每读取 256 行检查一次是否取消)
+			CompletableFuture<Paging<Map<String, Object>>> slow = async.selectPage(FIND_SLOW,
+					Collections.singletonMap("millis", 2), new Paging<Map<String, Object>>(0, 3));
+			Thread.sleep(300);
+			assertTrue(slow.cancel(true));
+			// 唯一的线程在语句取消后才能执行下一个查询
+			Paging<Map<String, Object>> paging = async.selectPage(FIND, Collections.singletonMap("name", null),
+					new Paging<Map<String, Object>>(0, 3)).get(2, TimeUnit.SECONDS);
+			assertEquals(2000, paging.getTotalElements());
+		}
+		finally {
+			async.shutdown();
+		}
+	}
+
+	@Test
+	public void rejectsWhenQueueIsFull() throws Exception {
+		assumeFixedPool();
+		SqlSessionFactory factory = TestDatabase.create("async_reject", properties(), TestDatabase.range(1, 2000));
+		AsyncPagingExecutor async = new AsyncPagingExecutor(factory, 1, 1);
+		Map<String, Integer> slowParameters = Collections.singletonMap("millis", 2);
+		CompletableFuture<Paging<Map<String, Object>>> running = async.selectPage(FIND_SLOW, slowParameters,
+				new Paging<Map<String, Object>>(0, 3));
+		CompletableFuture<Paging<Map<String, Object>>> queued = async.selectPage(FIND_SLOW, slowParameters,
+				new Paging<Map<String, Object>>(0, 3));
+		try {
+			async.selectPage(FIND, Collections.singletonMap("name", null), new Paging<Map<String, Object>>(0, 3))
+					.get(1, TimeUnit.SECONDS);
+			fail("queue is full");
+		}
+		catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		finally {
+			queued.cancel(true);
+			running.cancel(true);
+			async.shutdown();
+		}
+	}
+
+	@Test
+	public void concurrentCountIsCancelledWithQuery() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("async_count", properties(), TestDatabase.range(1, 2000));
+		MappedStatement mappedStatement = factory.getConfiguration().getMappedStatement(FIND_SLOW);
+		MapperMethod.ParamMap<Object> parameterObject = new MapperMethod.ParamMap<>();
+		parameterObject.put("paging", null);
+		parameterObject.put("millis", 2);
+		BoundSql boundSql = mappedStatement.getBoundSql(parameterObject);
+		ConcurrentCountExecutor countExecutor = new ConcurrentCountExecutor(1, 10000);
+		QueryCanceller canceller = new QueryCanceller();
+		QueryCanceller.bind(canceller);
+		long start = System.currentTimeMillis();
+		try {
+			Future<Long> count = countExecutor.submit(mappedStatement, parameterObject, boundSql,
+					"select count(*) from users where sleep_millis(?) = 0",
+					LogFactory.getLog(AsyncPagingExecutorTest.class));
+			Thread.sleep(300);
+			// 分页查询取消时, 其他线程上的 count 查询一起取消
+			canceller.cancel();
+			countExecutor.await(count);
+			fail("count should be cancelled");
+		}
+		catch (SQLException e) {
+			assertTrue(System.currentTimeMillis() - start < 3000);
+		}
+		finally {
+			QueryCanceller.unbind();
+			countExecutor.shutdown();
+		}
+	}
+
+	@Test
+	public void linkAfterCancelCancelsImmediately() {
+		QueryCanceller parent = new QueryCanceller();
+		QueryCanceller child = new QueryCanceller();
+		parent.cancel();
+		parent.link(child);
+		assertTrue(child.isCancelled());
+	}
+
+	/**
+	 * 支持虚拟线程时不使用固定大小的线程池
+	 */
+	private static void assumeFixedPool() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			Assume.assumeTrue(false);
+		}
+		catch (NoSuchMethodException e) {
+			// 使用固定大小的线程池
+		}
+	}
+
+	private static Properties properties() {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		return properties;
+	}
+}
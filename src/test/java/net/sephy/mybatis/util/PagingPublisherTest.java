@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import net.sephy.mybatis.TestDatabase;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 按需逐页读取: 只发送请求的行数, 最多预读一页, 取消后不再读取, 末页发完后结束
+ */
+public class PagingPublisherTest {
+
+	private static final String FIND = "net.sephy.mybatis.UserMapper.find";
+
+	@Test
+	public void emitsOnlyRequestedRows() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("publisher_demand", properties(), TestDatabase.range(1, 7));
+		CountingExecutor executor = new CountingExecutor();
+		RecordingSubscriber subscriber = subscribe(factory, executor);
+		assertEquals(0, executor.count.get());
+		assertTrue(subscriber.ids.isEmpty());
+
+		// 读取第一页并预读第二页
+		subscriber.subscription.request(2);
+		assertEquals(Arrays.<Object> asList(1, 2), subscriber.ids);
+		assertEquals(2, executor.count.get());
+
+		subscriber.subscription.request(1);
+		assertEquals(Arrays.<Object> asList(1, 2, 3), subscriber.ids);
+		assertEquals(2, executor.count.get());
+
+		// 切换到第二页时才预读第三页
+		subscriber.subscription.request(1);
+		assertEquals(Arrays.<Object> asList(1, 2, 3, 4), subscriber.ids);
+		assertEquals(3, executor.count.get());
+		assertFalse(subscriber.completed);
+	}
+
+	@Test
+	public void cancelStopsFetching() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("publisher_cancel", properties(), TestDatabase.range(1, 7));
+		CountingExecutor executor = new CountingExecutor();
+		RecordingSubscriber subscriber = subscribe(factory, executor);
+		subscriber.subscription.request(2);
+		subscriber.subscription.cancel();
+		subscriber.subscription.request(10);
+		assertEquals(Arrays.<Object> asList(1, 2), subscriber.ids);
+		assertEquals(2, executor.count.get());
+		assertFalse(subscriber.completed);
+		assertEquals(null, subscriber.error);
+	}
+
+	@Test
+	public void completesAfterLastPage() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("publisher_complete", properties(), TestDatabase.range(1, 7));
+		CountingExecutor executor = new CountingExecutor();
+		RecordingSubscriber subscriber = subscribe(factory, executor);
+		subscriber.subscription.request(7);
+		assertEquals(Arrays.<Object> asList(1, 2, 3, 4, 5, 6, 7), subscriber.ids);
+		assertTrue(subscriber.completed);
+		assertEquals(3, executor.count.get());
+
+		// 没有行时直接结束
+		subscriber = new RecordingSubscriber();
+		new PagingPublisher<Map<String, Object>>(factory, FIND, Collections.singletonMap("name", "x%"),
+				Paging.<Map<String, Object>> slice(0, 3), executor).subscribe(subscriber);
+		subscriber.subscription.request(1);
+		assertTrue(subscriber.ids.isEmpty());
+		assertTrue(subscriber.completed);
+	}
+
+	@Test
+	public void rejectsNonPositiveRequest() throws Exception {
+		SqlSessionFactory factory = TestDatabase.create("publisher_invalid", properties(), TestDatabase.range(1, 7));
+		RecordingSubscriber subscriber = subscribe(factory, new CountingExecutor());
+		subscriber.subscription.request(0);
+		assertTrue(subscriber.error instanceof IllegalArgumentException);
+		assertFalse(subscriber.completed);
+	}
+
+	private static RecordingSubscriber subscribe(SqlSessionFactory factory, Executor executor) {
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		new PagingPublisher<Map<String, Object>>(factory, FIND, Collections.singletonMap("name", null),
+				Paging.<Map<String, Object>> slice(0, 3), executor).subscribe(subscriber);
+		return subscriber;
+	}
+
+	private static Properties properties() {
+		Properties properties = new Properties();
+		properties.setProperty("dialect", "h2");
+		return properties;
+	}
+
+	/**
+	 * 在调用线程上读取, 记录读取的页数
+	 */
+	private static class CountingExecutor implements Executor {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public void execute(Runnable command) {
+			count.incrementAndGet();
+			command.run();
+		}
+	}
+
+	private static class RecordingSubscriber implements PagingPublisher.Subscriber<Map<String, Object>> {
+
+		private final List<Object> ids = new ArrayList<>();
+
+		private PagingPublisher.Subscription subscription;
+
+		private boolean completed;
+
+		private Throwable error;
+
+		@Override
+		public void onSubscribe(PagingPublisher.Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(Map<String, Object> row) {
+			ids.add(row.get("ID"));
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			error = throwable;
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 sephy.net
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.sephy.mybatis.util;
+
+import net.sephy.mybatis.TestDatabase;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在三个 H2 内存库上验证合并分页: users 表的 1 ~ 53 号用户按 id % 3 拆分到各分片
+ */
+public class ShardedPagerTest {
+
+	private static final String FIND = "net.sephy.mybatis.UserMapper.find";
+
+	private static final int USERS = 53;
+
+	private static final Map<String, Object> PARAMETERS = Collections.<String, Object> singletonMap("name", null);
+
+	private static ShardedPager pager;
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		List<SqlSessionFactory> shards = new ArrayList<>();
+		for (int shard = 0; shard < 3; shard++) {
+			List<Integer> ids = new ArrayList<>();
+			for (int id = 1; id <= USERS; id++) {
+				if (id % 3 == shard) {
+					ids.add(id);
+				}
+			}
+			int[] shardIds = new int[ids.size()];
+			for (int i = 0; i < shardIds.length; i++) {
+				shardIds[i] = ids.get(i);
+			}
+			Properties properties = new Properties();
+			properties.setProperty("dialect", "h2");
+			properties.setProperty("sortPushdown", "true");
+			shards.add(TestDatabase.create("sharded_pager_" + shard, properties, shardIds));
+		}
+		pager = new ShardedPager(shards);
+	}
+
+	@AfterClass
+	public static void tearDown() {
+		pager.shutdown();
+	}
+
+	@Test
+	public void offsetPageMergesShardsAndSumsTotals() {
+		Paging<Map<String, Object>> paging = new Paging<>(2, 10, Sort.Direction.DESC, "id");
+		List<Map<String, Object>> content = pager.selectPage(FIND, PARAMETERS, paging);
+		assertEquals(range(33, 24), ids(content));
+		assertEquals(USERS, paging.getTotalElements());
+		assertEquals(6, paging.getTotalPages());
+		assertTrue(paging.hasNext());
+	}
+
+	@Test
+	public void offsetPageMergesByMultipleSortKeys() {
+		Sort sort = new Sort(new Sort.Order(Sort.Direction.ASC, "grp"), new Sort.Order(Sort.Direction.DESC, "id"));
+		Paging<Map<String, Object>> paging = new Paging<>(1, 8, sort);
+		List<Map<String, Object>> content = pager.selectPage(FIND, PARAMETERS, paging);
+		// grp = id % 5: grp 0 的 50, 45, ..., 5 共 10 行, 第二页从其第 9 行开始, 之后是 grp 1 的 51, 46, ...
+		List<Integer> expected = new ArrayList<>();
+		expected.addAll(range(10, 5, 5));
+		expected.addAll(range(51, 26, 5));
+		assertEquals(expected, ids(content));
+		assertEquals(USERS, paging.getTotalElements());
+	}
+
+	@Test
+	public void offsetPageBeyondLastPageIsEmpty() {
+		Paging<Map<String, Object>> paging = new Paging<>(6, 10, Sort.Direction.ASC, "id");
+		assertTrue(pager.selectPage(FIND, PARAMETERS, paging).isEmpty());
+		assertEquals(USERS, paging.getTotalElements());
+		assertFalse(paging.hasNext());
+	}
+
+	@Test
+	public void slicePageReportsHasNext() {
+		Paging<Map<String, Object>> paging = Paging.slice(4, 10, new Sort(Sort.Direction.ASC, "id"));
+		assertEquals(range(41, 50), ids(pager.selectPage(FIND, PARAMETERS, paging)));
+		assertTrue(paging.hasNext());
+		assertFalse(paging.isTotalKnown());
+
+		paging = Paging.slice(5, 10, new Sort(Sort.Direction.ASC, "id"));
+		assertEquals(range(51, 53), ids(pager.selectPage(FIND, PARAMETERS, paging)));
+		assertFalse(paging.hasNext());
+		// 最后一页可以确定总数
+		assertEquals(USERS, paging.getTotalElements());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void keysetPagesVisitEveryRowOnce() {
+		Paging<Map<String, Object>> paging = new Paging<>(0, 7);
+		paging.setKeyset(new Keyset().desc("id", "ID"));
+		List<Integer> visited = new ArrayList<>();
+		while (true) {
+			List<Map<String, Object>> content = pager.selectPage(FIND, PARAMETERS, paging);
+			assertEquals(USERS, paging.getTotalElements());
+			visited.addAll(ids(content));
+			if (!paging.hasNext()) {
+				break;
+			}
+			paging = (Paging<Map<String, Object>>) paging.next();
+		}
+		assertEquals(range(USERS, 1), visited);
+	}
+
+	private static List<Integer> ids(List<Map<String, Object>> rows) {
+		List<Integer> ids = new ArrayList<>();
+		for (Map<String, Object> row : rows) {
+			ids.add(((Number) row.get("ID")).intValue());
+		}
+		return ids;
+	}
+
+	private static List<Integer> range(int from, int to) {
+		return range(from, to, 1);
+	}
+
+	/**
+	 * from 到 to (含) 之间间隔为 step 的整数, from 大于 to 时递减
+	 */
+	private static List<Integer> range(int from, int to, int step) {
+		List<Integer> values = new ArrayList<>();
+		int direction = from <= to ? step : -step;
+		for (int value = from; direction > 0 ? value <= to : value >= to; value += direction) {
+			values.add(value);
+		}
+		return values;
+	}
+}